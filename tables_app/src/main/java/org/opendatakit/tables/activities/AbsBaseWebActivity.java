@@ -1,9 +1,15 @@
 package org.opendatakit.tables.activities;
 
+import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
+import android.widget.HorizontalScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
 import org.json.JSONObject;
 import org.opendatakit.consts.RequestCodeConsts;
 import org.opendatakit.database.service.UserDbInterface;
@@ -13,8 +19,12 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.DynamicPropertiesCallback;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SessionVariableStore;
 import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.webkits.BridgeTrace;
+import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 import org.opendatakit.tables.views.webkits.TableDataExecutorProcessor;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ExecutorContext;
@@ -23,8 +33,12 @@ import org.opendatakit.views.ODKWebView;
 import org.opendatakit.webkitserver.utilities.DoActionUtils;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * @author mitchellsundt@gmail.com
@@ -45,7 +59,12 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   private static final String DISPATCH_STRING_WAITING_FOR_DATA = "dispatchStringWaitingForData";
   private static final String ACTION_WAITING_FOR_DATA = "actionWaitingForData";
 
+  /**
+   * The session variables themselves, only read to carry them over from a state saved
+   * before they were kept in a {@link SessionVariableStore}
+   */
   private static final String SESSION_VARIABLES = "sessionVariables";
+  private static final String SESSION_VARIABLE_STORE = "sessionVariableStore";
 
   private static final String QUEUED_ACTIONS = "queuedActions";
   private static final String RESPONSE_JSON_MAIN = "responseJSON_main";
@@ -62,9 +81,10 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
    * to ensure that they are updated concurrently and consistently. Results are expected
    * to be read from the primary webkit (e.g., the detail webkit).
    *
-   * The session variables bundle is a complex data structure and is guarded to ensure the two
+   * The session variables store is a complex data structure and is guarded to ensure the two
    * webkits don't attempt to manipulate it at the same time (it is unclear if the webkit threads
    * will be the same thread or different).  Session variables are shared across the webkits.
+   * Only the store's id is saved in the instance state, the variables are kept in its file.
    */
   private final Object guardCachedContent = new Object();
   private LinkedList<String> guardedQueueResponseJSON_main = new LinkedList<>();
@@ -72,7 +92,12 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   private String guardedDispatchStringWaitingForData = null;
   private String guardedActionWaitingForData = null;
   private LinkedList<String> guardedQueuedActions = new LinkedList<>();
-  private Bundle guardedSessionVariables = new Bundle();
+  private SessionVariableStore guardedSessionVariables = null;
+  /**
+   * The timings of the queued responses, by the response itself. Not preserved, responses
+   * restored after an orientation change are not timed.
+   */
+  private final Map<String, BridgeTrace.Trace> guardedResponseTraces = new IdentityHashMap<>();
   /**
    * Member variables that do not need to be preserved across orientation
    * changes, etc.
@@ -111,7 +136,9 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
         outState.putString(ACTION_WAITING_FOR_DATA, guardedActionWaitingForData);
       }
 
-      outState.putBundle(SESSION_VARIABLES, guardedSessionVariables);
+      if (guardedSessionVariables != null) {
+        outState.putString(SESSION_VARIABLE_STORE, guardedSessionVariables.getId());
+      }
 
       if (!guardedQueuedActions.isEmpty()) {
         String[] actionOutcomesArray = new String[guardedQueuedActions.size()];
@@ -155,8 +182,20 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
             savedInstanceState.getString(ACTION_WAITING_FOR_DATA) :
             null;
 
-        if (savedInstanceState.containsKey(SESSION_VARIABLES)) {
-          guardedSessionVariables = savedInstanceState.getBundle(SESSION_VARIABLES);
+        if (savedInstanceState.containsKey(SESSION_VARIABLE_STORE)) {
+          // read lazily, when the page first asks for a variable
+          guardedSessionVariables = SessionVariableStore
+              .open(this, getAppName(), savedInstanceState.getString(SESSION_VARIABLE_STORE));
+        }
+
+        Bundle sessionVariables = savedInstanceState.getBundle(SESSION_VARIABLES);
+        if (sessionVariables != null) {
+          if (guardedSessionVariables == null) {
+            guardedSessionVariables = SessionVariableStore.create(this, getAppName());
+          }
+          for (String elementPath : sessionVariables.keySet()) {
+            guardedSessionVariables.put(elementPath, sessionVariables.getString(elementPath));
+          }
         }
 
         if (savedInstanceState.containsKey(QUEUED_ACTIONS)) {
@@ -183,7 +222,28 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
           }
         }
       }
+
+      if (guardedSessionVariables == null) {
+        guardedSessionVariables = SessionVariableStore.create(this, getAppName());
+      }
+    }
+  }
+
+  /**
+   * Stops the web views' result streams, and deletes the session variables if the activity is
+   * finishing, otherwise keeps them for the activity that is made in its place
+   */
+  @Override
+  protected void onDestroy() {
+    OdkTablesWebView.closeResultStreams(this);
+    synchronized (guardCachedContent) {
+      if (isFinishing()) {
+        guardedSessionVariables.delete();
+      } else {
+        guardedSessionVariables.close();
+      }
     }
+    super.onDestroy();
   }
 
   /**
@@ -237,14 +297,14 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   @Override
   public void setSessionVariable(String elementPath, String jsonValue) {
     synchronized (guardCachedContent) {
-      guardedSessionVariables.putString(elementPath, jsonValue);
+      guardedSessionVariables.put(elementPath, jsonValue);
     }
   }
 
   @Override
   public String getSessionVariable(String elementPath) {
     synchronized (guardCachedContent) {
-      return guardedSessionVariables.getString(elementPath);
+      return guardedSessionVariables.get(elementPath);
     }
   }
 
@@ -367,14 +427,17 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
     }
 
     if (responseJSON != null) {
+      final ODKWebView webView = getWebKitView(fragmentID);
+      BridgeTrace.Trace trace = BridgeTrace.responseQueued(fragmentID,
+          webView == null ? null : webView.getLoadPageUrl(), responseJSON.length());
       synchronized (guardCachedContent) {
         if (fragmentID != null && Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(fragmentID)) {
           this.guardedQueueResponseJSON_sublist.push(responseJSON);
         } else {
           this.guardedQueueResponseJSON_main.push(responseJSON);
         }
+        guardedResponseTraces.put(responseJSON, trace);
       }
-      final ODKWebView webView = getWebKitView(fragmentID);
       if (webView != null) {
         runOnUiThread(new Runnable() {
           @Override
@@ -388,19 +451,79 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
 
   @Override
   public String getResponseJSON(String fragmentID) {
+    String responseJSON;
+    BridgeTrace.Trace trace;
     synchronized (guardCachedContent) {
       if (fragmentID != null && Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(fragmentID)) {
         if (guardedQueueResponseJSON_sublist.isEmpty()) {
           return null;
         }
-        return guardedQueueResponseJSON_sublist.removeFirst();
+        responseJSON = guardedQueueResponseJSON_sublist.removeFirst();
       } else {
         if (guardedQueueResponseJSON_main.isEmpty()) {
           return null;
         }
-        return guardedQueueResponseJSON_main.removeFirst();
+        responseJSON = guardedQueueResponseJSON_main.removeFirst();
       }
+      trace = guardedResponseTraces.remove(responseJSON);
+    }
+    if (trace != null) {
+      BridgeTrace.responseTaken(trace);
     }
+    return responseJSON;
+  }
+
+  /**
+   * Shows the timings of the requests the web views have made, with buttons to write
+   * them to a trace file and to start over
+   */
+  protected void showBridgeTimings() {
+    TextView text = new TextView(this);
+    text.setTypeface(Typeface.MONOSPACE);
+    text.setTextIsSelectable(true);
+    int padding = getResources().getDimensionPixelSize(R.dimen.bridge_timings_padding);
+    text.setPadding(padding, padding, padding, padding);
+    text.setText(BridgeTrace.summary());
+    HorizontalScrollView scroll = new HorizontalScrollView(this);
+    scroll.addView(text);
+
+    new AlertDialog.Builder(this).setTitle(R.string.bridge_timings).setView(scroll)
+        .setPositiveButton(R.string.bridge_timings_export, new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialog, int which) {
+            exportBridgeTimings();
+          }
+        }).setNeutralButton(R.string.bridge_timings_reset, new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialog, int which) {
+            BridgeTrace.reset();
+          }
+        }).setNegativeButton(R.string.cancel, null).show();
+  }
+
+  private void exportBridgeTimings() {
+    final String appName = getAppName();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        String message;
+        try {
+          File file = BridgeTrace.export(appName);
+          message = getString(R.string.bridge_timings_exported,
+              ODKFileUtils.asRelativePath(appName, file));
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          message = getString(R.string.bridge_timings_export_failed);
+        }
+        final String toast = message;
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(AbsBaseWebActivity.this, toast, Toast.LENGTH_LONG).show();
+          }
+        });
+      }
+    }, TAG).start();
   }
 
   @Override
@@ -17,7 +17,6 @@ package org.opendatakit.tables.activities;
 
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import androidx.core.content.ContextCompat;
 import android.view.View;
@@ -25,6 +24,7 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
@@ -43,8 +43,9 @@ import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.fragments.ImportExportDialogFragment;
+import org.opendatakit.tables.tasks.CsvBundle;
 import org.opendatakit.tables.tasks.ExportRequest;
-import org.opendatakit.tables.tasks.ExportTask;
+import org.opendatakit.tables.tasks.ImportExportService;
 import org.opendatakit.tables.utils.TableFileUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 
@@ -85,6 +86,10 @@ public class ExportCSVActivity extends AbsBaseActivity {
   private Spinner tableSpin;
   // the text field where the user enters the qualifier
   private EditText qualifierTextBox;
+  // the spinner for plain csv files or one of the compressed bundle formats
+  private Spinner formatSpin;
+  // whether to export only the changes since the last incremental export
+  private CheckBox incrementalCheck;
 
   /**
    * Called when the user navigates to this screen. Sets the app name and sets up the view
@@ -141,6 +146,25 @@ public class ExportCSVActivity extends AbsBaseActivity {
     qualifierTextBox = new EditText(this);
     qualifierTextBox.setId(R.id.FILENAMEVAL_ID);
     v.addView(qualifierTextBox);
+    // adding the format spinner
+    TextView formatLabel = new TextView(this);
+    formatLabel.setText(getString(R.string.export_format));
+    v.addView(formatLabel);
+    formatSpin = new Spinner(this);
+    formatSpin.setId(R.id.EXPORTFORMATSPIN_ID);
+    ArrayAdapter<String> formatAdapter = new ArrayAdapter<>(this,
+        android.R.layout.simple_spinner_item,
+        new String[] { getString(R.string.export_format_csv),
+            getString(R.string.export_format_zip), getString(R.string.export_format_gzip),
+            getString(R.string.export_format_columnar) });
+    formatAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    formatSpin.setAdapter(formatAdapter);
+    v.addView(formatSpin);
+    // adding the incremental export check box
+    incrementalCheck = new CheckBox(this);
+    incrementalCheck.setId(R.id.INCREMENTALCHECK_ID);
+    incrementalCheck.setText(getString(R.string.export_incremental));
+    v.addView(incrementalCheck);
     // Horizontal divider
     View ruler3 = new View(this);
     ruler3.setBackgroundColor(ContextCompat.getColor(getApplicationContext(), R.color.black));
@@ -151,6 +175,16 @@ public class ExportCSVActivity extends AbsBaseActivity {
     button.setText(getString(R.string.export_button));
     button.setOnClickListener(new ExportButtonListener());
     v.addView(button);
+    // adding the export all button
+    TextView exportAllButton = new Button(this);
+    exportAllButton.setText(getString(R.string.export_all_tables));
+    exportAllButton.setOnClickListener(new OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        exportAllSubmission();
+      }
+    });
+    v.addView(exportAllButton);
     // wrapping in a scroll view
     ViewGroup scroll = new ScrollView(this);
     scroll.addView(v);
@@ -170,10 +204,55 @@ public class ExportCSVActivity extends AbsBaseActivity {
     }
 
     String tableId = tableIds[tableSpin.getSelectedItemPosition()];
-    ImportExportDialogFragment
-        .newInstance(ImportExportDialogFragment.EXPORT_IN_PROGRESS_DIALOG, this);
-    AsyncTask<ExportRequest, Integer, Boolean> task = new ExportTask(appName, this);
-    task.execute(new ExportRequest(appName, tableId, qualifierTextBox.getText().toString().trim()));
+    ImportExportService.startExport(this, appName,
+        newRequest(tableId, qualifierTextBox.getText().toString().trim()));
+    Toast.makeText(this, getString(R.string.import_export_started), Toast.LENGTH_LONG).show();
+  }
+
+  /**
+   * Exports every table in the ImportExportService, using the qualifier and format that are
+   * filled in
+   */
+  private void exportAllSubmission() {
+    if (tableIds == null || tableIds.length == 0) {
+      Toast
+          .makeText(this, R.string.export_no_table, Toast.LENGTH_LONG)
+          .show();
+      return;
+    }
+
+    String qualifier = qualifierTextBox.getText().toString().trim();
+    ExportRequest[] requests = new ExportRequest[tableIds.length];
+    for (int i = 0; i < tableIds.length; i++) {
+      requests[i] = newRequest(tableIds[i], qualifier);
+    }
+    ImportExportService.startExport(this, appName, requests);
+    Toast.makeText(this, getString(R.string.import_export_started), Toast.LENGTH_LONG).show();
+  }
+
+  /**
+   * @return a request for the table with the options that are selected. An incremental
+   * export is always a plain csv file, so the format is ignored for it
+   */
+  private ExportRequest newRequest(String tableId, String qualifier) {
+    if (incrementalCheck.isChecked()) {
+      return new ExportRequest(appName, tableId, qualifier, true);
+    }
+    if (formatSpin.getSelectedItemPosition() == CsvBundle.Format.values().length + 1) {
+      return new ExportRequest(appName, tableId, qualifier, null, true);
+    }
+    return new ExportRequest(appName, tableId, qualifier, null, getSelectedFormat());
+  }
+
+  /**
+   * @return the bundle format that is selected, or null for plain csv files
+   */
+  private CsvBundle.Format getSelectedFormat() {
+    // the first entry is plain csv files, then the bundle formats in order, then columnar
+    int formatPosition = formatSpin.getSelectedItemPosition();
+    return formatPosition <= 0 || formatPosition > CsvBundle.Format.values().length ?
+        null :
+        CsvBundle.Format.values()[formatPosition - 1];
   }
 
   /**
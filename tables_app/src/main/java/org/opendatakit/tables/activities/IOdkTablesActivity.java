@@ -24,4 +24,12 @@ public interface IOdkTablesActivity extends IOdkCommonActivity, IOdkDataActivity
    * @return null if not a map view or no item selected; otherwise, selected item index.
    */
   Integer getIndexOfSelectedItem();
+
+  /**
+   * If there is a map view fragment ordered by distance, return the indexes of the rows nearest
+   * the current location
+   *
+   * @return null if not ordering by distance; otherwise, row indexes with the nearest first.
+   */
+  int[] getDistanceRankedIndexes();
 }
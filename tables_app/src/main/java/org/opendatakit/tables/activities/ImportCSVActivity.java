@@ -35,12 +35,17 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.fragments.ImportExportDialogFragment;
+import org.opendatakit.tables.tasks.CsvBundle;
+import org.opendatakit.tables.tasks.ImportBatch;
+import org.opendatakit.tables.tasks.ImportExportService;
 import org.opendatakit.tables.tasks.ImportRequest;
-import org.opendatakit.tables.tasks.ImportTask;
 import org.opendatakit.tables.utils.TableFileUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * An activity for importing CSV files to a table.
@@ -55,6 +60,10 @@ public class ImportCSVActivity extends AbsBaseActivity {
   private EditText filenameValField;
   // The button to import a table.
   private Button mImportButton;
+  // The button to import every csv file in the assets csv folder
+  private Button mImportAllButton;
+  // The button to carry on with a batch import that was interrupted
+  private Button mResumeButton;
 
   /**
    * Sets the app name and sets the view (what clicking the buttons should do, etc..)
@@ -116,7 +125,39 @@ public class ImportCSVActivity extends AbsBaseActivity {
     this.mImportButton.setText(getString(R.string.import_append_table));
     this.mImportButton.setOnClickListener(new ImportButtonListener());
     v.addView(this.mImportButton);
-    this.mImportButton.setEnabled(Tables.getInstance().getDatabase() != null);
+    // adding the import all button
+    this.mImportAllButton = new Button(this);
+    this.mImportAllButton.setText(getString(R.string.import_all_csv_files));
+    this.mImportAllButton.setOnClickListener(new OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        startBatchImport(ImportBatch.fromAssetsCsvFolder(ImportCSVActivity.this, appName));
+      }
+    });
+    v.addView(this.mImportAllButton);
+    // adding the resume button, only shown while an interrupted batch is waiting and is not
+    // already queued or running
+    this.mResumeButton = new Button(this);
+    this.mResumeButton.setText(getString(R.string.import_resume_batch));
+    this.mResumeButton.setOnClickListener(new OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        List<ImportBatch> batches = getResumableBatches();
+        if (batches.isEmpty()) {
+          updateButtons();
+          return;
+        }
+        // each batch has its own checkpoint, the service runs them one after the other
+        for (ImportBatch batch : batches) {
+          ImportExportService.startImport(ImportCSVActivity.this, batch);
+        }
+        Toast.makeText(ImportCSVActivity.this, getString(R.string.import_export_started),
+            Toast.LENGTH_LONG).show();
+        updateButtons();
+      }
+    });
+    v.addView(this.mResumeButton);
+    updateButtons();
     // wrapping in a scroll view
     ViewGroup scroll = new ScrollView(this);
     scroll.addView(v);
@@ -131,9 +172,8 @@ public class ImportCSVActivity extends AbsBaseActivity {
    * Then we split it by \. and try to parse the tableId and fileQualifier out of the filename.
    * If it had too many dots (or not enough), we display a Toast notification that the filename
    * was invalid and return.
-   * Then we make an ImportTask and pass it a new ImportExportDialogFragment. The ImportTask will tell
-   * the ImportExportDialogFragment to update the dialog text to "Importing row 5" and so on, and it will
-   * also handle closing the dialog and displaying a Completed or Failed dialog.
+   * Then we hand it to the ImportExportService as a batch of one file. The service shows the
+   * progress and the outcome in a notification.
    */
   private void importSubmission() {
 
@@ -142,28 +182,34 @@ public class ImportCSVActivity extends AbsBaseActivity {
     ImportRequest request = null;
     String assetsCsvRelativePath = ODKFileUtils
             .asRelativePath(appName, new File(ODKFileUtils.getAssetsCsvFolder(appName)));
-    if (filenamePath.startsWith(assetsCsvRelativePath)) {
-      String remainingPath = filenamePath.substring(assetsCsvRelativePath.length() + 1);
-      String[] terms = remainingPath.split("\\.");
-      if (terms.length == 2 && terms[1].equals("csv")) {
-        String tableId = terms[0];
-        String fileQualifier = null;
-        request = new ImportRequest(tableId, fileQualifier);
-      } else if (terms.length == 3 && (terms[1].equals("properties") || terms[1]
-              .equals("definition")) && terms[2].equals("csv")) {
-        String tableId = terms[0];
-        String fileQualifier = null;
-        request = new ImportRequest(tableId, fileQualifier);
-      } else if (terms.length == 3 && terms[2].equals("csv")) {
-        String tableId = terms[0];
-        String fileQualifier = terms[1];
-        request = new ImportRequest(tableId, fileQualifier);
-      } else if (terms.length == 4 && (terms[2].equals("properties") || terms[2]
-              .equals("definition")) && terms[3].equals("csv")) {
-        String tableId = terms[0];
-        String fileQualifier = terms[1];
-        request = new ImportRequest(tableId, fileQualifier);
+    if (filenamePath.equals(assetsCsvRelativePath) || filenamePath
+        .equals(assetsCsvRelativePath + File.separator)) {
+      // the whole folder
+      startBatchImport(ImportBatch.fromAssetsCsvFolder(this, appName));
+      return;
+    }
+    if (filenamePath.contains(",")) {
+      // a list of files
+      List<String> fileNames = new ArrayList<>();
+      for (String path : filenamePath.split(",")) {
+        path = path.trim();
+        if (!path.startsWith(assetsCsvRelativePath + File.separator)) {
+          Toast.makeText(this, "Invalid csv filename: " + path, Toast.LENGTH_LONG).show();
+          return;
+        }
+        fileNames.add(path.substring(assetsCsvRelativePath.length() + 1));
+      }
+      try {
+        startBatchImport(ImportBatch.fromCsvFileNames(this, appName, fileNames));
+      } catch (IllegalArgumentException e) {
+        Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
       }
+      return;
+    }
+    String remainingPath = null;
+    if (filenamePath.startsWith(assetsCsvRelativePath)) {
+      remainingPath = filenamePath.substring(assetsCsvRelativePath.length() + 1);
+      request = ImportRequest.fromCsvFileName(remainingPath);
     }
 
     if (request == null) {
@@ -172,10 +218,52 @@ public class ImportCSVActivity extends AbsBaseActivity {
       return;
     }
 
-    ImportExportDialogFragment
-            .newInstance(ImportExportDialogFragment.IMPORT_IN_PROGRESS_DIALOG, this);
-    ImportTask task = new ImportTask(appName, this);
-    task.execute(request);
+    // a single file is a batch of one, so that it is checkpointed like any other
+    startBatchImport(
+        ImportBatch.fromCsvFileNames(this, appName, Collections.singletonList(remainingPath)));
+  }
+
+  /**
+   * Imports csv files in the ImportExportService, which shows the progress in a notification.
+   * The batch is checkpointed as it goes, so if the app is killed the import carries on from
+   * its last written chunk when the service is restarted, or when the resume button is used.
+   *
+   * @param batch the files to import
+   */
+  private void startBatchImport(ImportBatch batch) {
+    if (batch.size() == 0) {
+      Toast.makeText(this, getString(R.string.import_batch_empty), Toast.LENGTH_LONG).show();
+      return;
+    }
+    batch.saveCheckpoint();
+    ImportExportService.startImport(this, batch);
+    Toast.makeText(this, getString(R.string.import_export_started), Toast.LENGTH_LONG).show();
+    updateButtons();
+  }
+
+  /**
+   * Enables the import buttons if the database is available, and shows the resume button if an
+   * interrupted batch import is waiting and is not queued or running already
+   */
+  private void updateButtons() {
+    boolean databaseAvailable = Tables.getInstance().getDatabase() != null;
+    this.mImportButton.setEnabled(databaseAvailable);
+    this.mImportAllButton.setEnabled(databaseAvailable);
+    this.mResumeButton.setEnabled(databaseAvailable);
+    this.mResumeButton.setVisibility(getResumableBatches().isEmpty() ? View.GONE : View.VISIBLE);
+  }
+
+  /**
+   * @return the batches with a checkpoint that the import service is not already importing
+   */
+  private List<ImportBatch> getResumableBatches() {
+    List<ImportBatch> batches = new ArrayList<>();
+    for (ImportBatch batch : ImportBatch.loadCheckpoints(this, appName)) {
+      if (!ImportExportService.isImportRequested(batch.getBatchId())) {
+        batches.add(batch);
+      }
+    }
+    return batches;
   }
 
   /**
@@ -217,7 +305,14 @@ public class ImportCSVActivity extends AbsBaseActivity {
     if (relativePath.startsWith(assetRelativePath)) {
       String name = csvFile.getName();
       String[] terms = name.split("\\.");
-      if (terms.length < 2 || terms.length > 4) {
+      if (CsvBundle.formatOf(name) != null) {
+        if (ImportRequest.fromCsvFileName(name) == null) {
+          Toast.makeText(this,
+              "Import bundle must be of the form tableId.zip, tableId.qualifier.zip, tableId.csv.gz or tableId.qualifier.csv.gz",
+              Toast.LENGTH_LONG).show();
+          return;
+        }
+      } else if (terms.length < 2 || terms.length > 4) {
         Toast.makeText(this,
             "Import filename must be of the form tableId.csv, tableId.definition.csv, tableId.properties.csv or tableId.qualifier.csv",
             Toast.LENGTH_LONG).show();
@@ -243,21 +338,21 @@ public class ImportCSVActivity extends AbsBaseActivity {
   }
 
   /**
-   * enables the import button if the database is available
+   * enables the import buttons if the database is available
    */
   @Override
   public void databaseAvailable() {
     super.databaseAvailable();
-    this.mImportButton.setEnabled(Tables.getInstance().getDatabase() != null);
+    updateButtons();
   }
 
   /**
-   * disables the import button if the database is not available
+   * disables the import buttons if the database is not available
    */
   @Override
   public void databaseUnavailable() {
     super.databaseUnavailable();
-    this.mImportButton.setEnabled(Tables.getInstance().getDatabase() != null);
+    updateButtons();
   }
 
   /**
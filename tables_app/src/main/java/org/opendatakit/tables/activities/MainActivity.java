@@ -24,10 +24,15 @@ import androidx.fragment.app.FragmentTransaction;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.widget.ImageView;
 import android.widget.Toast;
 import org.opendatakit.activities.IInitResumeActivity;
 import org.opendatakit.consts.IntentConsts;
@@ -49,6 +54,8 @@ import org.opendatakit.tables.fragments.WebFragment;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
 import org.opendatakit.tables.utils.SQLQueryStruct;
+import org.opendatakit.tables.views.webkits.OdkTablesWebView;
+import org.opendatakit.tables.views.webkits.WebViewSnapshot;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ODKWebView;
 import org.opendatakit.views.OdkData;
@@ -56,6 +63,7 @@ import org.opendatakit.webkitserver.utilities.UrlUtils;
 
 import java.io.File;
 import java.util.Collections;
+import java.util.regex.Pattern;
 
 /**
  * The main activity for ODK Tables. It serves primarily as a holder for fragments.
@@ -63,7 +71,7 @@ import java.util.Collections;
  * @author sudar.sam@gmail.com
  */
 public class MainActivity extends AbsBaseWebActivity
-    implements DatabaseConnectionListener, IInitResumeActivity {
+    implements DatabaseConnectionListener, IInitResumeActivity, WebFragment.PreloadedViewSource {
 
   public interface UXNotifyListener
   {
@@ -74,6 +82,11 @@ public class MainActivity extends AbsBaseWebActivity
   private static final String TAG = MainActivity.class.getSimpleName();
   private static final String CURRENT_FRAGMENT = "currentFragment";
   private static final String QUERY_START_PARAM = "?";
+  private static final Pattern QUERY_SPLIT = Pattern.compile(Pattern.quote(QUERY_START_PARAM));
+  /**
+   * The longest the last picture of the home screen is shown while the live one loads
+   */
+  private static final long SNAPSHOT_TIMEOUT_MS = 5000;
   /**
    * The active screen -- retained state
    */
@@ -85,11 +98,72 @@ public class MainActivity extends AbsBaseWebActivity
    */
   private ScreenType lastMenuType = null;
   private PropertiesSingleton mPropSingleton;
+  /**
+   * The url of webFileToDisplay, worked out the first time it is needed
+   */
+  private String homeScreenUrl = null;
+  /**
+   * The home screen's web_view_container, loading the page before the WebFragment is made
+   */
+  private View preloadedHomeView = null;
+  /**
+   * Shows the last picture of the home screen until the live page has drawn
+   */
+  private ImageView snapshotView = null;
+
+  private final Runnable hideSnapshot = new Runnable() {
+    @Override
+    public void run() {
+      if (snapshotView != null) {
+        snapshotView.removeCallbacks(this);
+        WebViewSnapshot.clear(snapshotView);
+      }
+    }
+  };
+
+  private final OdkTablesWebView.PageListener homePageListener =
+      new OdkTablesWebView.PageListener() {
+    @Override
+    public void onPageFinished(OdkTablesWebView view, String url) {
+      if (url == null || "about:blank".equals(url)) {
+        return;
+      }
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        // wait for the page to be drawn, not just loaded
+        view.postVisualStateCallback(0, new WebView.VisualStateCallback() {
+          @Override
+          public void onComplete(long requestId) {
+            hideSnapshot.run();
+          }
+        });
+      } else {
+        hideSnapshot.run();
+      }
+    }
+  };
 
   private static String[] checkForQueryParameter(File webFile) {
-    String webFileToDisplayPath = webFile.getPath();
-    //noinspection DynamicRegexReplaceableByCompiledPattern
-    return webFileToDisplayPath.split("[" + QUERY_START_PARAM + "]", 2);
+    return QUERY_SPLIT.split(webFile.getPath(), 2);
+  }
+
+  /**
+   * @return the url of webFileToDisplay, with its query string if it has one, or null if
+   * there is no home screen
+   */
+  private String getHomeScreenUrl() {
+    if (homeScreenUrl == null && webFileToDisplay != null) {
+      // Split off query parameter if it exists
+      String[] webFileStrs = checkForQueryParameter(webFileToDisplay);
+      if (webFileStrs.length > 1) {
+        String filename = ODKFileUtils.asRelativePath(mAppName, new File(webFileStrs[0]));
+        homeScreenUrl = UrlUtils.getAsWebViewUri(getAppName(),
+            filename.concat(QUERY_START_PARAM).concat(webFileStrs[1]));
+      } else {
+        homeScreenUrl = UrlUtils
+            .getAsWebViewUri(getAppName(), ODKFileUtils.asRelativePath(mAppName, webFileToDisplay));
+      }
+    }
+    return homeScreenUrl;
   }
 
   /**
@@ -128,22 +202,7 @@ public class MainActivity extends AbsBaseWebActivity
       FragmentManager mgr = this.getSupportFragmentManager();
       Fragment newFragment = mgr.findFragmentByTag(activeScreenType.name());
       if (newFragment != null && webFileToDisplay != null) {
-        // Split off query parameter if it exists
-        String[] webFileStrs = checkForQueryParameter(webFileToDisplay);
-        String filename;
-        if (webFileStrs.length > 1) {
-          File webFile = new File(webFileStrs[0]);
-          filename = ODKFileUtils.asRelativePath(mAppName, webFile);
-        } else {
-          filename = ODKFileUtils.asRelativePath(mAppName, webFileToDisplay);
-        }
-
-        if (webFileStrs.length > 1) {
-          return UrlUtils.getAsWebViewUri(getAppName(),
-              filename.concat(QUERY_START_PARAM).concat(webFileStrs[1]));
-        } else {
-          return UrlUtils.getAsWebViewUri(getAppName(), filename);
-        }
+        return getHomeScreenUrl();
       }
     }
     return null;
@@ -155,6 +214,12 @@ public class MainActivity extends AbsBaseWebActivity
     return null;
   }
 
+  @Override
+  public int[] getDistanceRankedIndexes() {
+    // never a map view -- nothing ranked
+    return null;
+  }
+
   /**
    * If the app is configured to use a home screen, then load that home screen in a webview.
    * Otherwise, if we're restoring from a saved state, set the active screen type to the screen
@@ -180,6 +245,63 @@ public class MainActivity extends AbsBaseWebActivity
           activeScreenType.name());
     }
     mPropSingleton = CommonToolProperties.get( this ,mAppName);
+
+    snapshotView = (ImageView) findViewById(R.id.activity_main_activity_snapshot);
+    if (activeScreenType == ScreenType.WEBVIEW_SCREEN && webFileToDisplay != null) {
+      preloadHomeScreen();
+    }
+  }
+
+  /**
+   * Starts making the home screen's web view and loading its page now, alongside any
+   * initialization, rather than once the WebFragment is shown. If no initialization is due,
+   * the last picture of the home screen is shown until the page has drawn.
+   */
+  private void preloadHomeScreen() {
+    String url = getHomeScreenUrl();
+    ViewGroup container = (ViewGroup) findViewById(R.id.activity_main_activity);
+    preloadedHomeView = getLayoutInflater()
+        .inflate(R.layout.web_view_container, container, false);
+    OdkTablesWebView webView = (OdkTablesWebView) preloadedHomeView.findViewById(R.id.webkit);
+    webView.setPageListener(homePageListener);
+    webView.preloadPage(url);
+
+    if (!Tables.getInstance().shouldRunInitializationTask(getAppName())) {
+      WebViewSnapshot.show(getSnapshotFile(url), snapshotView);
+      snapshotView.postDelayed(hideSnapshot, SNAPSHOT_TIMEOUT_MS);
+    }
+  }
+
+  /**
+   * Drops the preloaded home screen if the WebFragment has not taken it
+   */
+  private void discardPreloadedHomeScreen() {
+    if (preloadedHomeView != null) {
+      ((OdkTablesWebView) preloadedHomeView.findViewById(R.id.webkit)).destroy();
+      preloadedHomeView = null;
+    }
+    hideSnapshot.run();
+  }
+
+  private File getSnapshotFile(String url) {
+    return WebViewSnapshot
+        .fileFor(this, getAppName(), url, getResources().getConfiguration().orientation);
+  }
+
+  /**
+   * Only hands over the preloaded home screen to be shown, not to a WebFragment that is made
+   * and put on the back stack while the initialization screen is shown
+   *
+   * @return the preloaded home screen, or null
+   */
+  @Override
+  public View takePreloadedView() {
+    if (activeScreenType != ScreenType.WEBVIEW_SCREEN) {
+      return null;
+    }
+    View view = preloadedHomeView;
+    preloadedHomeView = null;
+    return view;
   }
 
   @Override
@@ -216,6 +338,25 @@ public class MainActivity extends AbsBaseWebActivity
     swapScreens(activeScreenType);
   }
 
+  /**
+   * Keeps a picture of the home screen to show while it loads on the next start
+   */
+  @Override
+  protected void onStop() {
+    ODKWebView webView = getWebKitView(null);
+    if (webView != null && webView.getProgress() == 100
+        && snapshotView.getVisibility() != View.VISIBLE && getHomeScreenUrl() != null) {
+      WebViewSnapshot.save(webView, getAppName(), getSnapshotFile(getHomeScreenUrl()));
+    }
+    super.onStop();
+  }
+
+  @Override
+  protected void onDestroy() {
+    discardPreloadedHomeScreen();
+    super.onDestroy();
+  }
+
   /**
    * Retrieve the app-relative file name from either the saved instance state or the
    * {@link Intent} that was used to create the activity.
@@ -278,6 +419,11 @@ public class MainActivity extends AbsBaseWebActivity
 
     if ((newHome == null && webFileToDisplay == null) ||
             (newHome != null && webFileToDisplay != null)) {
+      if (preloadedHomeView != null) {
+        // it started loading before initialization, which may have changed its files
+        ((OdkTablesWebView) preloadedHomeView.findViewById(R.id.webkit))
+            .setForceLoadDuringReload();
+      }
       // no change to existence of custom home, return to the previous fragment
       popBackStack();
     } else {
@@ -285,6 +431,8 @@ public class MainActivity extends AbsBaseWebActivity
       // swap to table manager if custom home was removed
 
       webFileToDisplay = newHome;
+      homeScreenUrl = null;
+      discardPreloadedHomeScreen();
       // immediate because swapScreens operates on the back stack
       getSupportFragmentManager().popBackStackImmediate(
               null, FragmentManager.POP_BACK_STACK_INCLUSIVE);
@@ -319,6 +467,9 @@ public class MainActivity extends AbsBaseWebActivity
     FragmentManager mgr = this.getSupportFragmentManager();
     FragmentTransaction trans = null;
     Fragment newFragment;
+    if (newScreenType != ScreenType.WEBVIEW_SCREEN) {
+      hideSnapshot.run();
+    }
     switch (newScreenType) {
     case TABLE_MANAGER_SCREEN:
       newFragment = mgr.findFragmentByTag(newScreenType.name());
@@ -458,6 +609,9 @@ public class MainActivity extends AbsBaseWebActivity
     case R.id.menu_table_about:
       swapScreens(ScreenType.ABOUT_SCREEN);
       return true;
+    case R.id.menu_web_bridge_timings:
+      showBridgeTimings();
+      return true;
     case R.id.menu_table_manager_preferences:
       Intent preferenceIntent = new Intent();
       preferenceIntent.setComponent(new ComponentName(IntentConsts.AppProperties.APPLICATION_NAME,
@@ -33,6 +33,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.consts.RequestCodeConsts;
 import org.opendatakit.data.utilities.TableUtil;
@@ -48,30 +50,47 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.listener.DatabaseConnectionListener;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.MapPointsCache;
 import org.opendatakit.tables.data.PossibleTableViewTypes;
+import org.opendatakit.tables.data.TableRevision;
 import org.opendatakit.tables.data.ViewFragmentType;
 import org.opendatakit.tables.fragments.DetailViewFragment;
 import org.opendatakit.tables.fragments.DetailWithListDetailViewFragment;
 import org.opendatakit.tables.fragments.DetailWithListListViewFragment;
 import org.opendatakit.tables.fragments.IWebFragment;
+import org.opendatakit.tables.fragments.ImportExportDialogFragment;
 import org.opendatakit.tables.fragments.ListViewFragment;
 import org.opendatakit.tables.fragments.MapListViewFragment;
 import org.opendatakit.tables.fragments.NavigateFragment;
 import org.opendatakit.tables.fragments.SpreadsheetFragment;
 import org.opendatakit.tables.fragments.TableMapInnerFragment;
 import org.opendatakit.tables.fragments.TableMapInnerFragment.TableMapInnerFragmentListener;
+import org.opendatakit.tables.fragments.TableScatterMapFragment;
+import org.opendatakit.tables.tasks.ExportRequest;
+import org.opendatakit.tables.tasks.ExportTask;
 import org.opendatakit.tables.utils.ActivityUtil;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
 import org.opendatakit.tables.utils.SQLQueryStruct;
 import org.opendatakit.tables.views.SpreadsheetProps;
+import org.opendatakit.tables.views.webkits.OdkTablesWebViewPool;
+import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.RuntimePermissionUtils;
 import org.opendatakit.views.ODKWebView;
 import org.opendatakit.views.OdkData;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
 
+import java.io.File;
 import java.lang.reflect.Array;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Displays information about a table. List, Map, and Detail views are all
@@ -98,7 +117,8 @@ import java.util.List;
  */
 public class TableDisplayActivity extends AbsBaseWebActivity
     implements TableMapInnerFragmentListener, IOdkTablesActivity, DatabaseConnectionListener,
-    ISpreadsheetFragmentContainer, ActivityCompat.OnRequestPermissionsResultCallback {
+    ISpreadsheetFragmentContainer, ActivityCompat.OnRequestPermissionsResultCallback,
+    OdkTablesWebViewPool.Provider {
 
   /**
    * Key for saving current view type to the saved instance state
@@ -116,6 +136,14 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * Key for saving the sql query to the saved instance state
    */
   public static final String INTENT_KEY_QUERIES = "queries";
+  /**
+   * Key for saving the arguments of the sub list query to the saved instance state
+   */
+  public static final String INTENT_KEY_SUB_LIST_ARGS = "subListArgs";
+  /**
+   * Key for saving whether the map list is ordered by distance to the saved instance state
+   */
+  public static final String INTENT_KEY_SORT_BY_DISTANCE = "sortByDistance";
   /**
    * Used for logging
    */
@@ -129,6 +157,11 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * viewID.
    */
   ResumableQuery[] mQueries;
+  /**
+   * The arguments mQueries[1] was made from, so that the detail view asking for the sub list
+   * it already shows does not rebuild it
+   */
+  private Bundle mSubListArgs = null;
   /**
    * The activity destroys and creates a new SpreadsheetFragment every time it gets created, an
    * activity returns or the database becomes available, so we can't store props in the
@@ -156,6 +189,30 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   private UserTable mUserTable = null;
   private boolean pullFromDatabase;
   private String mDefaultRowId;
+  /**
+   * Whether the map list view is ordered by distance from the current location. Kept here
+   * because the map list fragment is recreated whenever the data is refreshed.
+   */
+  private boolean mSortByDistance = false;
+  /**
+   * Lends web views to the list, detail and map list fragments, null once destroyed
+   */
+  private OdkTablesWebViewPool webViewPool = null;
+  /**
+   * The {@link TableRevision} of the data the fragments were last built from, null if it
+   * could not be read
+   */
+  private String mDataRevision = null;
+  /**
+   * The revision each fragment was built at, by fragment tag. A hidden fragment built at an
+   * older revision is rebuilt when it is shown again rather than showing stale data.
+   */
+  private final Map<String, String> mFragmentRevisions = new HashMap<>();
+  /**
+   * Set when returning from an activity that edits the table's properties, so that every
+   * fragment is rebuilt once the database is available again
+   */
+  private boolean mRebuildOnDatabaseAvailable = false;
 
   /**
    * Casts an array of objects from Parcelable to a given class that extends Parcelable..
@@ -200,6 +257,9 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    // the list, detail and map list fragments borrow their web views from here, the
+    // pool is only warmed once one of them is about to be shown
+    webViewPool = new OdkTablesWebViewPool(this, getAppName());
     // If we don't remove all fragments, we get the bug where if you go to a list view, then
     // switch to a spreadsheet view, then rotate the screen and switch back to list, the list
     // view never loads
@@ -210,6 +270,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       if (savedInstanceState.containsKey("props")) {
         props = savedInstanceState.getParcelable("props");
       }
+      mSortByDistance = savedInstanceState.getBoolean(INTENT_KEY_SORT_BY_DISTANCE, false);
     } else {
       Bundle extras = getIntentExtras();
       if (extras.containsKey(Constants.IntentKeys.CONTAINS_PROPS)) {
@@ -257,6 +318,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
           savedInstanceState.getParcelableArray(INTENT_KEY_QUERIES) :
           null;
       mQueries = castParcelableArray(ResumableQuery.class, parcArr);
+      mSubListArgs = savedInstanceState.getBundle(INTENT_KEY_SUB_LIST_ARGS);
     }
 
     if (mOriginalFragmentType == null) {
@@ -320,6 +382,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
           savedInstanceState.getParcelableArray(INTENT_KEY_QUERIES) :
           null;
       mQueries = castParcelableArray(ResumableQuery.class, parcArr);
+      mSubListArgs = savedInstanceState.getBundle(INTENT_KEY_SUB_LIST_ARGS);
     }
   }
 
@@ -374,6 +437,14 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     }
 
     mQueries[0] = viewDataQuery;
+
+    Bundle subListArgs = IntentUtil.retrieveSubListFromBundle(args);
+    if (subListArgs != null && mQueries[1] == null) {
+      // given up front, so the sub list is built and queried alongside the detail view rather
+      // than after the detail view has loaded and called setSubListView
+      mQueries[1] = readSubListQuery(subListArgs);
+      mSubListArgs = subListArgs;
+    }
   }
 
   /**
@@ -405,11 +476,16 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     if (mQueries != null) {
       outState.putParcelableArray(INTENT_KEY_QUERIES, mQueries);
     }
+    if (mSubListArgs != null) {
+      outState.putBundle(INTENT_KEY_SUB_LIST_ARGS, mSubListArgs);
+    }
     outState.putParcelable("props", props);
+    outState.putBoolean(INTENT_KEY_SORT_BY_DISTANCE, mSortByDistance);
   }
 
   /**
-   * Do nothing if the database goes away
+   * Nothing to do, the data is checked for changes (e.g. by a sync) when the database
+   * comes back
    */
   @Override
   public void databaseUnavailable() {
@@ -436,7 +512,14 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         WebLogger.getLogger(getAppName()).printStackTrace(e);
       }
     }
-    showCurrentDisplayFragment(true);
+    if (mRebuildOnDatabaseAvailable) {
+      mRebuildOnDatabaseAvailable = false;
+      refreshDataAndDisplayFragment();
+    } else {
+      // keep the fragments that have been built if the data has not changed while the
+      // database was away
+      refreshIfDataChanged();
+    }
   }
 
   /**
@@ -475,31 +558,11 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * @return the UserTable pulled from tables
    */
   public UserTable getUserTable() {
-    String[] emptyArray = {};
     if (mUserTable == null) {
       DbHandle db = null;
       try {
         db = getDatabase().openDatabase(getAppName());
-        SQLQueryStruct sqlQueryStruct = IntentUtil
-            .getSQLQueryStructFromBundle(this.getIntent().getExtras());
-
-        if (getIntentExtras().containsKey("inCollection")) {
-          sqlQueryStruct.groupBy = null;
-        } else {
-          sqlQueryStruct.groupBy = props.getGroupBy();
-        }
-
-        sqlQueryStruct.orderByElementKey = props.getSort();
-        sqlQueryStruct.orderByDirection = props.getSortOrder();
-
-        mUserTable = getDatabase()
-            .simpleQuery(this.getAppName(), db, this.getTableId(), getColumnDefinitions(),
-                sqlQueryStruct.whereClause, sqlQueryStruct.selectionArgs,
-                sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
-                sqlQueryStruct.having,
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey),
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection),
-                null, null);
+        mUserTable = readUserTable(db);
       } catch (ServicesAvailabilityException e) {
         WebLogger.getLogger(getAppName()).printStackTrace(e);
       } finally {
@@ -516,6 +579,38 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     return mUserTable;
   }
 
+  /**
+   * Queries the rows that {@link #getUserTable()} holds, without keeping them, so that it
+   * can be called off the main thread
+   *
+   * @param db an open database handle
+   * @return the rows of the table, in the order they are displayed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public UserTable readUserTable(DbHandle db) throws ServicesAvailabilityException {
+    String[] emptyArray = {};
+    SQLQueryStruct sqlQueryStruct = IntentUtil
+        .getSQLQueryStructFromBundle(this.getIntent().getExtras());
+
+    if (getIntentExtras().containsKey("inCollection")) {
+      sqlQueryStruct.groupBy = null;
+    } else {
+      sqlQueryStruct.groupBy = props.getGroupBy();
+    }
+
+    sqlQueryStruct.orderByElementKey = props.getSort();
+    sqlQueryStruct.orderByDirection = props.getSortOrder();
+
+    return getDatabase()
+        .simpleQuery(this.getAppName(), db, this.getTableId(), getColumnDefinitions(),
+            sqlQueryStruct.whereClause, sqlQueryStruct.selectionArgs,
+            sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
+            sqlQueryStruct.having,
+            QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey),
+            QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection),
+            null, null);
+  }
+
   /**
    * If we're on a list view, pull the filename that the list view is using, otherwise return the
    * filename if possible, or null if neither of those are set
@@ -568,6 +663,24 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     return null;
   }
 
+  /**
+   * Forwards the request to the map list fragment if it is ordering rows by distance
+   *
+   * @return the indexes of the rows nearest the current location, or null if not ordering by
+   * distance
+   */
+  @Override
+  public int[] getDistanceRankedIndexes() {
+    if (mCurrentFragmentType == ViewFragmentType.MAP) {
+      MapListViewFragment mlvFragment = (MapListViewFragment) this.getSupportFragmentManager()
+          .findFragmentByTag(Constants.FragmentTags.MAP_LIST);
+      if (mlvFragment != null && mlvFragment.isVisible()) {
+        return mlvFragment.getDistanceRankedIndexes();
+      }
+    }
+    return null;
+  }
+
   /**
    * Gets the instance id from the intent's extras bundle if we're in a detail or detail with
    * list view, otherwise returns null because we can't get an instance id from a map view
@@ -593,10 +706,35 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   protected void onDestroy() {
     super.onDestroy();
     this.destroyed = true;
+    if (webViewPool != null) {
+      webViewPool.destroy();
+      webViewPool = null;
+    }
     WebLogger.getLogger(getAppName()).d(TAG, "[onDestroy]");
   }
   private boolean destroyed = false;
 
+  /**
+   * Drops the spare web views when the system is running low on memory
+   *
+   * @param level how low memory is
+   */
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (webViewPool != null && level >= TRIM_MEMORY_RUNNING_LOW) {
+      webViewPool.trim();
+    }
+  }
+
+  /**
+   * @return the pool of web views for the list, detail and map list fragments
+   */
+  @Override
+  public OdkTablesWebViewPool getWebViewPool() {
+    return webViewPool;
+  }
+
   /**
    * Gets the webkit object out of the fragment if we're in a list, map, detail or detail with
    * list/sublist fragment, but not if we're in a spreadsheet or navigate fragment
@@ -685,6 +823,12 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       MenuItem listItem = menu.findItem(R.id.top_level_table_menu_view_list_view);
       MenuItem mapItem = menu.findItem(R.id.top_level_table_menu_view_map_view);
       MenuItem navigateItem = menu.findItem(R.id.top_level_table_menu_view_navigate_view);
+      MenuItem sortByDistanceItem = menu.findItem(R.id.top_level_table_menu_sort_by_distance);
+      sortByDistanceItem.setVisible(mCurrentFragmentType == ViewFragmentType.MAP);
+      sortByDistanceItem.setChecked(mSortByDistance);
+      menu.findItem(R.id.top_level_table_menu_export_view).setVisible(
+          mCurrentFragmentType == ViewFragmentType.SPREADSHEET
+              || mCurrentFragmentType == ViewFragmentType.LIST);
       spreadsheetItem.setEnabled(true); // always possible
       listItem.setEnabled(
           mPossibleTableViewTypes != null && mPossibleTableViewTypes.listViewIsPossible());
@@ -754,6 +898,21 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     case R.id.top_level_table_menu_view_navigate_view:
       setCurrentFragmentType(ViewFragmentType.NAVIGATE, filename, null);
       return true;
+    case R.id.top_level_table_menu_sort_by_distance:
+      mSortByDistance = !mSortByDistance;
+      item.setChecked(mSortByDistance);
+      MapListViewFragment sortedFragment = (MapListViewFragment) getSupportFragmentManager()
+          .findFragmentByTag(Constants.FragmentTags.MAP_LIST);
+      if (sortedFragment != null) {
+        sortedFragment.setSortByDistance(mSortByDistance);
+      }
+      return true;
+    case R.id.top_level_table_menu_export_view:
+      exportCurrentView();
+      return true;
+    case R.id.menu_web_bridge_timings:
+      showBridgeTimings();
+      return true;
     case R.id.top_level_table_menu_add:
       WebLogger.getLogger(getAppName()).d(TAG, "[onOptionsItemSelected] add selected");
       try {
@@ -832,17 +991,29 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         props = data.getParcelableExtra("props");
         props.setActivity(this);
       }
-      // This fallthrough is on purpose, we need to refresh because props (may have) changed
-    case RequestCodeConsts.RequestCodes.ADD_ROW_SURVEY:
-    case RequestCodeConsts.RequestCodes.EDIT_ROW_SURVEY:
       try {
-        // verify that the data table doesn't contain checkpoints...
         // always refresh, as table properties may have done something
         refreshDataAndDisplayFragment();
       } catch (IllegalStateException e) {
         WebLogger.getLogger(getAppName()).printStackTrace(e);
       }
       break;
+    case RequestCodeConsts.RequestCodes.LAUNCH_TABLE_PREFS:
+    case RequestCodeConsts.RequestCodes.LAUNCH_COLOR_RULE_LIST:
+    case RequestCodeConsts.RequestCodes.LAUNCH_DISPLAY_PREFS:
+      // the view files, color rules or map settings may have changed
+      mRebuildOnDatabaseAvailable = true;
+      super.onActivityResult(requestCode, resultCode, data);
+      break;
+    case RequestCodeConsts.RequestCodes.ADD_ROW_SURVEY:
+    case RequestCodeConsts.RequestCodes.EDIT_ROW_SURVEY:
+      try {
+        // only rebuild the views if a row was actually saved, not if the edit was cancelled
+        refreshIfDataChanged();
+      } catch (IllegalStateException e) {
+        WebLogger.getLogger(getAppName()).printStackTrace(e);
+      }
+      break;
     default:
       super.onActivityResult(requestCode, resultCode, data);
     }
@@ -852,14 +1023,95 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * Destroys the data in the current table, destroys the current fragment and recreates it
    */
   public void refreshDataAndDisplayFragment() {
+    refreshDataAndDisplayFragment(readDataRevision());
+  }
+
+  /**
+   * Destroys the data in the current table, destroys the current fragment and recreates it
+   *
+   * @param revision the revision of the data the fragments are rebuilt from
+   */
+  private void refreshDataAndDisplayFragment(String revision) {
     WebLogger.getLogger(getAppName()).d(TAG, "refreshDataAndDisplayFragment called");
+    mDataRevision = revision;
+    // the hidden fragments are rebuilt when they are next shown
+    mFragmentRevisions.clear();
     // drop cached table, if any...
     mUserTable = null;
+    // and the distance ranking built from it
+    MapListViewFragment mapListViewFragment = (MapListViewFragment) getSupportFragmentManager()
+        .findFragmentByTag(Constants.FragmentTags.MAP_LIST);
+    if (mapListViewFragment != null) {
+      mapListViewFragment.invalidateDistanceRanking();
+    }
     // drop default filenames...
     mPossibleTableViewTypes = null;
+    // and the parsed map locations
+    MapPointsCache.get(this).invalidate();
     showCurrentDisplayFragment(true);
   }
 
+  /**
+   * Shows the current fragment, destroying the data and the fragments built from it first if
+   * the table's rows have changed since they were built
+   */
+  private void refreshIfDataChanged() {
+    String revision = readDataRevision();
+    if (revision != null && revision.equals(mDataRevision)) {
+      showCurrentDisplayFragment(false);
+    } else {
+      refreshDataAndDisplayFragment(revision);
+    }
+  }
+
+  /**
+   * @return the revision of the table's data and properties and of the files of the views
+   * being shown, or null if the database could not be read
+   */
+  private String readDataRevision() {
+    UserDbInterface dbInterface = getDatabase();
+    if (dbInterface == null) {
+      return null;
+    }
+    try {
+      String revision = TableRevision.read(dbInterface, getAppName(), getTableId());
+      if (revision == null) {
+        return null;
+      }
+      File appFolder = new File(ODKFileUtils.getAppFolder(getAppName()));
+      for (String fileName : new String[] { mCurrentFileName, mCurrentSubFileName }) {
+        // an edited view file is loaded again
+        revision += "/" + (fileName == null ? 0 : new File(appFolder, fileName).lastModified());
+      }
+      return revision;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      return null;
+    }
+  }
+
+  /**
+   * Whether a fragment has to be built, rather than an existing one shown
+   *
+   * @param fragment  the existing fragment, or null if there is none
+   * @param tag       the fragment's tag
+   * @param createNew whether every fragment is being rebuilt
+   */
+  private boolean needsRebuild(Fragment fragment, String tag, boolean createNew) {
+    if (fragment == null || createNew) {
+      return true;
+    }
+    // built before the data changed, only known if the revision could be read
+    return mDataRevision != null && !mDataRevision.equals(mFragmentRevisions.get(tag));
+  }
+
+  /**
+   * Records that a fragment is being built from the current data
+   */
+  private void markBuilt(String tag) {
+    mFragmentRevisions.put(tag, mDataRevision);
+  }
+
   /**
    * Set the current type of fragment that is being displayed.
    * Called when mocking interface.
@@ -945,6 +1197,19 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     }
   }
 
+  /**
+   * Whether the fragments of a view type borrow web views from the pool, the
+   * spreadsheet does not
+   *
+   * @param type the view type to be shown
+   * @return true for list, map and detail views
+   */
+  private static boolean usesWebView(ViewFragmentType type) {
+    return type == ViewFragmentType.LIST || type == ViewFragmentType.MAP
+        || type == ViewFragmentType.DETAIL || type == ViewFragmentType.DETAIL_WITH_LIST
+        || type == ViewFragmentType.SUB_LIST;
+  }
+
   /**
    * Initialize the correct display fragment based on the result of
    * {@link #retrieveTableIdFromIntent()}. Initializes Spreadsheet if none is
@@ -953,6 +1218,9 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   @SuppressWarnings("ConstantConditions") // too complex to analyze
   private void showCurrentDisplayFragment(boolean createNew) {
     possiblySupplyDefaults();
+    if (webViewPool != null && usesWebView(mCurrentFragmentType)) {
+      webViewPool.prewarm();
+    }
     updateChildViewVisibility(mCurrentFragmentType);
     FragmentManager fragmentManager = this.getSupportFragmentManager();
     FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
@@ -1011,7 +1279,8 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     // and enable, or delete and re-create, the fragment that we want to display
     switch (mCurrentFragmentType) {
     case SPREADSHEET:
-      if (spreadsheetFragment == null || createNew) {
+      if (needsRebuild(spreadsheetFragment, mCurrentFragmentType.name(), createNew)) {
+        markBuilt(mCurrentFragmentType.name());
         if (spreadsheetFragment != null) {
           WebLogger.getLogger(getAppName())
               .d(TAG, "[showSpreadsheetFragment] removing existing fragment");
@@ -1027,7 +1296,8 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       }
       break;
     case DETAIL:
-      if (detailViewFragment == null || createNew) {
+      if (needsRebuild(detailViewFragment, mCurrentFragmentType.name(), createNew)) {
+        markBuilt(mCurrentFragmentType.name());
         if (detailViewFragment != null) {
           WebLogger.getLogger(getAppName())
               .d(TAG, "[showDetailViewFragment] removing existing fragment");
@@ -1044,7 +1314,9 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       break;
     case SUB_LIST:
     case DETAIL_WITH_LIST:
-      if (detailWithListViewDetailFragment == null || createNew) {
+      if (needsRebuild(detailWithListViewDetailFragment,
+          Constants.FragmentTags.DETAIL_WITH_LIST_DETAIL, createNew)) {
+        markBuilt(Constants.FragmentTags.DETAIL_WITH_LIST_DETAIL);
         if (detailWithListViewDetailFragment != null) {
           // remove the old fragment
           WebLogger.getLogger(getAppName())
@@ -1057,7 +1329,9 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       } else {
         fragmentTransaction.show(detailWithListViewDetailFragment);
       }
-      if (detailWithListViewListFragment == null || createNew) {
+      if (needsRebuild(detailWithListViewListFragment,
+          Constants.FragmentTags.DETAIL_WITH_LIST_LIST, createNew)) {
+        markBuilt(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
         if (detailWithListViewListFragment != null) {
           // remove the old fragment
           WebLogger.getLogger(getAppName())
@@ -1072,7 +1346,8 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       }
       break;
     case LIST:
-      if (listViewFragment == null || createNew) {
+      if (needsRebuild(listViewFragment, mCurrentFragmentType.name(), createNew)) {
+        markBuilt(mCurrentFragmentType.name());
         if (listViewFragment != null) {
           // remove the old fragment
           WebLogger.getLogger(getAppName()).d(TAG, "[showListFragment] removing old list fragment");
@@ -1087,33 +1362,26 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       }
       break;
     case MAP:
-      if (mapListViewFragment == null || createNew) {
+      if (needsRebuild(mapListViewFragment, Constants.FragmentTags.MAP_LIST, createNew)) {
+        markBuilt(Constants.FragmentTags.MAP_LIST);
         if (mapListViewFragment != null) {
           // remove the old fragment
           WebLogger.getLogger(getAppName())
               .d(TAG, "[showMapFragment] removing old map list fragment");
           fragmentTransaction.remove(mapListViewFragment);
         }
-        mapListViewFragment = new MapListViewFragment();
+        mapListViewFragment = MapListViewFragment.newInstance(mSortByDistance);
         fragmentTransaction
             .add(R.id.map_view_list, mapListViewFragment, Constants.FragmentTags.MAP_LIST);
       } else {
         fragmentTransaction.show(mapListViewFragment);
       }
-      // Always destroy and recreate inner map fragment
-      if (innerMapFragment != null) {
-        // remove the old fragment
-        WebLogger.getLogger(getAppName())
-            .d(TAG, "[showMapFragment] removing old inner map fragment");
-        fragmentTransaction.remove(innerMapFragment);
-      }
-      innerMapFragment = new TableMapInnerFragment();
-      fragmentTransaction
-          .add(R.id.map_view_inner_map, innerMapFragment, Constants.FragmentTags.MAP_INNER_MAP);
-      ((TableMapInnerFragment) innerMapFragment).listener = this;
+      showInnerMapFragment(fragmentTransaction, innerMapFragment, R.id.map_view_inner_map,
+          createNew);
       break;
     case NAVIGATE:
-      if (navigateFragment == null || createNew) {
+      if (needsRebuild(navigateFragment, Constants.FragmentTags.NAVIGATE, createNew)) {
+        markBuilt(Constants.FragmentTags.NAVIGATE);
         if (navigateFragment != null) {
           // remove the old fragment
           WebLogger.getLogger(getAppName())
@@ -1126,19 +1394,8 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       } else {
         fragmentTransaction.show(navigateFragment);
       }
-      // Always destroy and recreate inner map fragment
-      if (innerMapFragment != null) {
-        // remove the old fragment
-        WebLogger.getLogger(getAppName())
-            .d(TAG, "[showNavigateFragment] removing old inner map fragment");
-        fragmentTransaction.remove(innerMapFragment);
-      }
-      innerMapFragment = new TableMapInnerFragment();
-      fragmentTransaction
-          .add(R.id.navigate_view_inner_map, innerMapFragment, Constants.FragmentTags
-              .MAP_INNER_MAP);
-      ((TableMapInnerFragment) innerMapFragment).listener = this;
-
+      showInnerMapFragment(fragmentTransaction, innerMapFragment, R.id.navigate_view_inner_map,
+          createNew);
       break;
     }
     fragmentTransaction.commit();
@@ -1146,6 +1403,33 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     invalidateOptionsMenu();
   }
 
+  /**
+   * Shows the map shared by the map and navigate views, rebuilding it if it is in the other
+   * view's pane or was built from older data
+   *
+   * @param fragmentTransaction the transaction showing the current view
+   * @param innerMapFragment    the existing map fragment, or null if there is none
+   * @param containerId         the pane the map goes in
+   * @param createNew           whether every fragment is being rebuilt
+   */
+  private void showInnerMapFragment(FragmentTransaction fragmentTransaction,
+      Fragment innerMapFragment, int containerId, boolean createNew) {
+    if (!needsRebuild(innerMapFragment, Constants.FragmentTags.MAP_INNER_MAP, createNew)
+        && innerMapFragment.getId() == containerId) {
+      fragmentTransaction.show(innerMapFragment);
+      return;
+    }
+    if (innerMapFragment != null) {
+      // remove the old fragment
+      WebLogger.getLogger(getAppName())
+          .d(TAG, "[showInnerMapFragment] removing old inner map fragment");
+      fragmentTransaction.remove(innerMapFragment);
+    }
+    markBuilt(Constants.FragmentTags.MAP_INNER_MAP);
+    fragmentTransaction
+        .add(containerId, newInnerMapFragment(), Constants.FragmentTags.MAP_INNER_MAP);
+  }
+
   /**
    * Gives new arguments to an existing fragment
    *
@@ -1166,6 +1450,50 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       return;
     }
 
+    FragmentManager fragmentManager = this.getSupportFragmentManager();
+    Fragment detailWithListViewListFragment = fragmentManager
+        .findFragmentByTag(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
+
+    if (detailWithListViewListFragment != null && sameSubList(mSubListArgs, args)) {
+      // the sub list was given up front and has been loading alongside the detail view
+      WebLogger.getLogger(getAppName())
+          .d(TAG, "[updateFragment] sub list already shows this query, keeping it");
+      return;
+    }
+
+    mQueries[1] = readSubListQuery(args);
+    mSubListArgs = args;
+
+    FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
+
+    if (detailWithListViewListFragment != null) {
+      // remove the old fragment
+      WebLogger.getLogger(getAppName())
+          .d(TAG, "[showDetailWithListFragment] removing old list " + "fragment");
+      fragmentTransaction.remove(detailWithListViewListFragment);
+    }
+    markBuilt(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
+    detailWithListViewListFragment = new DetailWithListListViewFragment();
+    fragmentTransaction.add(R.id.bottom_pane, detailWithListViewListFragment,
+        Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
+    // So android studio seems to think our build target is already greater than 16, but gradle doesn't
+    boolean destroyed = this.destroyed;
+    if (Build.VERSION.SDK_INT >= 17) {
+      destroyed |= isDestroyed();
+    }
+    if (!destroyed) {
+      fragmentTransaction.commit();
+    }
+  }
+
+  /**
+   * Makes the query of a sub list from its arguments and takes the sub list's file name
+   *
+   * @param args the arguments given to {@link #updateFragment(String, Bundle)} or pulled from
+   *             the intent
+   * @return the query to populate the sub list with
+   */
+  private ResumableQuery readSubListQuery(Bundle args) {
     String queryType = IntentUtil.retrieveQueryTypeFromBundle(args);
     ResumableQuery viewDataQuery;
     if (queryType.equals(OdkData.QueryTypes.SIMPLE_QUERY)) {
@@ -1187,32 +1515,61 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     } else {
       throw new IllegalArgumentException("Unrecognized query type");
     }
+    return viewDataQuery;
+  }
 
-    mQueries[1] = viewDataQuery;
-
-    FragmentManager fragmentManager = this.getSupportFragmentManager();
-    FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
-
-    Fragment detailWithListViewListFragment = fragmentManager
-        .findFragmentByTag(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
-
-    if (detailWithListViewListFragment != null) {
-      // remove the old fragment
-      WebLogger.getLogger(getAppName())
-          .d(TAG, "[showDetailWithListFragment] removing old list " + "fragment");
-      fragmentTransaction.remove(detailWithListViewListFragment);
+  /**
+   * Whether two sets of sub list arguments ask for the same rows in the same file. The view
+   * type is ignored, as only the arguments from javascript carry it.
+   */
+  private static boolean sameSubList(Bundle current, Bundle args) {
+    if (current == null || args == null) {
+      return false;
     }
-    detailWithListViewListFragment = new DetailWithListListViewFragment();
-    fragmentTransaction.add(R.id.bottom_pane, detailWithListViewListFragment,
-        Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
-    // So android studio seems to think our build target is already greater than 16, but gradle doesn't
-    boolean destroyed = this.destroyed;
-    if (Build.VERSION.SDK_INT >= 17) {
-      destroyed |= isDestroyed();
+    Set<String> keys = new HashSet<>(current.keySet());
+    keys.addAll(args.keySet());
+    keys.remove(Constants.IntentKeys.TABLE_DISPLAY_VIEW_TYPE);
+    for (String key : keys) {
+      if (!Arrays.deepEquals(new Object[] { current.get(key) }, new Object[] { args.get(key) })) {
+        return false;
+      }
     }
-    if (!destroyed) {
-      fragmentTransaction.commit();
+    return true;
+  }
+
+  /**
+   * Exports the rows of the spreadsheet or list view, filtered and sorted as they are on
+   * screen, to a csv file in the output/csv directory. The spreadsheet's sort and group by
+   * live in {@link SpreadsheetProps} rather than in the view query, so they are added here the
+   * same way {@link #getUserTable()} adds them.
+   */
+  private void exportCurrentView() {
+    ResumableQuery query;
+    if (mCurrentFragmentType == ViewFragmentType.SPREADSHEET) {
+      SQLQueryStruct sqlQueryStruct = IntentUtil
+          .getSQLQueryStructFromBundle(this.getIntent().getExtras());
+      String[] groupBy = getIntentExtras().containsKey("inCollection") ?
+          null :
+          props.getGroupBy();
+      query = new SingleRowQuery(getTableId(), null, sqlQueryStruct.selectionArgs,
+          sqlQueryStruct.whereClause, groupBy, sqlQueryStruct.having,
+          QueryUtil.convertStringToArray(props.getSort()),
+          QueryUtil.convertStringToArray(props.getSortOrder()), null, null);
+    } else {
+      query = getViewQuery(null);
     }
+    if (query == null) {
+      Toast.makeText(this, R.string.export_view_unavailable, Toast.LENGTH_LONG).show();
+      return;
+    }
+    String qualifier = "view_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US)
+        .format(new Date());
+    // the dialog fragment needs a fragment manager to show itself with
+    ImportExportDialogFragment.fragman = getSupportFragmentManager();
+    ImportExportDialogFragment
+        .newInstance(ImportExportDialogFragment.EXPORT_IN_PROGRESS_DIALOG, this);
+    new ExportTask(getAppName(), this)
+        .execute(new ExportRequest(getAppName(), getTableId(), qualifier, query));
   }
 
   /**
@@ -1275,6 +1632,32 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     }
   }
 
+  /**
+   * Creates the fragment that draws the map for the map and navigate views. The offline
+   * point map is used when it has been chosen for the table or when Google Play services,
+   * which the Google map needs, is not available on the device.
+   *
+   * @return a new inner map fragment with this activity as its listener
+   */
+  private Fragment newInnerMapFragment() {
+    boolean offlineMap = mPossibleTableViewTypes != null && mPossibleTableViewTypes
+        .offlineMapIsPreferred();
+    if (!offlineMap && GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(this)
+        != ConnectionResult.SUCCESS) {
+      WebLogger.getLogger(getAppName())
+          .i(TAG, "[newInnerMapFragment] Google Play services unavailable, using offline map");
+      offlineMap = true;
+    }
+    if (offlineMap) {
+      TableScatterMapFragment scatterMapFragment = new TableScatterMapFragment();
+      scatterMapFragment.listener = this;
+      return scatterMapFragment;
+    }
+    TableMapInnerFragment mapFragment = new TableMapInnerFragment();
+    mapFragment.listener = this;
+    return mapFragment;
+  }
+
   /**
    * Invoked by TableMapInnerFragment when an item has been selected
    */
@@ -21,6 +21,7 @@ import androidx.multidex.MultiDex;
 import com.google.firebase.analytics.FirebaseAnalytics;
 import org.opendatakit.application.CommonApplication;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.views.webkits.WebAssetCache;
 
 import java.lang.ref.WeakReference;
 
@@ -81,4 +82,13 @@ public class Tables extends CommonApplication {
     analytics = FirebaseAnalytics.getInstance(this);
     analytics.logEvent(FirebaseAnalytics.Event.APP_OPEN, null);
   }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      // the web assets are read again the next time they are asked for
+      WebAssetCache.getInstance().clear();
+    }
+  }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.ArbitraryQuery;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.queries.SingleRowQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+
+/**
+ * The locations of the rows returned by a map view query, parsed once into
+ * primitive arrays together with their bounds.
+ * <p>
+ * The arrays are indexed by row, so index i is the i-th row of the query result.
+ * Rows without a usable location hold NaN.
+ */
+public final class MapPoints {
+
+  private static final String TAG = MapPoints.class.getSimpleName();
+
+  private final double[] mLatitudes;
+  private final double[] mLongitudes;
+  private final int mLocationCount;
+  private final double mMinLatitude;
+  private final double mMaxLatitude;
+  private final double mMinLongitude;
+  private final double mMaxLongitude;
+
+  private MapPoints(double[] latitudes, double[] longitudes) {
+    mLatitudes = latitudes;
+    mLongitudes = longitudes;
+
+    int count = 0;
+    double minLat = Double.NaN;
+    double maxLat = Double.NaN;
+    double minLon = Double.NaN;
+    double maxLon = Double.NaN;
+    for (int i = 0; i < latitudes.length; i++) {
+      if (Double.isNaN(latitudes[i])) {
+        continue;
+      }
+      if (count == 0) {
+        minLat = maxLat = latitudes[i];
+        minLon = maxLon = longitudes[i];
+      } else {
+        minLat = Math.min(minLat, latitudes[i]);
+        maxLat = Math.max(maxLat, latitudes[i]);
+        minLon = Math.min(minLon, longitudes[i]);
+        maxLon = Math.max(maxLon, longitudes[i]);
+      }
+      count++;
+    }
+    mLocationCount = count;
+    mMinLatitude = minLat;
+    mMaxLatitude = maxLat;
+    mMinLongitude = minLon;
+    mMaxLongitude = maxLon;
+  }
+
+  /**
+   * Runs the map view query and parses the location of every row.
+   *
+   * @param dbInterface         the database interface to use
+   * @param appName             the app name
+   * @param orderedDefns        the columns in the table
+   * @param resumableQuery      the query backing the map view
+   * @param latitudeElementKey  the element key of the latitude column
+   * @param longitudeElementKey the element key of the longitude column
+   * @return the parsed locations, or null if the query type is not supported
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public static MapPoints load(UserDbInterface dbInterface, String appName,
+      OrderedColumns orderedDefns, ResumableQuery resumableQuery, String latitudeElementKey,
+      String longitudeElementKey) throws ServicesAvailabilityException {
+    UserTable table;
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      if (resumableQuery instanceof ArbitraryQuery) {
+        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
+        table = dbInterface.arbitrarySqlQuery(appName, db, query.getTableId(), orderedDefns,
+            query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
+      } else if (resumableQuery instanceof SimpleQuery || resumableQuery instanceof SingleRowQuery) {
+        SimpleQuery query = (SimpleQuery) resumableQuery;
+        table = dbInterface.simpleQuery(appName, db, query.getTableId(), orderedDefns,
+            query.getWhereClause(), query.getSqlBindArgs(), query.getGroupByArgs(),
+            query.getHavingClause(), query.getOrderByColNames(), query.getOrderByDirections(), -1,
+            0);
+      } else {
+        WebLogger.getLogger(appName).e(TAG, "invalid query type");
+        return null;
+      }
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+    return fromTable(appName, table, latitudeElementKey, longitudeElementKey);
+  }
+
+  /**
+   * Parses the location of every row of a table.
+   *
+   * @param appName             the app name, used for logging
+   * @param table               the rows to parse, may be null
+   * @param latitudeElementKey  the element key of the latitude column
+   * @param longitudeElementKey the element key of the longitude column
+   * @return the parsed locations
+   */
+  public static MapPoints fromTable(String appName, UserTable table, String latitudeElementKey,
+      String longitudeElementKey) {
+    int rows = table == null ? 0 : table.getNumberOfRows();
+    double[] latitudes = new double[rows];
+    double[] longitudes = new double[rows];
+    for (int i = 0; i < rows; i++) {
+      TypedRow row = table.getRowAtIndex(i);
+      String latitudeString = row.getStringValueByKey(latitudeElementKey);
+      String longitudeString = row.getStringValueByKey(longitudeElementKey);
+      latitudes[i] = Double.NaN;
+      longitudes[i] = Double.NaN;
+      if (latitudeString == null || longitudeString == null || latitudeString.isEmpty()
+          || longitudeString.isEmpty()) {
+        continue;
+      }
+      try {
+        double latitude = Double.parseDouble(latitudeString);
+        double longitude = Double.parseDouble(longitudeString);
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+          latitudes[i] = latitude;
+          longitudes[i] = longitude;
+        }
+      } catch (NumberFormatException e) {
+        WebLogger.getLogger(appName).e(TAG,
+            "The following location did not parse correctly: " + latitudeString + ","
+                + longitudeString);
+      }
+    }
+    return new MapPoints(latitudes, longitudes);
+  }
+
+  /**
+   * @return the number of rows, with or without a location
+   */
+  public int getRowCount() {
+    return mLatitudes.length;
+  }
+
+  /**
+   * @return the number of rows that have a location
+   */
+  public int getLocationCount() {
+    return mLocationCount;
+  }
+
+  /**
+   * @param index the row index
+   * @return whether the row has a location
+   */
+  public boolean hasLocation(int index) {
+    return !Double.isNaN(mLatitudes[index]);
+  }
+
+  /**
+   * @return the latitude of each row, NaN if the row has none. Do not modify.
+   */
+  public double[] getLatitudes() {
+    return mLatitudes;
+  }
+
+  /**
+   * @return the longitude of each row, NaN if the row has none. Do not modify.
+   */
+  public double[] getLongitudes() {
+    return mLongitudes;
+  }
+
+  /**
+   * @return the southern bound, NaN if no row has a location
+   */
+  public double getMinLatitude() {
+    return mMinLatitude;
+  }
+
+  /**
+   * @return the northern bound, NaN if no row has a location
+   */
+  public double getMaxLatitude() {
+    return mMaxLatitude;
+  }
+
+  /**
+   * @return the western bound, NaN if no row has a location
+   */
+  public double getMinLongitude() {
+    return mMinLongitude;
+  }
+
+  /**
+   * @return the eastern bound, NaN if no row has a location
+   */
+  public double getMaxLongitude() {
+    return mMaxLongitude;
+  }
+}
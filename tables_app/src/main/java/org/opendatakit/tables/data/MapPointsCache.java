@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import android.os.Parcel;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelProvider;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the {@link MapPoints} of the last map view query for the lifetime of
+ * an activity, including across configuration changes. The map fragments are
+ * recreated whenever the map is shown, after a rotation or on returning from a
+ * detail view; with this cache they can redraw without running the query or
+ * parsing the locations again.
+ * <p>
+ * An entry is keyed by the query, the latitude and longitude columns and the
+ * data revision. The owner bumps the revision with {@link #invalidate()}
+ * whenever the table data may have changed.
+ */
+public class MapPointsCache extends ViewModel {
+
+  private int mDataRevision = 0;
+
+  private MapPoints mPoints = null;
+  private byte[] mQueryKey = null;
+  private String mLatitudeElementKey = null;
+  private String mLongitudeElementKey = null;
+  private int mPointsRevision = -1;
+
+  /**
+   * @param activity the activity the cache is scoped to
+   * @return the cache of the activity, created on first use
+   */
+  public static MapPointsCache get(FragmentActivity activity) {
+    return new ViewModelProvider(activity).get(MapPointsCache.class);
+  }
+
+  /**
+   * Marks the cached points as stale, e.g. after rows were added or edited.
+   */
+  public void invalidate() {
+    mDataRevision++;
+    mPoints = null;
+  }
+
+  /**
+   * @return the current data revision
+   */
+  public int getDataRevision() {
+    return mDataRevision;
+  }
+
+  /**
+   * Returns the cached points for the query, loading them if the query or the
+   * data revision changed since they were cached.
+   *
+   * @param dbInterface         the database interface to use
+   * @param appName             the app name
+   * @param orderedDefns        the columns in the table
+   * @param query               the query backing the map view
+   * @param latitudeElementKey  the element key of the latitude column
+   * @param longitudeElementKey the element key of the longitude column
+   * @return the parsed locations, or null if the query type is not supported
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public MapPoints getPoints(UserDbInterface dbInterface, String appName,
+      OrderedColumns orderedDefns, ResumableQuery query, String latitudeElementKey,
+      String longitudeElementKey) throws ServicesAvailabilityException {
+    byte[] queryKey = queryKey(query);
+    if (mPoints != null && mPointsRevision == mDataRevision && Arrays.equals(mQueryKey, queryKey)
+        && latitudeElementKey.equals(mLatitudeElementKey) && longitudeElementKey
+        .equals(mLongitudeElementKey)) {
+      return mPoints;
+    }
+
+    MapPoints points = MapPoints
+        .load(dbInterface, appName, orderedDefns, query, latitudeElementKey,
+            longitudeElementKey);
+    if (points != null) {
+      mPoints = points;
+      mQueryKey = queryKey;
+      mLatitudeElementKey = latitudeElementKey;
+      mLongitudeElementKey = longitudeElementKey;
+      mPointsRevision = mDataRevision;
+    }
+    return points;
+  }
+
+  @Override
+  protected void onCleared() {
+    mPoints = null;
+  }
+
+  /**
+   * The queries do not implement equals, but they are parcelable, so two queries
+   * are taken to be the same when they flatten to the same bytes.
+   */
+  private static byte[] queryKey(ResumableQuery query) {
+    if (query == null) {
+      return null;
+    }
+    Parcel parcel = Parcel.obtain();
+    try {
+      query.writeToParcel(parcel, 0);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
@@ -21,6 +21,7 @@ import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.utils.PreferenceUtil;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -41,6 +42,7 @@ public class PossibleTableViewTypes {
   private String mListFileName;
   private boolean mMapIsValid;
   private String mMapListFileName;
+  private boolean mOfflineMap;
 
   private ViewFragmentType mDefaultViewType;
   private String mDetailFileName;
@@ -81,6 +83,7 @@ public class PossibleTableViewTypes {
     mListIsValid = null != mListFileName;
     mMapListFileName = TableUtil.get().getMapListViewFilename(dbInterface, appName, db, tableId);
     mMapIsValid = null != mMapListFileName && orderedDefns.mapViewIsPossible();
+    mOfflineMap = PreferenceUtil.getOfflineMap(dbInterface, appName, db, tableId);
 
     mDetailFileName = TableUtil.get().getDetailViewFilename(dbInterface, appName, db, tableId);
   }
@@ -134,6 +137,13 @@ public class PossibleTableViewTypes {
     return mDetailFileName;
   }
 
+  /**
+   * @return true if the map should be drawn by the offline point map rather than Google Maps
+   */
+  public boolean offlineMapIsPreferred() {
+    return this.mOfflineMap;
+  }
+
   /**
    * @return true if the table can be viewed as a spreadsheet
    */
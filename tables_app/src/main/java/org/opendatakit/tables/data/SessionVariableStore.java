@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import android.content.Context;
+import org.opendatakit.logging.WebLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The session variables of a web activity, kept in a file rather than in the saved
+ * instance state, so that a web app keeping large JSON values in them does not make
+ * the saved state too large to hand to the system.
+ * <p>
+ * Only the store's id goes into the saved state. The file is a log of the values as
+ * they were set, each record a key and a value, or no value once the variable is
+ * cleared; the last record of a key wins. The position of each key's latest value is
+ * kept in memory, and the most recently used values up to {@link #MEMORY_CHARS} are
+ * kept with it, so that reading a variable again does not read the file. When the log
+ * has grown to well over the size of the live values it is rewritten without the old
+ * ones.
+ * <p>
+ * After the process has died, a store made from the saved id reads the log the first
+ * time a variable is asked for. The file is deleted when the activity finishes; files
+ * left by activities that never came back are deleted after {@link #STALE_MS}.
+ */
+public final class SessionVariableStore {
+
+  // Used for logging
+  private static final String TAG = SessionVariableStore.class.getSimpleName();
+  private static final String FOLDER = "sessionVariables";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /**
+   * The most characters of values kept in memory
+   */
+  static final int MEMORY_CHARS = 256 * 1024;
+  /**
+   * The log is compacted when it is this much bigger than the live values...
+   */
+  private static final int COMPACT_RATIO = 2;
+  /**
+   * ...and at least this big
+   */
+  private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+  /**
+   * The age after which the file of a store nobody came back for is deleted
+   */
+  static final long STALE_MS = 7L * 24 * 60 * 60 * 1000;
+
+  /**
+   * The ids of the stores of this process, whose files are not stale however old they are
+   */
+  private static final Set<String> LIVE_IDS = new HashSet<>();
+
+  /**
+   * Where a value is in the log
+   */
+  private static final class Position {
+    final long offset;
+    final int length;
+
+    Position(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final String appName;
+  private final String id;
+  private final File file;
+  private final Map<String, Position> positions = new HashMap<>();
+  /**
+   * Values that could not be written, kept until they are set again
+   */
+  private final Map<String, String> unwritten = new HashMap<>();
+  private final LinkedHashMap<String, String> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private int memoryChars = 0;
+  private long liveBytes = 0;
+  private RandomAccessFile log = null;
+  private boolean loaded = false;
+
+  private SessionVariableStore(Context context, String appName, String id) {
+    this.appName = appName;
+    this.id = id;
+    this.file = new File(new File(context.getFilesDir(), FOLDER), id);
+    synchronized (LIVE_IDS) {
+      LIVE_IDS.add(id);
+    }
+  }
+
+  /**
+   * Makes a new, empty store, deleting the files of stores that have not been used for
+   * {@link #STALE_MS}
+   *
+   * @param context a context to get the files folder from
+   * @param appName the app name, for logging
+   * @return the store
+   */
+  public static SessionVariableStore create(Context context, String appName) {
+    File[] files = new File(context.getFilesDir(), FOLDER).listFiles();
+    if (files != null) {
+      long now = System.currentTimeMillis();
+      for (File f : files) {
+        boolean live;
+        synchronized (LIVE_IDS) {
+          live = LIVE_IDS.contains(f.getName());
+        }
+        if (!live && now - f.lastModified() > STALE_MS) {
+          // noinspection ResultOfMethodCallIgnored -- the next create tries again
+          f.delete();
+        }
+      }
+    }
+    SessionVariableStore store = new SessionVariableStore(context, appName,
+        UUID.randomUUID().toString());
+    // nothing to read
+    store.loaded = true;
+    return store;
+  }
+
+  /**
+   * Finds a store again from its id, e.g. after the process has died. The file is not
+   * read until a variable is used.
+   *
+   * @param context a context to get the files folder from
+   * @param appName the app name, for logging
+   * @param id      the store's {@link #getId()}
+   * @return the store, empty if its file has gone
+   */
+  public static SessionVariableStore open(Context context, String appName, String id) {
+    return new SessionVariableStore(context, appName, id);
+  }
+
+  /**
+   * @return the id to put in the saved state
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param key the variable
+   * @return its value, or null if it is not set
+   */
+  public synchronized String get(String key) {
+    load();
+    String value = memory.get(key);
+    if (value != null) {
+      return value;
+    }
+    value = unwritten.get(key);
+    if (value != null) {
+      return value;
+    }
+    Position position = positions.get(key);
+    if (position == null) {
+      return null;
+    }
+    try {
+      byte[] bytes = new byte[position.length];
+      log.seek(position.offset);
+      log.readFully(bytes);
+      value = new String(bytes, UTF_8);
+      remember(key, value);
+      return value;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    }
+  }
+
+  /**
+   * @param key   the variable
+   * @param value its value, or null to clear it
+   */
+  public synchronized void put(String key, String value) {
+    load();
+    forget(key);
+    unwritten.remove(key);
+    Position old = positions.remove(key);
+    if (old != null) {
+      liveBytes -= old.length;
+    }
+    if (value == null) {
+      if (old != null) {
+        try {
+          append(key, null);
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+      }
+      return;
+    }
+    try {
+      Position position = append(key, value.getBytes(UTF_8));
+      positions.put(key, position);
+      liveBytes += position.length;
+      remember(key, value);
+      if (log.length() > COMPACT_MIN_BYTES && log.length() > COMPACT_RATIO * liveBytes) {
+        compact();
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      unwritten.put(key, value);
+    }
+  }
+
+  /**
+   * Closes the file, keeping it to be opened again from the id
+   */
+  public synchronized void close() {
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+      log = null;
+    }
+    memory.clear();
+    memoryChars = 0;
+    positions.clear();
+    liveBytes = 0;
+    loaded = false;
+  }
+
+  /**
+   * Closes and deletes the file, e.g. when the activity finishes
+   */
+  public synchronized void delete() {
+    close();
+    unwritten.clear();
+    synchronized (LIVE_IDS) {
+      LIVE_IDS.remove(id);
+    }
+    // noinspection ResultOfMethodCallIgnored -- removed later as a stale file otherwise
+    file.delete();
+  }
+
+  /**
+   * Opens the log and reads where each variable's latest value is
+   */
+  private void load() {
+    if (loaded && log != null) {
+      return;
+    }
+    try {
+      File folder = file.getParentFile();
+      if (!folder.exists() && !folder.mkdirs()) {
+        throw new IOException("unable to make " + folder.getPath());
+      }
+      log = new RandomAccessFile(file, "rw");
+      if (!loaded) {
+        positions.clear();
+        liveBytes = 0;
+        long offset = 0;
+        long length = log.length();
+        while (offset < length) {
+          log.seek(offset);
+          int keyLength = log.readInt();
+          if (keyLength < 0 || offset + 8 + keyLength > length) {
+            break;
+          }
+          byte[] key = new byte[keyLength];
+          log.readFully(key);
+          int valueLength = log.readInt();
+          if (log.getFilePointer() + Math.max(0, valueLength) > length) {
+            break;
+          }
+          String name = new String(key, UTF_8);
+          Position old = positions.remove(name);
+          if (old != null) {
+            liveBytes -= old.length;
+          }
+          long valueOffset = log.getFilePointer();
+          if (valueLength >= 0) {
+            positions.put(name, new Position(valueOffset, valueLength));
+            liveBytes += valueLength;
+            offset = valueOffset + valueLength;
+          } else {
+            offset = valueOffset;
+          }
+        }
+        if (offset < length) {
+          // a record cut short by the process dying, write over it
+          log.setLength(offset);
+        }
+        WebLogger.getLogger(appName).d(TAG, "[load] " + positions.size() + " variables");
+      }
+    } catch (IOException e) {
+      // an unreadable file, keep what was read
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+    loaded = true;
+  }
+
+  private Position append(String key, byte[] value) throws IOException {
+    if (log == null) {
+      throw new IOException("session variable file is not open");
+    }
+    byte[] name = key.getBytes(UTF_8);
+    long offset = log.length();
+    log.seek(offset);
+    log.writeInt(name.length);
+    log.write(name);
+    if (value == null) {
+      log.writeInt(-1);
+      return null;
+    }
+    log.writeInt(value.length);
+    long valueOffset = log.getFilePointer();
+    log.write(value);
+    return new Position(valueOffset, value.length);
+  }
+
+  /**
+   * Rewrites the log with only the latest value of each variable
+   */
+  private void compact() throws IOException {
+    File compacted = new File(file.getParentFile(), id + ".compact");
+    RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+    Map<String, Position> moved = new HashMap<>();
+    try {
+      out.setLength(0);
+      for (Map.Entry<String, Position> entry : positions.entrySet()) {
+        byte[] value = new byte[entry.getValue().length];
+        log.seek(entry.getValue().offset);
+        log.readFully(value);
+        byte[] name = entry.getKey().getBytes(UTF_8);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeInt(value.length);
+        moved.put(entry.getKey(), new Position(out.getFilePointer(), value.length));
+        out.write(value);
+      }
+    } finally {
+      out.close();
+    }
+    log.close();
+    log = null;
+    if (!compacted.renameTo(file)) {
+      // carry on with the old log
+      // noinspection ResultOfMethodCallIgnored
+      compacted.delete();
+      log = new RandomAccessFile(file, "rw");
+      return;
+    }
+    log = new RandomAccessFile(file, "rw");
+    positions.clear();
+    positions.putAll(moved);
+    WebLogger.getLogger(appName).d(TAG, "[compact] " + log.length() + " bytes");
+  }
+
+  private void remember(String key, String value) {
+    if (value.length() > MEMORY_CHARS / 4) {
+      // read again from the file rather than pushing out everything else
+      return;
+    }
+    memory.put(key, value);
+    memoryChars += value.length();
+    Iterator<Map.Entry<String, String>> eldest = memory.entrySet().iterator();
+    while (memoryChars > MEMORY_CHARS && eldest.hasNext()) {
+      memoryChars -= eldest.next().getValue().length();
+      eldest.remove();
+    }
+  }
+
+  private void forget(String key) {
+    String value = memory.remove(key);
+    if (value != null) {
+      memoryChars -= value.length();
+    }
+  }
+}
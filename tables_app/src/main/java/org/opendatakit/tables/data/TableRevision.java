@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.List;
+
+/**
+ * Reads a cheap fingerprint of a table's rows and properties, so that views built
+ * from the table can tell whether they are still current without querying it again.
+ * <p>
+ * The fingerprint of the rows is the number of rows, the latest savepoint timestamp,
+ * the number of rows that are not synced, and the total length and a checksum of the
+ * row etags. Adding, editing or deleting a row changes at least one of them. A sync
+ * gives every row it writes a new etag, so it changes the etag checksum even when it
+ * pulls in a server edit whose savepoint timestamp is older than the newest local one.
+ * The fingerprint of the properties is a hash of the table's key value store
+ * entries, which hold the sort, the group by, the view files, the color rules and
+ * the map settings, so that changing any of them in the table preferences also
+ * changes the revision.
+ */
+public final class TableRevision {
+
+  private static final String ROWS = "revision_rows";
+  private static final String LATEST = "revision_latest";
+  private static final String UNSYNCED = "revision_unsynced";
+  private static final String ETAG_LENGTH = "revision_etag_length";
+  private static final String ETAG_SUM = "revision_etag_sum";
+
+  /**
+   * The number of characters at the end of an etag that go in its checksum. Etags end
+   * in random hex digits, so a new etag changes them.
+   */
+  private static final int ETAG_CHECKSUM_CHARS = 8;
+  /**
+   * Keeps the sum over millions of rows within a 64 bit integer
+   */
+  private static final long ETAG_CHECKSUM_MODULUS = 1000000007L;
+  /**
+   * Sums a checksum of each row's etag, the characters weighted by their position
+   */
+  private static final String ETAG_CHECKSUM = etagChecksum();
+
+  private TableRevision() {
+  }
+
+  /**
+   * @param dbInterface the database interface to use
+   * @param appName     the app name
+   * @param tableId     the table to fingerprint
+   * @return the table's revision, equal to an earlier one if the rows have not changed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public static String read(UserDbInterface dbInterface, String appName, String tableId)
+      throws ServicesAvailabilityException {
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      // we know it's safe to put the table id in there because it names an existing table
+      BaseTable result = dbInterface.arbitrarySqlQuery(appName, db, tableId,
+          "SELECT COUNT(*) AS " + ROWS + ", MAX(" + DataTableColumns.SAVEPOINT_TIMESTAMP + ") AS "
+              + LATEST + ", SUM(" + DataTableColumns.SYNC_STATE + " != 'synced') AS " + UNSYNCED
+              + ", SUM(LENGTH(" + DataTableColumns.ROW_ETAG + ")) AS " + ETAG_LENGTH + ", "
+              + ETAG_CHECKSUM + " AS " + ETAG_SUM + " FROM " + tableId,
+          new BindArgs(new Object[0]), 1, 0);
+      if (result == null || result.getNumberOfRows() == 0) {
+        return null;
+      }
+      Row row = result.getRowAtIndex(0);
+      List<KeyValueStoreEntry> entries = dbInterface
+          .getTableMetadata(appName, db, tableId, null, null, null, null).getEntries();
+      return row.getRawStringByKey(ROWS) + "/" + row.getRawStringByKey(LATEST) + "/" + row
+          .getRawStringByKey(UNSYNCED) + "/" + row.getRawStringByKey(ETAG_LENGTH) + ":" + row
+          .getRawStringByKey(ETAG_SUM) + "/" + entries.size() + ":" + Integer
+          .toHexString(hash(entries));
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * SUM((c1 * w1 + c2 * w2 + ...) % modulus), where ck is the code of the k-th last
+   * character of the etag, 0 past its start, and the weights are powers of 31. Each
+   * term is below 2^56, so the sum of a row cannot overflow.
+   */
+  private static String etagChecksum() {
+    StringBuilder b = new StringBuilder("SUM((");
+    long weight = 1;
+    for (int k = 1; k <= ETAG_CHECKSUM_CHARS; k++) {
+      if (k > 1) {
+        b.append(" + ");
+      }
+      b.append("COALESCE(UNICODE(SUBSTR(").append(DataTableColumns.ROW_ETAG).append(", -")
+          .append(k).append(", 1)), 0) * ").append(weight);
+      weight *= 31;
+    }
+    return b.append(") % ").append(ETAG_CHECKSUM_MODULUS).append(")").toString();
+  }
+
+  /**
+   * A hash of the entries that does not depend on the order they were read in
+   */
+  private static int hash(List<KeyValueStoreEntry> entries) {
+    int hash = 0;
+    for (KeyValueStoreEntry entry : entries) {
+      hash += (entry.partition + '\u0000' + entry.aspect + '\u0000' + entry.key + '\u0000'
+          + entry.value).hashCode();
+    }
+    return hash;
+  }
+}
@@ -25,10 +25,13 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.IOdkTablesActivity;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.views.webkits.OdkTablesWebView;
+import org.opendatakit.tables.views.webkits.OdkTablesWebViewPool;
 
 /**
  * Base class for {@link Fragment}s that display information about a table
- * using a WebKit view.
+ * using a WebKit view. If the activity has an {@link OdkTablesWebViewPool} the
+ * web view is borrowed from it and given back when the fragment's view is
+ * destroyed.
  *
  * @author sudar.sam@gmail.com
  */
@@ -36,12 +39,43 @@ public abstract class AbsWebTableFragment extends AbsTableDisplayFragment implem
 
   private static final String TAG = AbsWebTableFragment.class.getSimpleName();
 
+  /**
+   * The web view borrowed from the activity's pool, null if it was inflated
+   */
+  private OdkTablesWebView mPooledWebView = null;
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
       Bundle savedInstanceState) {
     WebLogger.getLogger(getAppName()).d(TAG, "[onCreateView]");
 
-    return inflater.inflate(R.layout.web_view_container, container, false);
+    OdkTablesWebViewPool pool = getActivity() instanceof OdkTablesWebViewPool.Provider ?
+        ((OdkTablesWebViewPool.Provider) getActivity()).getWebViewPool() :
+        null;
+    if (pool == null) {
+      return inflater.inflate(R.layout.web_view_container, container, false);
+    }
+    ViewGroup newView = (ViewGroup) inflater
+        .inflate(R.layout.web_view_pool_container, container, false);
+    mPooledWebView = pool.borrow();
+    newView.addView(mPooledWebView, 0);
+    return newView;
+  }
+
+  @Override
+  public void onDestroyView() {
+    if (mPooledWebView != null) {
+      OdkTablesWebViewPool pool = getActivity() instanceof OdkTablesWebViewPool.Provider ?
+          ((OdkTablesWebViewPool.Provider) getActivity()).getWebViewPool() :
+          null;
+      if (pool != null) {
+        pool.release(mPooledWebView);
+      } else {
+        mPooledWebView.destroy();
+      }
+      mPooledWebView = null;
+    }
+    super.onDestroyView();
   }
 
   public void onResume() {
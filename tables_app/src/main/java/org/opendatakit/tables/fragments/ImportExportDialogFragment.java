@@ -102,6 +102,20 @@ public class ImportExportDialogFragment extends DialogFragment {
    * the caller is expected to dismiss it. If it's an AlertDialog, the user can dismiss it
    */
   public static ImportExportDialogFragment newInstance(int id, AbsBaseActivity act) {
+    return newInstance(id, act, null);
+  }
+
+  /**
+   * Same as {@link #newInstance(int, AbsBaseActivity)}, with some detail added below the
+   * dialog's message, e.g. which tables of a batch failed
+   *
+   * @param id     which dialog to create
+   * @param act    an activity, used to get strings
+   * @param detail the text to add below the message, or null
+   * @return a new ImportExportDialogFragment that has already been shown
+   */
+  public static ImportExportDialogFragment newInstance(int id, AbsBaseActivity act,
+      String detail) {
     String message;
     int type = ALERT_DIALOG;
     switch (id) {
@@ -131,6 +145,9 @@ public class ImportExportDialogFragment extends DialogFragment {
     default:
       throw new IllegalArgumentException();
     }
+    if (detail != null) {
+      message = message + "\n" + detail;
+    }
 
     ImportExportDialogFragment frag = new ImportExportDialogFragment();
     frag.appName = act.getAppName(); // it's private
@@ -160,6 +177,17 @@ public class ImportExportDialogFragment extends DialogFragment {
    */
   public void updateProgressDialogStatusString(Activity task, final int id,
       final int status, final int total) {
+    updateProgressDialogMessage(task, task.getString(id, status, total));
+  }
+
+  /**
+   * Sets the progress dialog's text to an already formatted message, e.g. one line
+   * per table of a batch import
+   *
+   * @param task    used for running on the UI thread
+   * @param message the message to set the dialog's text to
+   */
+  public void updateProgressDialogMessage(Activity task, final String message) {
     task.runOnUiThread(new Runnable() {
       @Override
       public void run() {
@@ -174,7 +202,6 @@ public class ImportExportDialogFragment extends DialogFragment {
           return;
         }
         if (getArguments().getInt("type") == PROGRESS_DIALOG) {
-          String message = getString(id, status, total);
           ((AlertDialog) d).setMessage(message);
           getArguments().putString("message", message); // in case the screen is rotated and the
           // dialog gets recreated, don't reset to the default message
@@ -16,10 +16,22 @@
 package org.opendatakit.tables.fragments;
 
 import android.app.Activity;
+import android.location.Location;
 import android.os.Bundle;
 import android.util.Log;
 import org.opendatakit.activities.IOdkDataActivity;
+import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.logic.DistanceRanking;
+import org.opendatakit.tables.providers.GeoProvider;
 import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 
 /**
@@ -28,7 +40,8 @@ import org.opendatakit.tables.views.webkits.OdkTablesWebView;
  * @author Chris Gelon
  * @author sudar.sam@gmail.com
  */
-public class MapListViewFragment extends ListViewFragment implements IMapListViewCallbacks {
+public class MapListViewFragment extends ListViewFragment
+    implements IMapListViewCallbacks, GeoProvider.LocationEventListener {
 
   /**
    * Represents an index that can't possibly be in the list
@@ -39,12 +52,53 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
    * Saves the index of the element that was selected.
    */
   private static final String INTENT_KEY_SELECTED_INDEX = "keySelectedIndex";
+  /**
+   * Argument telling a new fragment to order the list by distance from the current location.
+   */
+  private static final String INTENT_KEY_SORT_BY_DISTANCE = "keySortByDistance";
+  /**
+   * How many of the nearest rows are kept ranked when sorting by distance
+   */
+  private static final int DISTANCE_RANKING_SIZE = 100;
+  /**
+   * Minimum movement (metres) before the nearest rows are re-ranked
+   */
+  private static final double DISTANCE_RERANK_THRESHOLD = 25;
   /**
    * The index of an item that has been selected by the user.
    * We must default to invalid index because the initial load of the list view may take place before onCreate is called
    * I have no idea why
    */
   protected int mSelectedItemIndex = INVALID_INDEX;
+  /**
+   * Whether the list is ordered by distance from the current location. Read on the executor
+   * thread when the list's query metadata is built.
+   */
+  private volatile boolean mSortByDistance = false;
+  /**
+   * Only created while sorting by distance
+   */
+  private GeoProvider mGeoProvider = null;
+  /**
+   * Built on a background thread from the displayed table the first time a location arrives.
+   * Only used on the main thread.
+   */
+  private DistanceRanking mDistanceRanking = null;
+  /**
+   * Bumped whenever the table's rows may have changed, so that a ranking built from the old
+   * rows is dropped. Only used on the main thread.
+   */
+  private int mRankingGeneration = 0;
+  private boolean mBuildingRanking = false;
+  /**
+   * The latest location that arrived while the ranking was being built
+   */
+  private Location mPendingLocation = null;
+  /**
+   * The latest ranking, published as a new array that is never changed afterwards, so the
+   * executor thread can read it while the main thread ranks the next location
+   */
+  private volatile int[] mRankedIndexes = null;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -55,6 +109,23 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
           savedInstanceState.getInt(INTENT_KEY_SELECTED_INDEX) :
           INVALID_INDEX;
     }
+    // the activity owns this setting and passes it in whenever it recreates the fragment
+    Bundle args = getArguments();
+    this.mSortByDistance = args != null && args.getBoolean(INTENT_KEY_SORT_BY_DISTANCE, false);
+  }
+
+  /**
+   * Creates a map list fragment.
+   *
+   * @param sortByDistance whether the list should be ordered by distance from the current location
+   * @return the new fragment
+   */
+  public static MapListViewFragment newInstance(boolean sortByDistance) {
+    MapListViewFragment f = new MapListViewFragment();
+    Bundle args = new Bundle();
+    args.putBoolean(INTENT_KEY_SORT_BY_DISTANCE, sortByDistance);
+    f.setArguments(args);
+    return f;
   }
 
   @Override
@@ -99,6 +170,9 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
     if ( view != null ) {
       view.onResume();
     }
+    if (mSortByDistance) {
+      startLocationUpdates();
+    }
   }
 
   @Override
@@ -108,6 +182,236 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
     if ( view != null ) {
       view.onPause();
     }
+    if (mGeoProvider != null) {
+      mGeoProvider.stop();
+    }
+  }
+
+  /**
+   * Turns ordering by distance from the current location on or off.
+   *
+   * @param sortByDistance whether to order the list by distance
+   */
+  public void setSortByDistance(boolean sortByDistance) {
+    if (mSortByDistance == sortByDistance) {
+      return;
+    }
+    mSortByDistance = sortByDistance;
+    if (sortByDistance) {
+      startLocationUpdates();
+    } else {
+      if (mGeoProvider != null) {
+        mGeoProvider.stop();
+      }
+      mRankingGeneration++;
+      mDistanceRanking = null;
+      mPendingLocation = null;
+      mRankedIndexes = null;
+      resetView();
+    }
+  }
+
+  public boolean isSortByDistance() {
+    return mSortByDistance;
+  }
+
+  /**
+   * Drops the distance ranking, whose row indexes may no longer match the table, e.g. after
+   * the rows were reloaded. It is built again from the new rows.
+   */
+  public void invalidateDistanceRanking() {
+    mRankingGeneration++;
+    mDistanceRanking = null;
+    mRankedIndexes = null;
+    if (mSortByDistance && mGeoProvider != null) {
+      onLocationChanged(mGeoProvider.getCurrentLocation());
+    }
+  }
+
+  @Override
+  public void databaseAvailable() {
+    // the page is reloaded, so the rows may have changed
+    invalidateDistanceRanking();
+    super.databaseAvailable();
+  }
+
+  /**
+   * Returns the indexes of the rows nearest the current location, nearest first.
+   *
+   * May be called from any thread. The array must not be changed.
+   *
+   * @return the ranked row indexes, or null if not sorting by distance or no location is known yet
+   */
+  public int[] getDistanceRankedIndexes() {
+    return mSortByDistance ? mRankedIndexes : null;
+  }
+
+  private void startLocationUpdates() {
+    Activity activity = getActivity();
+    if (activity == null) {
+      return;
+    }
+    if (mGeoProvider == null) {
+      mGeoProvider = new GeoProvider(activity);
+      mGeoProvider.setLocationEventListener(this);
+      // coarse, distance based updates are enough to re-rank the list
+      mGeoProvider.setAdaptiveSampling(true);
+    }
+    mGeoProvider.startLocationUpdates();
+    if (mGeoProvider.getCurrentLocation() != null) {
+      onLocationChanged(mGeoProvider.getCurrentLocation());
+    }
+  }
+
+  /**
+   * Builds the ranking on a background thread, as it reads and parses every row of the table.
+   * The latest location that arrives meanwhile is ranked once it is built.
+   */
+  private void startBuildingRanking() {
+    if (mBuildingRanking || !(getActivity() instanceof TableDisplayActivity)) {
+      return;
+    }
+    final TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    final int generation = mRankingGeneration;
+    mBuildingRanking = true;
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final DistanceRanking ranking = buildDistanceRanking(activity);
+        activity.runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            onRankingBuilt(generation, ranking);
+          }
+        });
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void onRankingBuilt(int generation, DistanceRanking ranking) {
+    mBuildingRanking = false;
+    Location location = mPendingLocation;
+    mPendingLocation = null;
+    if (!mSortByDistance || location == null) {
+      return;
+    }
+    if (generation != mRankingGeneration) {
+      // the rows changed while it was being built
+      onLocationChanged(location);
+      return;
+    }
+    mDistanceRanking = ranking;
+    if (ranking != null) {
+      rank(location);
+    }
+  }
+
+  /**
+   * Parses the latitude and longitude of every row of the displayed table once, so that location
+   * updates only have to compute distances. Called on a background thread.
+   *
+   * @param activity the activity showing the table
+   * @return the ranking, or null if the table or its location columns are not available
+   */
+  private static DistanceRanking buildDistanceRanking(TableDisplayActivity activity) {
+    OrderedColumns orderedDefns = activity.getColumnDefinitions();
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    if (orderedDefns == null || dbInterface == null) {
+      return null;
+    }
+
+    UserTable table;
+    String latitudeElementKey;
+    String longitudeElementKey;
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(activity.getAppName());
+      latitudeElementKey = TableUtil.get()
+          .getMapListViewLatitudeElementKey(dbInterface, activity.getAppName(), db,
+              activity.getTableId(), orderedDefns);
+      longitudeElementKey = TableUtil.get()
+          .getMapListViewLongitudeElementKey(dbInterface, activity.getAppName(), db,
+              activity.getTableId(), orderedDefns);
+      if (latitudeElementKey == null || longitudeElementKey == null) {
+        return null;
+      }
+      table = activity.readUserTable(db);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
+      return null;
+    } finally {
+      if (db != null) {
+        try {
+          dbInterface.closeDatabase(activity.getAppName(), db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+        }
+      }
+    }
+    if (table == null) {
+      return null;
+    }
+
+    int numRows = table.getNumberOfRows();
+    double[] latitudes = new double[numRows];
+    double[] longitudes = new double[numRows];
+    for (int i = 0; i < numRows; i++) {
+      TypedRow row = table.getRowAtIndex(i);
+      latitudes[i] = parseCoordinate(row.getStringValueByKey(latitudeElementKey));
+      longitudes[i] = parseCoordinate(row.getStringValueByKey(longitudeElementKey));
+    }
+    return new DistanceRanking(latitudes, longitudes, DISTANCE_RANKING_SIZE,
+        DISTANCE_RERANK_THRESHOLD);
+  }
+
+  private static double parseCoordinate(String value) {
+    if (value == null || value.isEmpty()) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  @Override
+  public void onLocationChanged(Location location) {
+    if (!mSortByDistance || location == null) {
+      return;
+    }
+    if (mDistanceRanking == null) {
+      mPendingLocation = location;
+      startBuildingRanking();
+      return;
+    }
+    rank(location);
+  }
+
+  private void rank(Location location) {
+    if (mDistanceRanking.updateLocation(location.getLatitude(), location.getLongitude())) {
+      mRankedIndexes = mDistanceRanking.getRankedIndexes();
+      WebLogger.getLogger(getAppName()).d(TAG, "[onLocationChanged] nearest rows changed");
+      resetView();
+    }
+  }
+
+  @Override
+  public void onProviderDisabled(String provider) {
+  }
+
+  @Override
+  public void onProviderEnabled(String provider) {
+    if (mSortByDistance && mGeoProvider != null && isResumed()) {
+      mGeoProvider.startLocationUpdates();
+    }
+  }
+
+  @Override
+  public void onStatusChanged(String provider, int status, Bundle extras) {
   }
 
   /**
@@ -114,6 +114,7 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
     mGeoProvider = new GeoProvider(activity );
     mGeoProvider.setDirectionEventListener(this);
     mGeoProvider.setLocationEventListener(this);
+    mGeoProvider.setAdaptiveSampling(true);
 
     mSignalQualitySpinner = activity .findViewById(R.id.signalQualitySpinner);
     mCompass = activity .findViewById(R.id.compass);
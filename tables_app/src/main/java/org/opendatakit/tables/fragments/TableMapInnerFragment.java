@@ -41,10 +41,6 @@ import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.LocalKeyValueStoreConstants;
 import org.opendatakit.database.data.*;
-import org.opendatakit.database.queries.ArbitraryQuery;
-import org.opendatakit.database.queries.ResumableQuery;
-import org.opendatakit.database.queries.SimpleQuery;
-import org.opendatakit.database.queries.SingleRowQuery;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -53,6 +49,8 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.AbsBaseActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.MapPoints;
+import org.opendatakit.tables.data.MapPointsCache;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.RuntimePermissionUtils;
@@ -338,28 +336,13 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
       return;
     }
 
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    ResumableQuery resumableQuery = activity.getViewQuery(Constants.FragmentTags.MAP_INNER_MAP);
-
-    UserTable table;
+    MapPoints points;
     try {
-      if (resumableQuery instanceof ArbitraryQuery) {
-        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().arbitrarySqlQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
-      } else if (resumableQuery instanceof SimpleQuery || resumableQuery instanceof SingleRowQuery) {
-        SimpleQuery query = (SimpleQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().simpleQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getWhereClause(), query.getSqlBindArgs(),
-            query.getGroupByArgs(), query.getHavingClause(), query.getOrderByColNames(),
-            query.getOrderByDirections(), -1, 0);
-      } else {
-        String appName = ((IAppAwareActivity) getActivity()).getAppName();
-        WebLogger.getLogger(appName).e(TAG, "invalid query type");
-        return;
-      }
+      points = MapPointsCache.get(activity)
+          .getPoints(Tables.getInstance().getDatabase(), activity.getAppName(),
+              activity.getColumnDefinitions(),
+              activity.getViewQuery(Constants.FragmentTags.MAP_INNER_MAP), mLatitudeElementKey,
+              mLongitudeElementKey);
     } catch (ServicesAvailabilityException sae) {
       String appName = ((IAppAwareActivity) getActivity()).getAppName();
       WebLogger.getLogger(appName).e(TAG, "simpleQuery failed");
@@ -367,50 +350,33 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
       return;
     }
 
-    if (table != null && orderedDefns != null) {
-      // Try to find the map columns in the store.
-      ColumnDefinition latitudeColumn = orderedDefns.find(mLatitudeElementKey);
-      ColumnDefinition longitudeColumn = orderedDefns.find(mLongitudeElementKey);
-
-      // Find the locations from entries in the table.
-      LatLngBounds.Builder builder = new LatLngBounds.Builder();
-      int markers = 0;
-      LatLng onlyLocation = null;
+    if (points != null && map != null) {
+      double[] latitudes = points.getLatitudes();
+      double[] longitudes = points.getLongitudes();
 
       // Go through each row and create a marker at the specified location.
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        TypedRow row = table.getRowAtIndex(i);
-        String latitudeString = row.getStringValueByKey(latitudeColumn.getElementKey());
-        String longitudeString = row.getStringValueByKey(longitudeColumn.getElementKey());
-        if (latitudeString == null || longitudeString == null || latitudeString.isEmpty()
-                || longitudeString.isEmpty()) {
+      for (int i = 0; i < points.getRowCount(); i++) {
+        if (!points.hasLocation(i)) {
           continue;
         }
-
-        // Create a LatLng from the latitude and longitude strings.
-        LatLng location = parseLocationFromString(latitudeString, longitudeString);
-        if (location == null) {
-          continue;
-        }
-        markers++;
-        builder.include(location);
-        onlyLocation = location;
-
-        if (map != null) {
-          Marker marker = map.addMarker(new MarkerOptions().position(location).draggable(false)
-                  .icon(BitmapDescriptorFactory.defaultMarker(getHueForRow(i))));
-          mMarkerIds.put(marker, i);
-          if (mCurrentIndex == i) {
-            WebLogger.getLogger(activity.getAppName())
-                    .d(TAG, "[setMarkers] selecting marker: " + i);
-            selectMarker(marker);
-          }
+        LatLng location = new LatLng(latitudes[i], longitudes[i]);
+        Marker marker = map.addMarker(new MarkerOptions().position(location).draggable(false)
+                .icon(BitmapDescriptorFactory.defaultMarker(getHueForRow(i))));
+        mMarkerIds.put(marker, i);
+        if (mCurrentIndex == i) {
+          WebLogger.getLogger(activity.getAppName())
+                  .d(TAG, "[setMarkers] selecting marker: " + i);
+          selectMarker(marker);
         }
       }
 
-      if (markers > 1) {
-        map.moveCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), PADDING));
-      } else if (markers == 1) {
+      if (points.getLocationCount() > 1) {
+        LatLngBounds bounds = new LatLngBounds(
+            new LatLng(points.getMinLatitude(), points.getMinLongitude()),
+            new LatLng(points.getMaxLatitude(), points.getMaxLongitude()));
+        map.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds, PADDING));
+      } else if (points.getLocationCount() == 1) {
+        LatLng onlyLocation = new LatLng(points.getMinLatitude(), points.getMinLongitude());
         map.moveCamera(CameraUpdateFactory.newLatLngZoom(onlyLocation, 12f));
       }
       map.setOnMarkerClickListener(getOnMarkerClickListener());
@@ -478,21 +444,6 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     return null;
   }
 
-  /**
-   * Parses the latitude and longitude strings and creates a LatLng.
-   */
-  private LatLng parseLocationFromString(String latitude, String longitude) {
-    try {
-      return new LatLng(Double.parseDouble(latitude), Double.parseDouble(longitude));
-    } catch (Exception e) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName)
-          .e(TAG, "The following location did not parse correctly: " + latitude + "," + longitude);
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    return null;
-  }
-
   /**
    * If a marker is selected, deselect it.
    */
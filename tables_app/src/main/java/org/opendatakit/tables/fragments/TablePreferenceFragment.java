@@ -18,6 +18,7 @@ package org.opendatakit.tables.fragments;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import androidx.preference.CheckBoxPreference;
 import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
@@ -319,6 +320,7 @@ public class TablePreferenceFragment extends AbsTableLevelPreferenceFragment
       this.initializeDetailFile(db);
       this.initializeListFile(db);
       this.initializeMapListFile(db);
+      this.initializeOfflineMap(db);
       this.initializeColumns();
     } finally {
       if (db != null) {
@@ -641,6 +643,27 @@ public class TablePreferenceFragment extends AbsTableLevelPreferenceFragment
     });
   }
 
+  /**
+   * Sets up the checkbox that switches the map view to the offline point map
+   *
+   * @param db the database to use
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private void initializeOfflineMap(DbHandle db) throws ServicesAvailabilityException {
+    CheckBoxPreference offlineMapPref = (CheckBoxPreference) this
+        .findPreference(Constants.PreferenceKeys.Table.OFFLINE_MAP);
+    offlineMapPref.setChecked(PreferenceUtil
+        .getOfflineMap(Tables.getInstance().getDatabase(), getAppName(), db, getTableId()));
+    offlineMapPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        PreferenceUtil.setOfflineMap(getActivity(), getAppName(), getTableId(),
+            (Boolean) newValue);
+        return true;
+      }
+    });
+  }
+
   /**
    * Sets up the onclick listener for opening the "Columns" list
    */
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.fragments;
+
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Toast;
+import androidx.fragment.app.Fragment;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.opendatakit.data.ColorGuide;
+import org.opendatakit.data.ColorGuideGroup;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.MapPoints;
+import org.opendatakit.tables.data.MapPointsCache;
+import org.opendatakit.tables.fragments.TableMapInnerFragment.TableMapInnerFragmentListener;
+import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.ScatterMapView;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An offline alternative to {@link TableMapInnerFragment}. Rows are drawn as
+ * dots by a {@link ScatterMapView}, so no map tiles, network connection or
+ * Google Play services are needed. Colour rules, selection and adding a row
+ * with a long press behave as they do on the Google map.
+ */
+public class TableScatterMapFragment extends Fragment
+    implements ScatterMapView.ScatterMapListener {
+
+  private static final String TAG = TableScatterMapFragment.class.getSimpleName();
+
+  private static final int INVALID_INDEX = -1;
+
+  /**
+   * The index of the currently selected point. Used when saving the instance.
+   */
+  private static final String SAVE_KEY_INDEX = "saveKeyIndex";
+  /**
+   * The viewport of the map. Used when saving the instance.
+   */
+  private static final String SAVE_CENTER_X = "saveCenterX";
+  private static final String SAVE_CENTER_Y = "saveCenterY";
+  private static final String SAVE_SCALE = "saveScale";
+
+  /**
+   * The object that is listening in on events.
+   */
+  public TableMapInnerFragmentListener listener = null;
+
+  private ScatterMapView mMapView = null;
+  private ColorGuideGroup mColorGuideGroup = null;
+  /**
+   * the latitide elementKey to use for plotting
+   */
+  private String mLatitudeElementKey = null;
+  /**
+   * the longitude elementKey to use for plotting
+   */
+  private String mLongitudeElementKey = null;
+  /**
+   * The selected index restored from the saved instance, or {@link #INVALID_INDEX}
+   */
+  private int mCurrentIndex = INVALID_INDEX;
+
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    this.mCurrentIndex = TableMapInnerFragment.retrieveSavedIndexFromBundle(savedInstanceState);
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container,
+      Bundle savedInstanceState) {
+    mMapView = new ScatterMapView(getActivity());
+    mMapView.setListener(this);
+    return mMapView;
+  }
+
+  @Override
+  public void onViewCreated(View view, Bundle savedInstanceState) {
+    super.onViewCreated(view, savedInstanceState);
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    WebLogger.getLogger(activity.getAppName()).d(TAG, "[onViewCreated]");
+
+    clearAndInitializeMap();
+    mMapView.setSelectedIndex(mCurrentIndex);
+    if (savedInstanceState != null && savedInstanceState.containsKey(SAVE_SCALE)) {
+      mMapView.setViewport(savedInstanceState.getDouble(SAVE_CENTER_X),
+          savedInstanceState.getDouble(SAVE_CENTER_Y), savedInstanceState.getDouble(SAVE_SCALE));
+    }
+  }
+
+  @Override
+  public void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    if (mMapView != null) {
+      outState.putInt(SAVE_KEY_INDEX, mMapView.getSelectedIndex());
+      outState.putDouble(SAVE_CENTER_X, mMapView.getCenterX());
+      outState.putDouble(SAVE_CENTER_Y, mMapView.getCenterY());
+      outState.putDouble(SAVE_SCALE, mMapView.getScale());
+    }
+  }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    if (mMapView != null) {
+      mMapView.setListener(null);
+      mMapView = null;
+    }
+  }
+
+  /**
+   * Re-initializes the map, including the points.
+   */
+  public void clearAndInitializeMap() {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    WebLogger.getLogger(activity.getAppName()).d(TAG, "[clearAndInitializeMap]");
+    try {
+      findColorGroupAndDbConfiguration();
+      setPoints();
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
+    }
+  }
+
+  /**
+   * Finds the latitude and longitude columns and the color group used for the points.
+   *
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private void findColorGroupAndDbConfiguration() throws ServicesAvailabilityException {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    String appName = activity.getAppName();
+    OrderedColumns orderedDefns = activity.getColumnDefinitions();
+
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+
+      mLatitudeElementKey = TableUtil.get()
+          .getMapListViewLatitudeElementKey(dbInterface, appName, db, activity.getTableId(),
+              orderedDefns);
+      mLongitudeElementKey = TableUtil.get()
+          .getMapListViewLongitudeElementKey(dbInterface, appName, db, activity.getTableId(),
+              orderedDefns);
+
+      String[] adminColumns = dbInterface.getAdminColumns();
+      TableUtil.MapViewColorRuleInfo colorRuleInfo = TableUtil.get()
+          .getMapListViewColorRuleInfo(dbInterface, appName, db, activity.getTableId());
+
+      ColorRuleGroup colorGroup = null;
+      if (LocalKeyValueStoreConstants.Map.COLOR_TYPE_TABLE.equals(colorRuleInfo.colorType)) {
+        colorGroup = ColorRuleGroup
+            .getTableColorRuleGroup(dbInterface, appName, db, activity.getTableId(),
+                adminColumns);
+      } else if (LocalKeyValueStoreConstants.Map.COLOR_TYPE_STATUS
+          .equals(colorRuleInfo.colorType)) {
+        colorGroup = ColorRuleGroup
+            .getStatusColumnRuleGroup(dbInterface, appName, db, activity.getTableId(),
+                adminColumns);
+      }
+
+      mColorGuideGroup = null;
+      if (colorGroup != null) {
+        UserTable userTableForColor = activity.getUserTable();
+        mColorGuideGroup = new ColorGuideGroup(colorGroup, userTableForColor);
+      }
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * Loads the locations of the rows in the view query and hands them to the map.
+   *
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private void setPoints() throws ServicesAvailabilityException {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+
+    if (mLatitudeElementKey == null || mLongitudeElementKey == null) {
+      Toast.makeText(activity, activity.getString(R.string.lat_long_not_set), Toast.LENGTH_LONG)
+          .show();
+      return;
+    }
+
+    MapPoints points = MapPointsCache.get(activity)
+        .getPoints(Tables.getInstance().getDatabase(), activity.getAppName(),
+            activity.getColumnDefinitions(),
+            activity.getViewQuery(Constants.FragmentTags.MAP_INNER_MAP), mLatitudeElementKey,
+            mLongitudeElementKey);
+    if (points == null || mMapView == null) {
+      return;
+    }
+
+    int[] colors = null;
+    if (mColorGuideGroup != null) {
+      colors = new int[points.getRowCount()];
+      for (int i = 0; i < colors.length; i++) {
+        ColorGuide guide = mColorGuideGroup.getColorGuideForRowIndex(i);
+        colors[i] = guide == null ? ScatterMapView.DEFAULT_POINT_COLOR : guide.getBackground();
+      }
+    }
+    mMapView.setPoints(points.getLatitudes(), points.getLongitudes(), colors);
+  }
+
+  @Override
+  public void onPointSelected(int index) {
+    if (listener != null) {
+      listener.onSetSelectedItemIndex(index);
+    }
+  }
+
+  @Override
+  public void onNoPointSelected() {
+    if (listener != null) {
+      listener.setNoItemSelected();
+    }
+  }
+
+  /**
+   * On a long press, add a row to the data table at the position pressed.
+   */
+  @Override
+  public void onMapLongPress(double latitude, double longitude) {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    if (mLatitudeElementKey == null || mLongitudeElementKey == null) {
+      return;
+    }
+
+    Map<String, Object> elementKeyToValue = new HashMap<>();
+    elementKeyToValue.put(mLatitudeElementKey, latitude);
+    elementKeyToValue.put(mLongitudeElementKey, longitude);
+
+    String jsonStringifyElementKeyToValueMap;
+    try {
+      jsonStringifyElementKeyToValueMap = ODKFileUtils.mapper
+          .writeValueAsString(elementKeyToValue);
+    } catch (JsonProcessingException e) {
+      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+      throw new IllegalStateException("should never happen");
+    }
+    Bundle b = new Bundle();
+    b.putString(LocationDialogFragment.ELEMENT_KEY_TO_VALUE_MAP_KEY,
+        jsonStringifyElementKeyToValueMap);
+    b.putString(LocationDialogFragment.LOCATION_KEY, latitude + "," + longitude);
+    LocationDialogFragment dialog = new LocationDialogFragment();
+    dialog.setArguments(b);
+    dialog.show(getParentFragmentManager(), "LocationDialogFragment");
+  }
+}
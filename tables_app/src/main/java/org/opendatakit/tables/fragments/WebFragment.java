@@ -37,12 +37,32 @@ public class WebFragment extends AbsTablesFragment implements IWebFragment {
 
   private static final String TAG = WebFragment.class.getSimpleName();
 
+  /**
+   * Implemented by activities that start loading the page before the fragment is shown
+   */
+  public interface PreloadedViewSource {
+    /**
+     * Hands over an inflated {@link R.layout#web_view_container} whose web view is already
+     * loading the page, at most once
+     *
+     * @return the view, or null if there is none to hand over now
+     */
+    View takePreloadedView();
+  }
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
       Bundle savedInstanceState) {
     WebLogger.getLogger(getAppName())
         .d(TAG, "[onCreateView] activity is: " + getActivity().getClass().getSimpleName());
 
+    View preloaded = getActivity() instanceof PreloadedViewSource ?
+        ((PreloadedViewSource) getActivity()).takePreloadedView() :
+        null;
+    if (preloaded != null) {
+      WebLogger.getLogger(getAppName()).d(TAG, "[onCreateView] using the preloaded web view");
+      return preloaded;
+    }
     return inflater.inflate(R.layout.web_view_container, container, false);
   }
 
@@ -5,22 +5,41 @@ package org.opendatakit.tables.logic;
  */
 public class AverageAngle
 {
-  private double[] mValues;
+  private double[] mSinValues;
+  private double[] mCosValues;
   private int mCurrentIndex;
   private int mNumberOfFrames;
   private boolean mIsFull;
   private double mAverageValue = Double.NaN;
 
+  /**
+   * Running sums of sin and cos over the window, so each sample costs O(1)
+   */
+  private double mSumSin = 0.0;
+  private double mSumCos = 0.0;
+
   public AverageAngle(int frames)
   {
     this.mNumberOfFrames = frames;
     this.mCurrentIndex = 0;
-    this.mValues = new double[frames];
+    this.mSinValues = new double[frames];
+    this.mCosValues = new double[frames];
   }
 
   public void add(double d)
   {
-    mValues[mCurrentIndex] = d;
+    double sin = Math.sin(d);
+    double cos = Math.cos(d);
+    if (mIsFull) {
+      // drop the sample that is falling out of the window
+      mSumSin -= mSinValues[mCurrentIndex];
+      mSumCos -= mCosValues[mCurrentIndex];
+    }
+    mSinValues[mCurrentIndex] = sin;
+    mCosValues[mCurrentIndex] = cos;
+    mSumSin += sin;
+    mSumCos += cos;
+
     if (mCurrentIndex == mNumberOfFrames - 1) {
       mCurrentIndex = 0;
       mIsFull = true;
@@ -35,26 +54,36 @@ public class AverageAngle
     return this.mAverageValue;
   }
 
-  private void updateAverageValue()
+  /**
+   * @return true once the window holds as many samples as frames requested
+   */
+  public boolean isFull()
   {
-    int numberOfElementsToConsider = mNumberOfFrames;
-    if (!mIsFull) {
-      numberOfElementsToConsider = mCurrentIndex + 1;
-    }
+    return mIsFull;
+  }
 
-    if (numberOfElementsToConsider == 1) {
-      this.mAverageValue = mValues[0];
-      return;
+  /**
+   * Circular standard deviation of the samples in the window.
+   *
+   * @return the spread of the window in radians, 0 if all samples agree
+   */
+  public double getDeviation()
+  {
+    int numberOfElementsToConsider = mIsFull ? mNumberOfFrames : mCurrentIndex;
+    if (numberOfElementsToConsider == 0) {
+      return Double.NaN;
+    }
+    // Formula: http://en.wikipedia.org/wiki/Directional_statistics#Measures_of_location_and_spread
+    double r = Math.sqrt(mSumSin * mSumSin + mSumCos * mSumCos) / numberOfElementsToConsider;
+    if (r >= 1.0) {
+      return 0.0;
     }
+    return Math.sqrt(-2.0 * Math.log(r));
+  }
 
+  private void updateAverageValue()
+  {
     // Formula: http://en.wikipedia.org/wiki/Circular_mean
-    double sumSin = 0.0;
-    double sumCos = 0.0;
-    for (int i = 0; i < numberOfElementsToConsider; i++) {
-      double v = mValues[i];
-      sumSin += Math.sin(v);
-      sumCos += Math.cos(v);
-    }
-    this.mAverageValue = Math.atan2(sumSin, sumCos);
+    this.mAverageValue = Math.atan2(mSumSin, mSumCos);
   }
-}
\ No newline at end of file
+}
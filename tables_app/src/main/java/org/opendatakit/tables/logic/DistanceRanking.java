@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.logic;
+
+import org.opendatakit.tables.utils.DistanceUtil;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the K rows nearest to the current location, ordered by distance.
+ * <p>
+ * The row coordinates are parsed once into primitive arrays. A location update
+ * that moves less than the re-rank threshold is ignored. Otherwise the ranking
+ * is recomputed from a candidate pool of the nearest {@code poolSize} rows taken
+ * at the last full scan. If every point moved by at most {@code d}, the new top K
+ * must lie inside the pool as long as {@code kthDistance + 2d <= poolBound}, so
+ * only the pool is re-ranked. The whole table is only rescanned once the device
+ * has moved far enough to break that bound.
+ */
+public class DistanceRanking {
+
+  /**
+   * Row coordinates in degrees. NaN marks a row without a usable location.
+   */
+  private final double[] mLatitudes;
+  private final double[] mLongitudes;
+
+  private final int mTopK;
+  private final double mRerankThreshold;
+
+  /**
+   * Candidate pool built by the last full scan, nearest first
+   */
+  private final int[] mPool;
+  private final double[] mPoolDistances;
+  private int mPoolCount = 0;
+  /**
+   * Distance of the farthest pool member from the pool centre, or infinity when
+   * the pool holds every row that has a location.
+   */
+  private double mPoolBound = Double.NaN;
+  private double mPoolLatitude = Double.NaN;
+  private double mPoolLongitude = Double.NaN;
+
+  /**
+   * Current ranking, nearest first
+   */
+  private final int[] mRanked;
+  private final double[] mRankedDistances;
+  private int mRankedCount = 0;
+  private double mRankedLatitude = Double.NaN;
+  private double mRankedLongitude = Double.NaN;
+
+  /**
+   * Scratch space for re-ranking the pool and for the ranking before an update, so
+   * updates do not allocate
+   */
+  private final int[] mScratch;
+  private final double[] mScratchDistances;
+  private final int[] mPrevious;
+
+  /**
+   * @param latitudes       the latitude of each row, NaN if the row has none
+   * @param longitudes      the longitude of each row, NaN if the row has none
+   * @param topK            how many of the nearest rows to keep ranked
+   * @param rerankThreshold minimum movement (metres) before the ranking is recomputed
+   */
+  public DistanceRanking(double[] latitudes, double[] longitudes, int topK,
+      double rerankThreshold) {
+    if (latitudes.length != longitudes.length) {
+      throw new IllegalArgumentException("latitude and longitude arrays differ in length");
+    }
+    if (topK < 1) {
+      throw new IllegalArgumentException("topK must be positive");
+    }
+    mLatitudes = latitudes;
+    mLongitudes = longitudes;
+    mTopK = Math.min(topK, latitudes.length);
+    mRerankThreshold = rerankThreshold;
+
+    int poolSize = (int) Math.min((long) latitudes.length, 4L * topK);
+    mPool = new int[poolSize];
+    mPoolDistances = new double[poolSize];
+    mScratch = new int[poolSize];
+    mScratchDistances = new double[poolSize];
+    mRanked = new int[mTopK];
+    mRankedDistances = new double[mTopK];
+    mPrevious = new int[mTopK];
+  }
+
+  /**
+   * Updates the ranking for a new location.
+   *
+   * @param latitude  current latitude in degrees
+   * @param longitude current longitude in degrees
+   * @return true if the order of the nearest rows changed
+   */
+  public boolean updateLocation(double latitude, double longitude) {
+    if (!Double.isNaN(mRankedLatitude) && DistanceUtil
+        .getHaversineDistance(mRankedLatitude, mRankedLongitude, latitude, longitude)
+        < mRerankThreshold) {
+      return false;
+    }
+
+    boolean usePool = false;
+    if (!Double.isNaN(mPoolLatitude)) {
+      double moved = DistanceUtil
+          .getHaversineDistance(mPoolLatitude, mPoolLongitude, latitude, longitude);
+      int kth = Math.min(mTopK, mPoolCount) - 1;
+      usePool = kth < 0 || mPoolDistances[kth] + 2 * moved <= mPoolBound;
+    }
+
+    int previousCount = mRankedCount;
+    System.arraycopy(mRanked, 0, mPrevious, 0, previousCount);
+    if (usePool) {
+      rerankPool(latitude, longitude);
+    } else {
+      rebuildPool(latitude, longitude);
+      mRankedCount = Math.min(mTopK, mPoolCount);
+      System.arraycopy(mPool, 0, mRanked, 0, mRankedCount);
+      System.arraycopy(mPoolDistances, 0, mRankedDistances, 0, mRankedCount);
+    }
+    mRankedLatitude = latitude;
+    mRankedLongitude = longitude;
+
+    if (previousCount != mRankedCount) {
+      return true;
+    }
+    for (int i = 0; i < mRankedCount; i++) {
+      if (mPrevious[i] != mRanked[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return a new array of the indexes of the nearest rows, nearest first. Empty until
+   * the first location update.
+   */
+  public int[] getRankedIndexes() {
+    return Arrays.copyOf(mRanked, mRankedCount);
+  }
+
+  /**
+   * @return the index of the nearest row, or -1 if nothing has been ranked yet
+   */
+  public int getNearestIndex() {
+    return mRankedCount == 0 ? -1 : mRanked[0];
+  }
+
+  /**
+   * @param position position in the ranking, 0 being the nearest
+   * @return the distance in metres of that row from the last ranked location
+   */
+  public double getRankedDistance(int position) {
+    if (position < 0 || position >= mRankedCount) {
+      throw new IndexOutOfBoundsException("position " + position + " of " + mRankedCount);
+    }
+    return mRankedDistances[position];
+  }
+
+  /**
+   * Scans every row and keeps the nearest pool-size rows in a bounded max-heap
+   */
+  private void rebuildPool(double latitude, double longitude) {
+    int capacity = mPool.length;
+    int count = 0;
+    int withLocation = 0;
+    for (int i = 0; i < mLatitudes.length; i++) {
+      if (Double.isNaN(mLatitudes[i]) || Double.isNaN(mLongitudes[i])) {
+        continue;
+      }
+      withLocation++;
+      double d = DistanceUtil
+          .getHaversineDistance(latitude, longitude, mLatitudes[i], mLongitudes[i]);
+      if (count < capacity) {
+        mPool[count] = i;
+        mPoolDistances[count] = d;
+        siftUp(mPool, mPoolDistances, count);
+        count++;
+      } else if (d < mPoolDistances[0]) {
+        mPool[0] = i;
+        mPoolDistances[0] = d;
+        siftDown(mPool, mPoolDistances, 0, count);
+      }
+    }
+
+    mPoolCount = count;
+    mPoolBound = withLocation > count ? mPoolDistances[0] : Double.POSITIVE_INFINITY;
+    // heap-sort in place so the pool ends up nearest first
+    for (int end = count - 1; end > 0; end--) {
+      swap(mPool, mPoolDistances, 0, end);
+      siftDown(mPool, mPoolDistances, 0, end);
+    }
+    mPoolLatitude = latitude;
+    mPoolLongitude = longitude;
+  }
+
+  /**
+   * Re-ranks the pool members only, leaving the pool itself untouched
+   */
+  private void rerankPool(double latitude, double longitude) {
+    for (int i = 0; i < mPoolCount; i++) {
+      int row = mPool[i];
+      mScratch[i] = row;
+      mScratchDistances[i] = DistanceUtil
+          .getHaversineDistance(latitude, longitude, mLatitudes[row], mLongitudes[row]);
+    }
+    // partial selection: the pool is small and was nearly sorted for a nearby point
+    int count = Math.min(mTopK, mPoolCount);
+    for (int i = 0; i < count; i++) {
+      int best = i;
+      for (int j = i + 1; j < mPoolCount; j++) {
+        if (mScratchDistances[j] < mScratchDistances[best]) {
+          best = j;
+        }
+      }
+      swap(mScratch, mScratchDistances, i, best);
+      mRanked[i] = mScratch[i];
+      mRankedDistances[i] = mScratchDistances[i];
+    }
+    mRankedCount = count;
+  }
+
+  private static void siftUp(int[] rows, double[] keys, int index) {
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+      if (keys[parent] >= keys[index]) {
+        return;
+      }
+      swap(rows, keys, parent, index);
+      index = parent;
+    }
+  }
+
+  private static void siftDown(int[] rows, double[] keys, int index, int size) {
+    while (true) {
+      int left = 2 * index + 1;
+      if (left >= size) {
+        return;
+      }
+      int largest = left;
+      int right = left + 1;
+      if (right < size && keys[right] > keys[left]) {
+        largest = right;
+      }
+      if (keys[index] >= keys[largest]) {
+        return;
+      }
+      swap(rows, keys, index, largest);
+      index = largest;
+    }
+  }
+
+  private static void swap(int[] rows, double[] keys, int a, int b) {
+    int row = rows[a];
+    rows[a] = rows[b];
+    rows[b] = row;
+    double key = keys[a];
+    keys[a] = keys[b];
+    keys[b] = key;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.logic;
+
+/**
+ * First-order low-pass filter for an angle, parameterised by a time constant
+ * rather than a number of frames, so the smoothing does not change with the
+ * sensor rate. The filter runs on the sin and cos of the angle so that it
+ * behaves across the 359/0 degree wrap.
+ */
+public class LowPassAngle {
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  /**
+   * Time constant in nanoseconds
+   */
+  private double mTimeConstant;
+
+  private double mSin = 0.0;
+  private double mCos = 0.0;
+  private long mLastTimestamp = -1;
+  private double mValue = Double.NaN;
+
+  /**
+   * @param timeConstantMillis the time (millis) for the output to cover ~63% of a step change
+   */
+  public LowPassAngle(long timeConstantMillis) {
+    setTimeConstant(timeConstantMillis);
+  }
+
+  /**
+   * @param timeConstantMillis the time (millis) for the output to cover ~63% of a step change
+   */
+  public void setTimeConstant(long timeConstantMillis) {
+    if (timeConstantMillis < 0) {
+      throw new IllegalArgumentException("time constant must not be negative");
+    }
+    mTimeConstant = timeConstantMillis * NANOS_PER_MILLI;
+  }
+
+  /**
+   * Adds a sample.
+   *
+   * @param angle     the angle in radians
+   * @param timestamp when the sample was taken, in nanoseconds (e.g. SensorEvent.timestamp)
+   */
+  public void add(double angle, long timestamp) {
+    double sin = Math.sin(angle);
+    double cos = Math.cos(angle);
+    if (mLastTimestamp < 0 || timestamp <= mLastTimestamp) {
+      // first sample, or the clock went backwards; restart from this sample
+      mSin = sin;
+      mCos = cos;
+    } else {
+      double dt = timestamp - mLastTimestamp;
+      double alpha = dt / (mTimeConstant + dt);
+      mSin += alpha * (sin - mSin);
+      mCos += alpha * (cos - mCos);
+    }
+    mLastTimestamp = timestamp;
+    mValue = Math.atan2(mSin, mCos);
+  }
+
+  /**
+   * @return the filtered angle in radians, NaN before the first sample
+   */
+  public double getValue() {
+    return mValue;
+  }
+
+  /**
+   * Forgets all samples, e.g. after the sensor has been paused.
+   */
+  public void reset() {
+    mLastTimestamp = -1;
+    mValue = Double.NaN;
+  }
+}
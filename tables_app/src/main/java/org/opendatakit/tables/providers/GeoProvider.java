@@ -13,6 +13,7 @@ import android.location.LocationManager;
 import android.os.Bundle;
 import android.view.Surface;
 import org.opendatakit.tables.logic.AverageAngle;
+import org.opendatakit.tables.logic.LowPassAngle;
 
 /**
  * @author belendia@gmail.com
@@ -21,6 +22,41 @@ import org.opendatakit.tables.logic.AverageAngle;
 public class GeoProvider implements SensorEventListener, LocationListener {
   public static final String TAG = GeoProvider.class.getSimpleName();
 
+  /**
+   * Sensor sampling period (microseconds) used in adaptive mode once the heading is stable
+   */
+  private static final int STABLE_SENSOR_PERIOD_US = 1000000;
+
+  /**
+   * Heading spread (degrees) below which the heading is considered stable
+   */
+  private static final double STABLE_HEADING_DEVIATION = 2.0;
+
+  /**
+   * How long (millis) the heading must stay stable before the sensor rate is reduced
+   */
+  private static final long STABLE_HEADING_DURATION = 3000;
+
+  /**
+   * Minimum time (millis) between location updates in adaptive mode
+   */
+  private static final long ADAPTIVE_LOCATION_MIN_TIME = 1000;
+
+  /**
+   * Minimum distance (metres) between location updates in adaptive mode while navigating
+   */
+  private static final float NAVIGATING_LOCATION_MIN_DISTANCE = 5;
+
+  /**
+   * Minimum distance (metres) between location updates in adaptive mode with no destination
+   */
+  private static final float IDLE_LOCATION_MIN_DISTANCE = 25;
+
+  /**
+   * Default time constant (millis) of the heading filter on the rotation vector path
+   */
+  private static final long DEFAULT_HEADING_TIME_CONSTANT = 250;
+
   /**
    * Interface definition for a callback to be invoked when the bearing
    * changes.
@@ -42,6 +78,10 @@ public class GeoProvider implements SensorEventListener, LocationListener {
 
   private final Sensor mAccelerometer;
   private final Sensor mMagneticField;
+  /**
+   * Fused orientation sensor, null if the device does not have one
+   */
+  private final Sensor mRotationVector;
 
   /**
   * Intermediate values read from the sensors, used to
@@ -49,9 +89,11 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   */
   private float[] mValuesAccelerometer;
   private float[] mValuesMagneticField;
+  private float[] mValuesRotationVector;
   private float[] mTempRotationMatrix;
   private float[] mRotationMatrix;
   private float[] mMatrixI;
+  private float[] mOrientation;
 
   private boolean mIsGPSOn = false;
   private boolean mIsNetworkOn = false;
@@ -59,6 +101,42 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   private boolean mHasAccelerometer = false;
   private boolean mHasMagnetometer = false;
 
+  /**
+   * Whether to derive the heading from the fused rotation vector sensor when the device has one
+   */
+  private boolean mPreferRotationVector = true;
+
+  /**
+   * Whether the rotation vector sensor is the one currently registered
+   */
+  private boolean mUsingRotationVector = false;
+
+  /**
+   * Display rotation, read when updates start rather than on every sensor event. Rotating the
+   * screen recreates the activity, which restarts the updates.
+   */
+  private int mDisplayRotation = Surface.ROTATION_0;
+
+  /**
+   * Whether sensor and location rates adapt to how the device is being used
+   */
+  private boolean mAdaptiveSampling = false;
+
+  /**
+   * Whether updates have been started, so rate changes know to re-register
+   */
+  private boolean mStarted = false;
+
+  /**
+   * Whether the sensors are currently registered at the reduced rate
+   */
+  private boolean mSensorsSlowed = false;
+
+  /**
+   * when the heading last became stable, or -1 if it is not stable
+   */
+  private long mStableSince = -1;
+
   /**
    * minimum change of bearing (degrees) to notify the direction listener
    */
@@ -84,6 +162,11 @@ public class GeoProvider implements SensorEventListener, LocationListener {
    */
   private AverageAngle mAzimuthRadians;
 
+  /**
+   * angle to magnetic north on the rotation vector path, filtered by time rather than frames
+   */
+  private LowPassAngle mFilteredAzimuthRadians;
+
   /**
    * smoothed angle to magnetic north
    */
@@ -104,6 +187,11 @@ public class GeoProvider implements SensorEventListener, LocationListener {
    */
   private Location mLocation;
 
+  /**
+   * Magnetic declination at mLocation, computed once per location rather than per sensor event
+   */
+  private double mDeclination = Double.NaN;
+
   /**
    *
    */
@@ -149,18 +237,23 @@ public class GeoProvider implements SensorEventListener, LocationListener {
     mSensorManager = (SensorManager) mActivity.getSystemService(Context.SENSOR_SERVICE);
     mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
     mMagneticField = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+    mRotationVector = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
 
     mValuesAccelerometer = new float[3];
     mValuesMagneticField = new float[3];
+    // some devices report 5 values, but getRotationMatrixFromVector only handles 3 or 4 on them
+    mValuesRotationVector = new float[4];
 
     mTempRotationMatrix = new float[9];
     mRotationMatrix = new float[9];
     mMatrixI = new float[9];
+    mOrientation = new float[3];
 
     mMinDiffForEvent = minDiffForEvent;
     mThrottleTime = throttleTime;
 
     mAzimuthRadians = new AverageAngle(smoothing);
+    mFilteredAzimuthRadians = new LowPassAngle(DEFAULT_HEADING_TIME_CONSTANT);
 
     for (final String provider : mLocationManager.getProviders(true)) {
       if (LocationManager.GPS_PROVIDER.equals(provider)
@@ -191,25 +284,59 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   public boolean start() {
     boolean deviceHasSensors = true;
 
-    mHasAccelerometer = mSensorManager.registerListener(this, mAccelerometer,
-        SensorManager.SENSOR_DELAY_NORMAL);
-    mHasMagnetometer = mSensorManager.registerListener(this, mMagneticField,
+    mSensorsSlowed = false;
+    mStableSince = -1;
+    mFilteredAzimuthRadians.reset();
+    mDisplayRotation = mActivity.getWindowManager().getDefaultDisplay().getRotation();
+
+    mUsingRotationVector = mPreferRotationVector && mRotationVector != null
+        && mSensorManager.registerListener(this, mRotationVector,
         SensorManager.SENSOR_DELAY_NORMAL);
 
-    if(mHasAccelerometer == false && mHasMagnetometer == false) {
-      unregisterSensorsListener();
-      deviceHasSensors = false;
+    if (!mUsingRotationVector) {
+      // fall back to deriving the heading from the raw sensors
+      mHasAccelerometer = mSensorManager.registerListener(this, mAccelerometer,
+          SensorManager.SENSOR_DELAY_NORMAL);
+      mHasMagnetometer = mSensorManager.registerListener(this, mMagneticField,
+          SensorManager.SENSOR_DELAY_NORMAL);
+
+      if(mHasAccelerometer == false && mHasMagnetometer == false) {
+        unregisterSensorsListener();
+        deviceHasSensors = false;
+      }
+    }
+
+    startLocationUpdates();
+    mStarted = true;
+
+    return deviceHasSensors;
+  }
+
+  /**
+   * Call this method to receive location updates only, without registering the
+   * orientation sensors. Used by views that need the position but not the heading.
+   */
+  @SuppressWarnings("MissingPermission")
+  public void startLocationUpdates() {
+    long minTime = 0;
+    float minDistance = 0;
+    if (mAdaptiveSampling) {
+      // while navigating we want every few metres; otherwise coarse updates are enough
+      minTime = ADAPTIVE_LOCATION_MIN_TIME;
+      minDistance = mDestinationLocation != null ?
+          NAVIGATING_LOCATION_MIN_DISTANCE :
+          IDLE_LOCATION_MIN_DISTANCE;
     }
 
     if (isGpsProviderOn()) {
-      mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+      mLocationManager
+          .requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime, minDistance, this);
     }
 
     if (isNetworkOn()) {
-      mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
+      mLocationManager
+          .requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime, minDistance, this);
     }
-
-    return deviceHasSensors;
   }
 
   /**
@@ -218,11 +345,88 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   public void stop() {
     unregisterSensorsListener();
     mLocationManager.removeUpdates(this);
+    mStarted = false;
+  }
+
+  /**
+   * Turns adaptive sampling on or off. In adaptive mode the orientation sensors are slowed
+   * down while the heading is stable, and location updates are distance based, finer while
+   * navigating to a destination than otherwise.
+   *
+   * @param adaptiveSampling whether to adapt sampling rates
+   */
+  public void setAdaptiveSampling(boolean adaptiveSampling) {
+    if (mAdaptiveSampling == adaptiveSampling) {
+      return;
+    }
+    mAdaptiveSampling = adaptiveSampling;
+    if (mStarted) {
+      if (!adaptiveSampling && mSensorsSlowed) {
+        registerSensors(SensorManager.SENSOR_DELAY_NORMAL);
+        mSensorsSlowed = false;
+      }
+      mStableSince = -1;
+      startLocationUpdates();
+    }
+  }
+
+  public boolean isAdaptiveSampling() {
+    return mAdaptiveSampling;
+  }
+
+  /**
+   * Chooses between the fused rotation vector heading pipeline and the accelerometer plus
+   * magnetometer one. Takes effect the next time {@link #start()} is called; the raw sensors
+   * are always used if the device has no rotation vector sensor.
+   *
+   * @param preferRotationVector whether to use the rotation vector sensor when available
+   */
+  public void setPreferRotationVector(boolean preferRotationVector) {
+    mPreferRotationVector = preferRotationVector;
+  }
+
+  /**
+   * @return true if the heading currently comes from the fused rotation vector sensor
+   */
+  public boolean isUsingRotationVector() {
+    return mUsingRotationVector;
+  }
+
+  /**
+   * Sets how strongly the heading is smoothed on the rotation vector path.
+   *
+   * @param timeConstantMillis time (millis) for the heading to follow ~63% of a sudden turn
+   */
+  public void setHeadingTimeConstant(long timeConstantMillis) {
+    mFilteredAzimuthRadians.setTimeConstant(timeConstantMillis);
   }
 
   public void unregisterSensorsListener() {
     mSensorManager.unregisterListener(this, mAccelerometer);
     mSensorManager.unregisterListener(this, mMagneticField);
+    if (mRotationVector != null) {
+      mSensorManager.unregisterListener(this, mRotationVector);
+    }
+  }
+
+  /**
+   * Re-registers whichever orientation sensors the device has at a new rate
+   *
+   * @param samplingPeriod one of the SensorManager.SENSOR_DELAY_* constants or a period in
+   *                       microseconds
+   */
+  private void registerSensors(int samplingPeriod) {
+    unregisterSensorsListener();
+    if (mUsingRotationVector) {
+      mSensorManager.registerListener(this, mRotationVector, samplingPeriod);
+      return;
+    }
+    if (mHasAccelerometer) {
+      mSensorManager.registerListener(this, mAccelerometer, samplingPeriod);
+    }
+    if (mHasMagnetometer) {
+      mSensorManager.registerListener(this, mMagneticField, samplingPeriod);
+    }
   }
 
   public boolean isGpsProviderOn() {
@@ -282,6 +486,11 @@ public class GeoProvider implements SensorEventListener, LocationListener {
 
   @Override
   public void onSensorChanged(SensorEvent event) {
+    if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+      onRotationVectorChanged(event);
+      return;
+    }
+
     switch (event.sensor.getType()) {
     case Sensor.TYPE_ACCELEROMETER:
       System.arraycopy(event.values, 0, mValuesAccelerometer, 0, 3);
@@ -299,20 +508,74 @@ public class GeoProvider implements SensorEventListener, LocationListener {
 
         //remapCoordinate();
 
-        float[] orientation = new float[3];
-        //SensorManager.getOrientation(mRotationMatrix, orientation);
-        SensorManager.getOrientation(mTempRotationMatrix, orientation);
-        mAzimuthRadians.add(orientation[0]);
+        //SensorManager.getOrientation(mRotationMatrix, mOrientation);
+        SensorManager.getOrientation(mTempRotationMatrix, mOrientation);
+        mAzimuthRadians.add(mOrientation[0]);
         mAzimuth = (Math.toDegrees(mAzimuthRadians.getAverage()) + 360 ) % 360;
 
         // update mBearing
         updateBearing();
+
+        if (mAdaptiveSampling) {
+          adaptSensorRate();
+        }
+      }
+    }
+  }
+
+  /**
+   * Heading pipeline for the fused rotation vector sensor: remap the rotation matrix for the
+   * current display rotation, then smooth with a time-based low-pass filter.
+   */
+  private void onRotationVectorChanged(SensorEvent event) {
+    System.arraycopy(event.values, 0, mValuesRotationVector, 0,
+        Math.min(event.values.length, mValuesRotationVector.length));
+    SensorManager.getRotationMatrixFromVector(mTempRotationMatrix, mValuesRotationVector);
+
+    remapCoordinate();
+
+    SensorManager.getOrientation(mRotationMatrix, mOrientation);
+    mFilteredAzimuthRadians.add(mOrientation[0], event.timestamp);
+    mAzimuth = (Math.toDegrees(mFilteredAzimuthRadians.getValue()) + 360 ) % 360;
+
+    // update mBearing
+    updateBearing();
+
+    if (mAdaptiveSampling) {
+      // the frame window is only used to judge whether the heading is stable
+      mAzimuthRadians.add(mOrientation[0]);
+      adaptSensorRate();
+    }
+  }
+
+  /**
+   * Slows the orientation sensors once the heading has been stable for a while, and speeds
+   * them back up as soon as it starts to change.
+   */
+  private void adaptSensorRate() {
+    if (!mAzimuthRadians.isFull()) {
+      return;
+    }
+    boolean stable = Math.toDegrees(mAzimuthRadians.getDeviation()) < STABLE_HEADING_DEVIATION;
+    long now = System.currentTimeMillis();
+    if (stable) {
+      if (mStableSince == -1) {
+        mStableSince = now;
+      } else if (!mSensorsSlowed && now - mStableSince >= STABLE_HEADING_DURATION) {
+        registerSensors(STABLE_SENSOR_PERIOD_US);
+        mSensorsSlowed = true;
+      }
+    } else {
+      mStableSince = -1;
+      if (mSensorsSlowed) {
+        registerSensors(SensorManager.SENSOR_DELAY_NORMAL);
+        mSensorsSlowed = false;
       }
     }
   }
 
   private void remapCoordinate() {
-    switch (mActivity.getWindowManager().getDefaultDisplay().getRotation()) {
+    switch (mDisplayRotation) {
     case Surface.ROTATION_0: // Portrait
       // device natural position
       SensorManager.remapCoordinateSystem(mTempRotationMatrix, SensorManager.AXIS_X,
@@ -349,6 +612,7 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   public void onLocationChanged(Location location) {
     // set the new location
     this.mLocation = location;
+    this.mDeclination = getGeomagneticField(location).getDeclination();
 
     // update mBearing
     updateBearing();
@@ -433,7 +697,11 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   }
 
   private double getBearingForLocation(Location location) {
-    return mAzimuth + getGeomagneticField(location).getDeclination();
+    if (location != mLocation || Double.isNaN(mDeclination)) {
+      // e.g. the last known location from the constructor
+      mDeclination = getGeomagneticField(location).getDeclination();
+    }
+    return mAzimuth + mDeclination;
   }
 
   private GeomagneticField getGeomagneticField(Location location) {
@@ -482,12 +750,21 @@ public class GeoProvider implements SensorEventListener, LocationListener {
   }
 
   public void setDestinationLocation(Location destinationLocation) {
+    boolean wasNavigating = mDestinationLocation != null;
     mDestinationLocation = destinationLocation;
+    if (mAdaptiveSampling && mStarted && !wasNavigating) {
+      // switch to finer distance-based updates
+      startLocationUpdates();
+    }
   }
 
   public void clearDestinationLocation() {
+    boolean wasNavigating = mDestinationLocation != null;
     mDestinationLocation = null;
     mBearing = Double.NaN;
     mLastBearing = Double.NaN;
+    if (mAdaptiveSampling && mStarted && wasNavigating) {
+      startLocationUpdates();
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.content.Context;
+import android.text.TextUtils;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.application.Tables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports several tables, e.g. every table for an end of day backup.
+ * <p>
+ * Each table is exported by its own job on a small, fixed pool, so the batch takes
+ * about as long as its slowest tables rather than the sum of all of them. All the
+ * jobs share one database handle. A table that fails is reported at the end and
+ * does not stop the others.
+ */
+class BatchExportJob {
+
+  // Used for logging
+  private static final String TAG = BatchExportJob.class.getSimpleName();
+
+  /**
+   * The most tables that are exported at the same time
+   */
+  private static final int MAX_CONCURRENT_TABLES = 3;
+
+  // the app name
+  private final String appName;
+  // used for the progress and failure messages
+  private final Context context;
+  private final ExportRequest[] requests;
+  private final BatchProgressListener progressListener;
+  // the row progress of each table being exported, keyed by table id
+  private final Map<String, Integer> tableProgress = new LinkedHashMap<>();
+  // the ids of the tables that could not be exported
+  private final List<String> failedTableIds = Collections
+      .synchronizedList(new ArrayList<String>());
+  // the number of tables that have finished, successfully or not
+  private final AtomicInteger finishedCount = new AtomicInteger();
+  // shared by all the jobs so the progress is reported at a steady rate
+  private final ProgressThrottle throttle = new ProgressThrottle();
+
+  /**
+   * @param appName          the app name
+   * @param context          used for the progress and failure messages
+   * @param requests         one request per table
+   * @param progressListener told about the progress
+   */
+  BatchExportJob(String appName, Context context, ExportRequest[] requests,
+      BatchProgressListener progressListener) {
+    this.appName = appName;
+    this.context = context;
+    this.requests = requests;
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Exports every table in the requests
+   *
+   * @return whether every table was exported
+   */
+  boolean run() {
+    if (requests.length == 0) {
+      return true;
+    }
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      int workers = Math.min(MAX_CONCURRENT_TABLES, requests.length);
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (ExportRequest request : requests) {
+        results.add(executor.submit(new Job(db, request)));
+      }
+      executor.shutdown();
+
+      for (int i = 0; i < results.size(); i++) {
+        boolean success;
+        try {
+          success = results.get(i).get();
+        } catch (InterruptedException | ExecutionException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          success = false;
+        }
+        if (!success) {
+          failedTableIds.add(requests[i].getTableId());
+        }
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return false;
+    } finally {
+      if (db != null) {
+        try {
+          dbInterface.closeDatabase(appName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          WebLogger.getLogger(appName).e(TAG, "Unable to close database");
+        }
+      }
+    }
+    return failedTableIds.isEmpty();
+  }
+
+  /**
+   * @return the tables that could not be exported, or null if there were none
+   */
+  String getFailureDetail() {
+    return failedTableIds.isEmpty() ?
+        null :
+        context.getString(R.string.export_failed_tables, failedTableIds.size(), requests.length,
+            TextUtils.join(", ", failedTableIds));
+  }
+
+  /**
+   * Records a table's progress and reports the progress of every table being exported
+   */
+  private void updateTableProgress(String tableId, int row) {
+    synchronized (tableProgress) {
+      if (row < 0) {
+        tableProgress.remove(tableId);
+      } else {
+        tableProgress.put(tableId, row);
+      }
+    }
+    if (!throttle.shouldReport()) {
+      return;
+    }
+    int finished = finishedCount.get();
+    StringBuilder message = new StringBuilder();
+    message.append(context.getString(R.string.export_batch_progress, finished, requests.length));
+    synchronized (tableProgress) {
+      for (Map.Entry<String, Integer> entry : tableProgress.entrySet()) {
+        message.append('\n').append(context
+            .getString(R.string.export_in_progress_table_row, entry.getKey(), entry.getValue()));
+      }
+    }
+    progressListener.onProgress(finished, requests.length, message.toString());
+  }
+
+  /**
+   * Exports one table on the shared database handle
+   */
+  private class Job implements Callable<Boolean> {
+    private final DbHandle db;
+    private final ExportRequest request;
+
+    Job(DbHandle db, ExportRequest request) {
+      this.db = db;
+      this.request = request;
+    }
+
+    @Override
+    public Boolean call() {
+      final String tableId = request.getTableId();
+      ExportListener listener = new ExportListener() {
+        @Override
+        public void updateProgressDetail(int row, int total) {
+          updateTableProgress(tableId, row);
+        }
+      };
+      updateTableProgress(tableId, 0);
+      try {
+        return ExportTask.exportTable(appName, listener, db, request);
+      } catch (ServicesAvailabilityException | RuntimeException e) {
+        WebLogger.getLogger(appName).e(TAG, "Export failed for table " + tableId);
+        WebLogger.getLogger(appName).printStackTrace(e);
+        return false;
+      } finally {
+        finishedCount.incrementAndGet();
+        updateTableProgress(tableId, -1);
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.content.Context;
+import android.text.TextUtils;
+import org.opendatakit.builder.CsvUtil;
+import org.opendatakit.builder.CsvUtilSupervisor;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ImportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.application.Tables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a whole {@link ImportBatch} of csv files.
+ * <p>
+ * The batch is split into one job per table and the jobs are put on a queue that
+ * a small, fixed number of workers drain, so independent tables are imported at
+ * the same time while the files of one table are imported in order. Each chunk
+ * that is written is recorded in the batch's checkpoint, so a batch that is run
+ * again after being interrupted carries on from its last written chunk.
+ */
+class BatchImportJob {
+
+  // Used for logging
+  private static final String TAG = BatchImportJob.class.getSimpleName();
+
+  /**
+   * The most tables that are imported at the same time. The database serialises the
+   * writes, so more workers mostly just overlap reading and parsing the files.
+   */
+  private static final int MAX_CONCURRENT_TABLES = 3;
+
+  // the app name
+  private final String appName;
+  // used for the progress and failure messages
+  private final Context context;
+  private final ImportBatch batch;
+  private final BatchProgressListener progressListener;
+  // set if any file's key value store entries failed to import
+  private volatile boolean problemImportingKVSEntries = false;
+  // why each rejected file was not imported, one entry per file
+  private final List<String> rejections = Collections.synchronizedList(new ArrayList<String>());
+  // the row progress of each table being imported, keyed by table id
+  private final Map<String, int[]> tableProgress = new LinkedHashMap<>();
+  // shared by all the workers so the progress is reported at a steady rate
+  private final ProgressThrottle throttle = new ProgressThrottle();
+
+  /**
+   * @param appName          the app name
+   * @param context          used for the progress and failure messages
+   * @param batch            the files to import
+   * @param progressListener told about the progress
+   */
+  BatchImportJob(String appName, Context context, ImportBatch batch,
+      BatchProgressListener progressListener) {
+    this.appName = appName;
+    this.context = context;
+    this.batch = batch;
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Imports every pending file of the batch
+   *
+   * @return whether every file was imported
+   */
+  boolean run() {
+    batch.saveCheckpoint();
+    List<List<ImportRequest>> jobs = batch.getPendingRequestsByTable();
+    if (jobs.isEmpty()) {
+      batch.deleteCheckpoint();
+      return true;
+    }
+
+    final BlockingQueue<List<ImportRequest>> queue = new ArrayBlockingQueue<>(jobs.size());
+    queue.addAll(jobs);
+    int workers = Math.min(MAX_CONCURRENT_TABLES, jobs.size());
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (int i = 0; i < workers; i++) {
+      results.add(executor.submit(new Worker(queue)));
+    }
+    executor.shutdown();
+
+    boolean success = true;
+    for (Future<Boolean> result : results) {
+      try {
+        success &= result.get();
+      } catch (InterruptedException | ExecutionException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        success = false;
+      }
+    }
+    if (success) {
+      batch.deleteCheckpoint();
+    }
+    return success;
+  }
+
+  /**
+   * @return whether the key value store entries of any file failed to import
+   */
+  boolean hadProblemImportingKVSEntries() {
+    return problemImportingKVSEntries;
+  }
+
+  /**
+   * @return why the rejected files were not imported, or null if none were rejected
+   */
+  String getRejectionDetail() {
+    return rejections.isEmpty() ? null : TextUtils.join("\n", rejections);
+  }
+
+  /**
+   * Imports one file, reporting its progress under its table id
+   */
+  private boolean importFile(final ImportRequest request) {
+    CsvUtil cu = new CsvUtil(new CsvUtilSupervisor() {
+      @Override
+      public UserDbInterface getDatabase() {
+        return Tables.getInstance().getDatabase();
+      }
+    }, appName);
+    ImportListener listener = new ImportListener() {
+      @Override
+      public void updateProgressDetail(int row, int total) {
+        updateTableProgress(request.getTableId(), row, total);
+      }
+
+      @Override
+      public void importComplete(boolean outcome) {
+        if (!outcome) {
+          problemImportingKVSEntries = true;
+        }
+      }
+    };
+    ChunkedCsvImporter.CommitListener commitListener = new ChunkedCsvImporter.CommitListener() {
+      @Override
+      public void chunkCommitted(int committedLines) {
+        batch.markLinesCommitted(request, committedLines);
+      }
+    };
+    int committedLines = batch.getCommittedLines(request);
+    updateTableProgress(request.getTableId(), 0, 0);
+    try {
+      UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+      CsvValidator.Report report = new CsvValidator(appName, dbInterface).validate(request);
+      if (report != null && !report.isValid()) {
+        WebLogger.getLogger(appName).e(TAG,
+            "Rejected " + request.getTableId() + " with " + report.getErrorCount() + " bad values");
+        rejections.add(report.describe(context, request.getTableId()));
+        return false;
+      }
+      if (request.getBundleFormat() != null) {
+        CsvBundleImporter importer = new CsvBundleImporter(appName, dbInterface);
+        importer.setCheckpoint(committedLines, batch.getBatchId(), commitListener);
+        return importer.importBundle(listener, request);
+      }
+      if (ChunkedCsvImporter.canImport(dbInterface, appName, request)) {
+        ChunkedCsvImporter importer = new ChunkedCsvImporter(appName, dbInterface,
+            request.getChunkSize());
+        importer.setCheckpoint(committedLines, batch.getBatchId(), commitListener);
+        return importer.importData(listener, request.getTableId(), request.getFileQualifier());
+      }
+      return cu.importSeparable(listener, request.getTableId(), request.getFileQualifier(),
+          request.getCreateTable());
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+      return false;
+    } finally {
+      synchronized (tableProgress) {
+        tableProgress.remove(request.getTableId());
+      }
+    }
+  }
+
+  /**
+   * Records a table's progress and reports the progress of every table being imported
+   */
+  private void updateTableProgress(String tableId, int row, int total) {
+    synchronized (tableProgress) {
+      tableProgress.put(tableId, new int[] { row, total });
+    }
+    if (!throttle.shouldReport()) {
+      return;
+    }
+    int completed = batch.getCompletedCount();
+    StringBuilder message = new StringBuilder();
+    message.append(context.getString(R.string.import_batch_progress, completed, batch.size()));
+    synchronized (tableProgress) {
+      for (Map.Entry<String, int[]> entry : tableProgress.entrySet()) {
+        message.append('\n').append(context
+            .getString(R.string.import_in_progress_table_row, entry.getKey(),
+                entry.getValue()[0], entry.getValue()[1]));
+      }
+    }
+    progressListener.onProgress(completed, batch.size(), message.toString());
+  }
+
+  /**
+   * Takes table jobs off the queue until it is empty. A failed file stops the rest
+   * of its table, but the other tables carry on.
+   */
+  private class Worker implements Callable<Boolean> {
+    private final BlockingQueue<List<ImportRequest>> queue;
+
+    Worker(BlockingQueue<List<ImportRequest>> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public Boolean call() {
+      boolean success = true;
+      List<ImportRequest> job;
+      while ((job = queue.poll()) != null) {
+        for (ImportRequest request : job) {
+          if (!importFile(request)) {
+            WebLogger.getLogger(appName).e(TAG,
+                "Import failed for table " + request.getTableId() + ", skipping its other files");
+            success = false;
+            break;
+          }
+          batch.markCompleted(request);
+        }
+      }
+      return success;
+    }
+  }
+}
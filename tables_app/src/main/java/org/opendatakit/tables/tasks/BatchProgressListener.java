@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+/**
+ * Told about the progress of a {@link BatchImportJob} or a {@link BatchExportJob}.
+ * Called from the job's worker threads, at most once per
+ * {@link ProgressThrottle#DEFAULT_INTERVAL}.
+ */
+interface BatchProgressListener {
+
+  /**
+   * @param finished the number of files or tables that are done
+   * @param total    the number of files or tables in the batch
+   * @param message  a line for the batch, then a line per file or table in progress
+   */
+  void onProgress(int finished, int total, String message);
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.content.ContentValues;
+import org.opendatakit.builder.csvparser.RFC4180CsvReader;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ImportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends the rows of a csv data file to an existing table in chunks.
+ * <p>
+ * A parser thread tokenizes the file into chunks of rows and hands them over a
+ * small bounded queue, so reading and parsing the file overlaps with the database
+ * writes, and memory use stays at a couple of chunks however big the file is.
+ * Each chunk is written on a single database handle and costs one existence
+ * query, instead of a handle and a lookup per row. Progress is reported at most
+ * once per {@link ProgressThrottle#DEFAULT_INTERVAL}.
+ * <p>
+ * This only covers data files. Files with a definition or properties file, or for
+ * a table that does not exist yet, go through
+ * {@link org.opendatakit.builder.CsvUtil#importSeparable} as before. A file written
+ * by {@link DeltaCsvExporter} is applied as is: its tombstones delete their rows.
+ */
+class ChunkedCsvImporter {
+
+  private static final String TAG = ChunkedCsvImporter.class.getSimpleName();
+
+  /**
+   * The number of rows written per chunk unless the request says otherwise
+   */
+  static final int DEFAULT_CHUNK_SIZE = 500;
+  /**
+   * Keeps the existence query of a chunk under SQLite's bind argument limit
+   */
+  private static final int MAX_CHUNK_SIZE = 900;
+  /**
+   * How many parsed chunks may wait for the database
+   */
+  private static final int QUEUE_CHUNKS = 2;
+  private static final long OFFER_TIMEOUT_MS = 100;
+
+  /**
+   * The metadata columns of an exported file that a user may set on a row
+   */
+  private static final Set<String> IMPORTABLE_METADATA = new HashSet<>(Arrays
+      .asList(DataTableColumns.FORM_ID, DataTableColumns.LOCALE,
+          DataTableColumns.SAVEPOINT_TYPE, DataTableColumns.SAVEPOINT_TIMESTAMP,
+          DataTableColumns.SAVEPOINT_CREATOR, DataTableColumns.DEFAULT_ACCESS,
+          DataTableColumns.ROW_OWNER, DataTableColumns.GROUP_READ_ONLY,
+          DataTableColumns.GROUP_MODIFY, DataTableColumns.GROUP_PRIVILEGED));
+
+  /**
+   * Put on the queue by the parser when it is finished, successfully or not
+   */
+  private static final Chunk END = new Chunk(0);
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+  private final int chunkSize;
+  private final ProgressThrottle throttle = new ProgressThrottle();
+  // the number of data lines a previous, interrupted import already wrote
+  private int resumeLine = 0;
+  // makes the ids of rows without one the same each time the file is read, or null
+  private String checkpointId = null;
+  private CommitListener commitListener = null;
+
+  /**
+   * Told each time a chunk has been written to the database
+   */
+  interface CommitListener {
+    /**
+     * @param committedLines the number of data lines of the file that are now in the table
+     */
+    void chunkCommitted(int committedLines);
+  }
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   * @param chunkSize   the number of rows to write per chunk
+   */
+  ChunkedCsvImporter(String appName, UserDbInterface dbInterface, int chunkSize) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+    this.chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, chunkSize));
+  }
+
+  /**
+   * Picks up an import that was interrupted. The data lines that were already
+   * written are skipped, and the listener is told about each chunk written so that
+   * the caller can record how far the import got. The rows of a chunk are not
+   * written in one transaction, so the last chunk before an interruption may be
+   * written again. A row without an id is given one made from the checkpoint id,
+   * the data's name and its line, so a row written again replaces itself like a
+   * row with an id does.
+   *
+   * @param committedLines the number of data lines to skip
+   * @param checkpointId   the same each time the import is picked up, e.g. the batch id
+   * @param listener       told about each chunk written, may be null
+   */
+  void setCheckpoint(int committedLines, String checkpointId, CommitListener listener) {
+    this.resumeLine = Math.max(0, committedLines);
+    this.checkpointId = checkpointId;
+    this.commitListener = listener;
+  }
+
+  /**
+   * @param dbInterface the database interface to use
+   * @param appName     the app name
+   * @param request     the import to check
+   * @return true if the request is a chunked append of a data file to an existing table
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  static boolean canImport(UserDbInterface dbInterface, String appName, ImportRequest request)
+      throws ServicesAvailabilityException {
+    if (request.getChunkSize() <= 0) {
+      return false;
+    }
+    String base = getFileBase(appName, request.getTableId(), request.getFileQualifier());
+    if (!new File(base + CsvBundle.CSV_EXTENSION).isFile()
+        || new File(base + CsvBundle.DEFINITION_SUFFIX).exists()
+        || new File(base + CsvBundle.PROPERTIES_SUFFIX).exists()) {
+      return false;
+    }
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      return dbInterface.getAllTableIds(appName, db).contains(request.getTableId());
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * Appends the rows of the data file to the table. A row whose id is already in
+   * the table replaces that row.
+   *
+   * @param listener      told about the progress
+   * @param tableId       the table to import into
+   * @param fileQualifier the qualifier of the file name, may be null
+   * @return whether the import was successful
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean importData(ImportListener listener, String tableId, String fileQualifier)
+      throws ServicesAvailabilityException {
+    File file = new File(
+        getFileBase(appName, tableId, fileQualifier) + CsvBundle.CSV_EXTENSION);
+    InputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to read " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return false;
+    }
+    return importData(listener, tableId, in, file.length(), file.getAbsolutePath());
+  }
+
+  /**
+   * Appends the rows of a stream of csv data to the table, e.g. an entry of a
+   * {@link CsvBundle}. The stream is closed once it has been read.
+   *
+   * @param listener told about the progress
+   * @param tableId  the table to import into
+   * @param in       the csv data
+   * @param length   the length of the data in bytes, or -1 if it is not known
+   * @param name     the name of the data, used for logging
+   * @return whether the import was successful
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean importData(ImportListener listener, String tableId, InputStream in, long length,
+      String name) throws ServicesAvailabilityException {
+    OrderedColumns columns;
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      columns = dbInterface.getUserDefinedColumns(appName, db, tableId);
+    } catch (ServicesAvailabilityException | RuntimeException e) {
+      closeQuietly(in);
+      throw e;
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+
+    BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    Parser parser = new Parser(in, length, name, columns, queue);
+    Thread parserThread = new Thread(parser, TAG);
+    parserThread.start();
+
+    int imported = 0;
+    try {
+      Chunk chunk;
+      while ((chunk = queue.take()) != END) {
+        writeChunk(tableId, columns, chunk);
+        imported += chunk.size();
+        if (commitListener != null) {
+          commitListener.chunkCommitted(chunk.lastLine);
+        }
+        if (throttle.shouldReport()) {
+          listener.updateProgressDetail(imported, parser.estimateTotalRows(imported));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      parser.cancel();
+    }
+
+    if (parser.failure != null) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to read " + name);
+      WebLogger.getLogger(appName).printStackTrace(parser.failure);
+      return false;
+    }
+    listener.updateProgressDetail(imported, imported);
+    listener.importComplete(true);
+    return true;
+  }
+
+  /**
+   * Writes a chunk on one database handle, updating the rows that already exist. An id
+   * that appears more than once in the chunk is written in file order, the last row wins.
+   */
+  private void writeChunk(String tableId, OrderedColumns columns, Chunk chunk)
+      throws ServicesAvailabilityException {
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      Set<String> existing = findExistingRowIds(db, tableId, columns, chunk);
+      for (int i = 0; i < chunk.size(); i++) {
+        String rowId = chunk.rowIds.get(i);
+        if (chunk.values.get(i) == null) {
+          // a tombstone from an incremental export, nothing to do if the row is not here
+          if (existing.remove(rowId)) {
+            dbInterface.deleteRowWithId(appName, db, tableId, columns, rowId);
+          }
+        } else if (existing.contains(rowId)) {
+          dbInterface.updateRowWithId(appName, db, tableId, columns, chunk.values.get(i), rowId);
+        } else {
+          dbInterface.insertRowWithId(appName, db, tableId, columns, chunk.values.get(i), rowId);
+          existing.add(rowId);
+        }
+      }
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * Looks up which of the chunk's ids are already in the table, with a single query for
+   * the whole chunk
+   */
+  private Set<String> findExistingRowIds(DbHandle db, String tableId, OrderedColumns columns,
+      Chunk chunk) throws ServicesAvailabilityException {
+    Set<String> existing = new HashSet<>();
+    Set<String> ids = new LinkedHashSet<>(chunk.lookupIds);
+    if (ids.isEmpty()) {
+      return existing;
+    }
+    StringBuilder where = new StringBuilder(DataTableColumns.ID).append(" IN (");
+    for (int i = 0; i < ids.size(); i++) {
+      where.append(i == 0 ? "?" : ",?");
+    }
+    where.append(")");
+    UserTable table = dbInterface
+        .simpleQuery(appName, db, tableId, columns, where.toString(),
+            new BindArgs(ids.toArray(new String[ids.size()])), null, null, null, null, -1, 0);
+    for (int i = 0; i < table.getNumberOfRows(); i++) {
+      existing.add(table.getRowId(i));
+    }
+    return existing;
+  }
+
+  private void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+
+  private static String getFileBase(String appName, String tableId, String fileQualifier) {
+    String name = fileQualifier == null ? tableId : tableId + "." + fileQualifier;
+    return ODKFileUtils.getAssetsCsvFolder(appName) + File.separator + name;
+  }
+
+  /**
+   * A group of parsed rows that are written together
+   */
+  private static final class Chunk {
+    final List<String> rowIds;
+    // the ids that may already be in the table
+    final List<String> lookupIds;
+    // null for a row that is to be deleted
+    final List<ContentValues> values;
+    // the number of data lines of the file read up to the end of this chunk
+    int lastLine = 0;
+
+    Chunk(int capacity) {
+      rowIds = new ArrayList<>(capacity);
+      lookupIds = new ArrayList<>(capacity);
+      values = new ArrayList<>(capacity);
+    }
+
+    int size() {
+      return rowIds.size();
+    }
+  }
+
+  /**
+   * Reads the file into chunks on its own thread
+   */
+  private final class Parser implements Runnable {
+    private final InputStream source;
+    private final long length;
+    private final String name;
+    private final OrderedColumns columns;
+    private final BlockingQueue<Chunk> queue;
+    private volatile boolean cancelled = false;
+    private volatile long bytesRead = 0;
+    private volatile int rowsRead = 0;
+    private int linesRead = 0;
+    volatile Exception failure = null;
+
+    Parser(InputStream source, long length, String name, OrderedColumns columns,
+        BlockingQueue<Chunk> queue) {
+      this.source = source;
+      this.length = length;
+      this.name = name;
+      this.columns = columns;
+      this.queue = queue;
+    }
+
+    void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * The number of rows is not known up front, so it is estimated from how many
+     * bytes the rows read so far took up
+     */
+    int estimateTotalRows(int rowsImported) {
+      long bytes = bytesRead;
+      int rows = rowsRead;
+      if (length < 0 || bytes == 0 || rows == 0) {
+        return rowsImported;
+      }
+      return Math.max(rowsImported, (int) (length * rows / bytes));
+    }
+
+    @Override
+    public void run() {
+      RFC4180CsvReader reader = null;
+      try {
+        InputStream in = new FilterInputStream(source) {
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+              bytesRead++;
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+              bytesRead += n;
+            }
+            return n;
+          }
+        };
+        reader = new RFC4180CsvReader(
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+
+        String[] header = reader.readNext();
+        if (header == null) {
+          return;
+        }
+        Set<String> elementKeys = new HashSet<>();
+        for (ColumnDefinition column : columns.getColumnDefinitions()) {
+          elementKeys.add(column.getElementKey());
+        }
+        Map<Integer, String> importable = new HashMap<>();
+        int idIndex = -1;
+        int deltaIndex = -1;
+        for (int i = 0; i < header.length; i++) {
+          if (DataTableColumns.ID.equals(header[i])) {
+            idIndex = i;
+          } else if (DeltaCsvExporter.DELTA_COLUMN.equals(header[i])) {
+            deltaIndex = i;
+          } else if (elementKeys.contains(header[i]) || IMPORTABLE_METADATA
+              .contains(header[i])) {
+            importable.put(i, header[i]);
+          }
+        }
+
+        Chunk chunk = new Chunk(chunkSize);
+        String[] line;
+        while (!cancelled && (line = reader.readNext()) != null) {
+          if (++linesRead <= resumeLine) {
+            continue;
+          }
+          if (deltaIndex >= 0 && deltaIndex < line.length && DeltaCsvExporter.DELTA_DELETE
+              .equals(line[deltaIndex])) {
+            if (idIndex >= 0 && idIndex < line.length && !line[idIndex].isEmpty()) {
+              chunk.rowIds.add(line[idIndex]);
+              chunk.lookupIds.add(line[idIndex]);
+              chunk.values.add(null);
+              rowsRead++;
+              if (chunk.size() == chunkSize) {
+                put(chunk);
+                chunk = new Chunk(chunkSize);
+              }
+            }
+            continue;
+          }
+          ContentValues cv = new ContentValues();
+          for (Map.Entry<Integer, String> entry : importable.entrySet()) {
+            int index = entry.getKey();
+            String value = index < line.length ? line[index] : null;
+            if (value == null || value.isEmpty()) {
+              cv.putNull(entry.getValue());
+            } else {
+              cv.put(entry.getValue(), value);
+            }
+          }
+          String rowId = idIndex >= 0 && idIndex < line.length ? line[idIndex] : null;
+          if (rowId == null || rowId.isEmpty()) {
+            rowId = generateRowId();
+            if (checkpointId != null) {
+              // a chunk written again before an interruption has this row already
+              chunk.lookupIds.add(rowId);
+            }
+          } else {
+            chunk.lookupIds.add(rowId);
+          }
+          chunk.rowIds.add(rowId);
+          chunk.values.add(cv);
+          rowsRead++;
+          if (chunk.size() == chunkSize) {
+            put(chunk);
+            chunk = new Chunk(chunkSize);
+          }
+        }
+        if (chunk.size() > 0) {
+          put(chunk);
+        }
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        // a row that cannot be parsed fails the import, the chunk it is in is never written
+        failure = e;
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException e) {
+            WebLogger.getLogger(appName).printStackTrace(e);
+          }
+        } else {
+          closeQuietly(source);
+        }
+        try {
+          put(END);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /**
+     * Gives a row without an id in the file one that is the same each time the line is
+     * read under the same checkpoint, and a random one otherwise
+     */
+    private String generateRowId() {
+      if (checkpointId == null) {
+        return "uuid:" + UUID.randomUUID().toString();
+      }
+      String seed = checkpointId + File.separator + name + ":" + linesRead;
+      return "uuid:" + UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Waits for room on the queue, giving up once the importer has stopped reading it
+     */
+    private void put(Chunk chunk) throws InterruptedException {
+      if (chunk != END) {
+        chunk.lastLine = linesRead;
+      }
+      while (!cancelled) {
+        if (queue.offer(chunk, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SingleRowQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports a table, or the rows of a view query, to a typed columnar binary file
+ * that analysis tools can load without parsing csv text.
+ * <p>
+ * The rows are fetched a page at a time by {@link QueryCsvExporter} and every page
+ * is written as a row group, column by column. Each column is stored according to
+ * the {@link ElementDataType} of its definition: integers as 64 bit longs, numbers
+ * as doubles, booleans as a bit set and everything else, including the metadata
+ * columns, as dictionary encoded strings. The layout, all big endian:
+ * <pre>
+ * "ODKC" version:byte columnCount:int
+ * columnCount times: name:string kind:byte elementType:string
+ * row groups: rowCount:int (0 ends the file)
+ *   per column: presence bit set of (rowCount + 7) / 8 bytes, then
+ *     INT64 / FLOAT64: rowCount values, 0 where the value is null
+ *     BOOLEAN:         a bit set of (rowCount + 7) / 8 bytes
+ *     DICTIONARY:      dictionarySize:int, dictionarySize strings, rowCount int codes
+ * totalRows:long
+ * </pre>
+ * A string is its UTF-8 length as an int followed by the bytes. The bit sets are
+ * least significant bit first.
+ */
+class ColumnarExporter {
+
+  private static final String TAG = ColumnarExporter.class.getSimpleName();
+
+  /**
+   * The extension of the files this writes
+   */
+  static final String EXTENSION = ".odkc";
+
+  private static final byte[] MAGIC = { 'O', 'D', 'K', 'C' };
+  private static final byte VERSION = 1;
+
+  private static final byte KIND_INT64 = 0;
+  private static final byte KIND_FLOAT64 = 1;
+  private static final byte KIND_BOOLEAN = 2;
+  private static final byte KIND_DICTIONARY = 3;
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   */
+  ColumnarExporter(String appName, UserDbInterface dbInterface) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+  }
+
+  /**
+   * Writes the rows to output/csv/tableId.qualifier.odkc
+   *
+   * @param listener     told about the progress, the total is unknown and given as 0
+   * @param db           an open database handle
+   * @param tableId      the table to export
+   * @param orderedDefns the columns of the table
+   * @param query        the rows to export, or null for every row of the table
+   * @param qualifier    the qualifier of the output file name
+   * @return whether the file was written
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean export(ExportListener listener, DbHandle db, String tableId,
+      OrderedColumns orderedDefns, ResumableQuery query, String qualifier)
+      throws ServicesAvailabilityException {
+    if (query == null) {
+      query = new SingleRowQuery(tableId, null, new BindArgs(new Object[0]), null, null, null,
+          null, null, null, null);
+    } else if (!QueryCsvExporter.canExport(query)) {
+      WebLogger.getLogger(appName).e(TAG, "invalid query type");
+      return false;
+    }
+
+    File csvFolder = new File(ODKFileUtils.getOutputTableCsvFile(appName, tableId, null))
+        .getParentFile();
+    File file = new File(csvFolder, CsvBundle.getBaseName(tableId, qualifier) + EXTENSION);
+    if (csvFolder != null && !csvFolder.exists() && !csvFolder.mkdirs()) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to create " + csvFolder.getAbsolutePath());
+      return false;
+    }
+
+    DataOutputStream out = null;
+    boolean success = false;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      write(listener, db, orderedDefns, query, out);
+      success = true;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to write " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          success = false;
+        }
+      }
+      if (!success && file.exists() && !file.delete()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to delete " + file.getAbsolutePath());
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Writes the whole file for the rows of a query to a stream, a page at a time
+   *
+   * @param listener     told about the progress, may be null
+   * @param db           an open database handle
+   * @param orderedDefns the columns of the table
+   * @param query        the rows to write
+   * @param out          where the file is written, left open
+   * @return the number of rows written
+   * @throws ServicesAvailabilityException if the database is down
+   * @throws IOException                   if the file could not be written
+   */
+  long write(ExportListener listener, DbHandle db, OrderedColumns orderedDefns,
+      ResumableQuery query, DataOutputStream out)
+      throws ServicesAvailabilityException, IOException {
+    QueryCsvExporter pages = new QueryCsvExporter(appName, dbInterface,
+        QueryCsvExporter.DEFAULT_PAGE_SIZE);
+    ProgressThrottle throttle = new ProgressThrottle();
+    String[] header = null;
+    byte[] kinds = null;
+    long total = 0;
+    UserTable page;
+    do {
+      page = pages.queryPage(db, orderedDefns, query, (int) total);
+      int rows = page == null ? 0 : page.getNumberOfRows();
+      if (header == null) {
+        header = QueryCsvExporter.buildHeader(orderedDefns, rows == 0 ? null : page);
+        kinds = writeSchema(out, header, orderedDefns);
+      }
+      if (rows > 0) {
+        writeRowGroup(out, page, header, kinds);
+      }
+      total += rows;
+      if (listener != null && throttle.shouldReport()) {
+        listener.updateProgressDetail((int) total, 0);
+      }
+    } while (page != null && page.getNumberOfRows() == QueryCsvExporter.DEFAULT_PAGE_SIZE);
+    out.writeInt(0);
+    out.writeLong(total);
+    return total;
+  }
+
+  /**
+   * Writes the magic, version and columns
+   *
+   * @return the storage kind of each column
+   */
+  private static byte[] writeSchema(DataOutputStream out, String[] header,
+      OrderedColumns orderedDefns) throws IOException {
+    Map<String, ColumnDefinition> definitions = new HashMap<>();
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      definitions.put(cd.getElementKey(), cd);
+    }
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeInt(header.length);
+    byte[] kinds = new byte[header.length];
+    for (int i = 0; i < header.length; i++) {
+      ColumnDefinition cd = definitions.get(header[i]);
+      kinds[i] = cd == null ? KIND_DICTIONARY : kindOf(cd.getType().getDataType());
+      writeString(out, header[i]);
+      out.writeByte(kinds[i]);
+      writeString(out, cd == null ? ElementDataType.string.name() : cd.getElementType());
+    }
+    return kinds;
+  }
+
+  private static byte kindOf(ElementDataType dataType) {
+    switch (dataType) {
+    case integer:
+      return KIND_INT64;
+    case number:
+      return KIND_FLOAT64;
+    case bool:
+      return KIND_BOOLEAN;
+    default:
+      return KIND_DICTIONARY;
+    }
+  }
+
+  /**
+   * Writes one page of rows, a column at a time
+   */
+  private void writeRowGroup(DataOutputStream out, UserTable page, String[] header,
+      byte[] kinds) throws IOException {
+    int rows = page.getNumberOfRows();
+    List<TypedRow> typedRows = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      typedRows.add(page.getRowAtIndex(i));
+    }
+    out.writeInt(rows);
+    String[] values = new String[rows];
+    byte[] present = new byte[(rows + 7) / 8];
+    for (int c = 0; c < header.length; c++) {
+      Arrays.fill(present, (byte) 0);
+      for (int r = 0; r < rows; r++) {
+        values[r] = typedRows.get(r).getRawStringByKey(header[c]);
+        if (values[r] != null && values[r].isEmpty()) {
+          values[r] = null;
+        }
+      }
+      switch (kinds[c]) {
+      case KIND_INT64:
+        writeLongs(out, header[c], values, present);
+        break;
+      case KIND_FLOAT64:
+        writeDoubles(out, header[c], values, present);
+        break;
+      case KIND_BOOLEAN:
+        writeBooleans(out, values, present);
+        break;
+      default:
+        writeDictionary(out, values, present);
+        break;
+      }
+    }
+  }
+
+  private void writeLongs(DataOutputStream out, String elementKey, String[] values,
+      byte[] present) throws IOException {
+    long[] longs = new long[values.length];
+    for (int r = 0; r < values.length; r++) {
+      if (values[r] != null) {
+        try {
+          longs[r] = Long.parseLong(values[r]);
+          setBit(present, r);
+        } catch (NumberFormatException e) {
+          WebLogger.getLogger(appName)
+              .w(TAG, "Not an integer in " + elementKey + ", written as null: " + values[r]);
+        }
+      }
+    }
+    out.write(present);
+    for (long value : longs) {
+      out.writeLong(value);
+    }
+  }
+
+  private void writeDoubles(DataOutputStream out, String elementKey, String[] values,
+      byte[] present) throws IOException {
+    double[] doubles = new double[values.length];
+    for (int r = 0; r < values.length; r++) {
+      if (values[r] != null) {
+        try {
+          doubles[r] = Double.parseDouble(values[r]);
+          setBit(present, r);
+        } catch (NumberFormatException e) {
+          WebLogger.getLogger(appName)
+              .w(TAG, "Not a number in " + elementKey + ", written as null: " + values[r]);
+        }
+      }
+    }
+    out.write(present);
+    for (double value : doubles) {
+      out.writeDouble(value);
+    }
+  }
+
+  private static void writeBooleans(DataOutputStream out, String[] values, byte[] present)
+      throws IOException {
+    byte[] bits = new byte[present.length];
+    for (int r = 0; r < values.length; r++) {
+      if (values[r] != null) {
+        setBit(present, r);
+        // stored as an integer by the database, but accept the spelled out form too
+        if ("1".equals(values[r]) || "true".equalsIgnoreCase(values[r])) {
+          setBit(bits, r);
+        }
+      }
+    }
+    out.write(present);
+    out.write(bits);
+  }
+
+  private static void writeDictionary(DataOutputStream out, String[] values, byte[] present)
+      throws IOException {
+    Map<String, Integer> codes = new HashMap<>();
+    List<String> dictionary = new ArrayList<>();
+    int[] rowCodes = new int[values.length];
+    for (int r = 0; r < values.length; r++) {
+      if (values[r] == null) {
+        rowCodes[r] = -1;
+        continue;
+      }
+      setBit(present, r);
+      Integer code = codes.get(values[r]);
+      if (code == null) {
+        code = dictionary.size();
+        codes.put(values[r], code);
+        dictionary.add(values[r]);
+      }
+      rowCodes[r] = code;
+    }
+    out.write(present);
+    out.writeInt(dictionary.size());
+    for (String value : dictionary) {
+      writeString(out, value);
+    }
+    for (int code : rowCodes) {
+      out.writeInt(code);
+    }
+  }
+
+  /**
+   * Unlike {@link DataOutputStream#writeUTF}, not limited to 64 KB
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void setBit(byte[] bits, int index) {
+    bits[index >> 3] |= (byte) (1 << (index & 7));
+  }
+}
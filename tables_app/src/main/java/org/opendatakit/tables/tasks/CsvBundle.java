@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.builder.csvparser.RFC4180CsvReader;
+import org.opendatakit.builder.csvparser.RFC4180CsvWriter;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compressed formats a table can be exported to and imported from, and the
+ * layout of the files inside them.
+ * <p>
+ * A zip bundle holds the data, definition and properties files that a plain csv
+ * export writes, plus a manifest of the row attachments the data refers to, so
+ * a table can be copied off a device as a single file and imported elsewhere. A
+ * gzip file holds just the data file and is imported as an append to an existing
+ * table.
+ */
+public final class CsvBundle {
+
+  /**
+   * The kinds of compressed file
+   */
+  public enum Format {
+    /**
+     * tableId.qualifier.zip with the data, definition, properties and attachments manifest
+     */
+    ZIP(".zip"),
+    /**
+     * tableId.qualifier.csv.gz with only the data
+     */
+    GZIP(".csv.gz");
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+
+    /**
+     * @return the file name extension, including the leading dot
+     */
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  static final String CSV_EXTENSION = ".csv";
+  static final String DEFINITION_SUFFIX = ".definition.csv";
+  static final String PROPERTIES_SUFFIX = ".properties.csv";
+  static final String MANIFEST_SUFFIX = ".attachments.csv";
+
+  static final String[] DEFINITION_HEADER = { "_element_key", "_element_name",
+      "_element_type", "_list_child_element_keys" };
+  static final String[] PROPERTIES_HEADER = { "_partition", "_aspect", "_key", "_type",
+      "_value" };
+  static final String[] MANIFEST_HEADER = { "_id", "_element_key", "_path", "_size" };
+
+  private CsvBundle() {
+    // This class should not be instantiated
+  }
+
+  /**
+   * @param fileName the name of a file
+   * @return the format of the file, or null if it is not a bundle
+   */
+  public static Format formatOf(String fileName) {
+    for (Format format : Format.values()) {
+      if (fileName.endsWith(format.getExtension())) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param tableId       the id of the table
+   * @param fileQualifier the qualifier, may be null or empty
+   * @return the name shared by the files of an export, without an extension
+   */
+  static String getBaseName(String tableId, String fileQualifier) {
+    return fileQualifier == null || fileQualifier.isEmpty() ?
+        tableId :
+        tableId + "." + fileQualifier;
+  }
+
+  /**
+   * @param appName       the app name
+   * @param tableId       the id of the table
+   * @param fileQualifier the qualifier, may be null or empty
+   * @param format        the kind of bundle
+   * @return the bundle file in the output csv directory, next to the plain csv exports
+   */
+  static File getOutputFile(String appName, String tableId, String fileQualifier,
+      Format format) {
+    File csvFolder = new File(ODKFileUtils.getOutputTableCsvFile(appName, tableId, null))
+        .getParentFile();
+    return new File(csvFolder, getBaseName(tableId, fileQualifier) + format.getExtension());
+  }
+
+  /**
+   * Writes the columns of a table in the layout of a definition csv file
+   */
+  static void writeDefinition(RFC4180CsvWriter writer, OrderedColumns orderedDefns)
+      throws IOException {
+    writer.writeNext(DEFINITION_HEADER);
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      writer.writeNext(new String[] { cd.getElementKey(), cd.getElementName(),
+          cd.getElementType(), cd.getListChildElementKeys() });
+    }
+  }
+
+  /**
+   * Writes key value store entries in the layout of a properties csv file
+   */
+  static void writeProperties(RFC4180CsvWriter writer, List<KeyValueStoreEntry> entries)
+      throws IOException {
+    writer.writeNext(PROPERTIES_HEADER);
+    for (KeyValueStoreEntry entry : entries) {
+      writer.writeNext(
+          new String[] { entry.partition, entry.aspect, entry.key, entry.type, entry.value });
+    }
+  }
+
+  /**
+   * Reads the columns of a definition csv file
+   */
+  static List<Column> readDefinition(RFC4180CsvReader reader) throws IOException {
+    List<Column> columns = new ArrayList<>();
+    String[] header = reader.readNext();
+    if (header == null) {
+      return columns;
+    }
+    int[] indexes = indexesOf(header, DEFINITION_HEADER);
+    String[] line;
+    while ((line = reader.readNext()) != null) {
+      columns.add(new Column(valueAt(line, indexes[0]), valueAt(line, indexes[1]),
+          valueAt(line, indexes[2]), valueAt(line, indexes[3])));
+    }
+    return columns;
+  }
+
+  /**
+   * Reads the key value store entries of a properties csv file
+   */
+  static List<KeyValueStoreEntry> readProperties(RFC4180CsvReader reader, String tableId)
+      throws IOException {
+    List<KeyValueStoreEntry> entries = new ArrayList<>();
+    String[] header = reader.readNext();
+    if (header == null) {
+      return entries;
+    }
+    int[] indexes = indexesOf(header, PROPERTIES_HEADER);
+    String[] line;
+    while ((line = reader.readNext()) != null) {
+      KeyValueStoreEntry entry = new KeyValueStoreEntry();
+      entry.tableId = tableId;
+      entry.partition = valueAt(line, indexes[0]);
+      entry.aspect = valueAt(line, indexes[1]);
+      entry.key = valueAt(line, indexes[2]);
+      entry.type = valueAt(line, indexes[3]);
+      entry.value = valueAt(line, indexes[4]);
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static int[] indexesOf(String[] header, String[] names) throws IOException {
+    int[] indexes = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      indexes[i] = -1;
+      for (int j = 0; j < header.length; j++) {
+        if (names[i].equals(header[j])) {
+          indexes[i] = j;
+        }
+      }
+      if (indexes[i] < 0) {
+        throw new IOException("Missing column " + names[i]);
+      }
+    }
+    return indexes;
+  }
+
+  private static String valueAt(String[] line, int index) {
+    if (index >= line.length || line[index] == null || line[index].isEmpty()) {
+      return null;
+    }
+    return line[index];
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.builder.csvparser.RFC4180CsvReader;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ImportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Imports a {@link CsvBundle} from the assets csv folder. The entries are read
+ * straight out of the compressed file, nothing is extracted to disk.
+ * <p>
+ * A zip bundle with a definition creates the table if needed and sets its
+ * properties, then its data is appended by a {@link ChunkedCsvImporter}. A gzip
+ * file, or a zip bundle without a definition, can only be appended to a table
+ * that already exists.
+ */
+class CsvBundleImporter {
+
+  private static final String TAG = CsvBundleImporter.class.getSimpleName();
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+  private int committedLines = 0;
+  private String checkpointId = null;
+  private ChunkedCsvImporter.CommitListener commitListener = null;
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   */
+  CsvBundleImporter(String appName, UserDbInterface dbInterface) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+  }
+
+  /**
+   * Skips the data lines an interrupted import already wrote, see
+   * {@link ChunkedCsvImporter#setCheckpoint}
+   *
+   * @param committedLines the number of data lines to skip
+   * @param checkpointId   the same each time the import is picked up, e.g. the batch id
+   * @param listener       told about each chunk written, may be null
+   */
+  void setCheckpoint(int committedLines, String checkpointId,
+      ChunkedCsvImporter.CommitListener listener) {
+    this.committedLines = committedLines;
+    this.checkpointId = checkpointId;
+    this.commitListener = listener;
+  }
+
+  /**
+   * Imports the bundle the request names
+   *
+   * @param listener told about the progress
+   * @param request  a request with a bundle format
+   * @return whether the import was successful
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean importBundle(ImportListener listener, ImportRequest request)
+      throws ServicesAvailabilityException {
+    String baseName = CsvBundle.getBaseName(request.getTableId(), request.getFileQualifier());
+    File file = new File(ODKFileUtils.getAssetsCsvFolder(appName),
+        baseName + request.getBundleFormat().getExtension());
+    int chunkSize = request.getChunkSize() > 0 ?
+        request.getChunkSize() :
+        ChunkedCsvImporter.DEFAULT_CHUNK_SIZE;
+    ChunkedCsvImporter importer = new ChunkedCsvImporter(appName, dbInterface, chunkSize);
+    importer.setCheckpoint(committedLines, checkpointId, commitListener);
+    try {
+      if (request.getBundleFormat() == CsvBundle.Format.GZIP) {
+        if (!tableExists(request.getTableId())) {
+          WebLogger.getLogger(appName)
+              .e(TAG, "Table " + request.getTableId() + " must exist to import a data file");
+          return false;
+        }
+        return importer.importData(listener, request.getTableId(),
+            new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))), -1,
+            file.getAbsolutePath());
+      }
+
+      ZipFile zip = new ZipFile(file);
+      try {
+        ZipEntry data = zip.getEntry(baseName + CsvBundle.CSV_EXTENSION);
+        ZipEntry definition = zip.getEntry(baseName + CsvBundle.DEFINITION_SUFFIX);
+        ZipEntry properties = zip.getEntry(baseName + CsvBundle.PROPERTIES_SUFFIX);
+        if (data == null) {
+          WebLogger.getLogger(appName).e(TAG, "No data in " + file.getAbsolutePath());
+          return false;
+        }
+        if (definition != null) {
+          createOrOpenTable(zip, definition, properties, request.getTableId());
+        } else if (!tableExists(request.getTableId())) {
+          WebLogger.getLogger(appName)
+              .e(TAG, "Table " + request.getTableId() + " must exist to import a data file");
+          return false;
+        }
+        return importer.importData(listener, request.getTableId(), zip.getInputStream(data),
+            data.getSize(), file.getAbsolutePath() + File.separator + data.getName());
+      } finally {
+        zip.close();
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to read " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return false;
+    }
+  }
+
+  /**
+   * Creates the table from the bundle's definition if it does not exist yet. The
+   * bundle's properties, if it has any, replace the table's.
+   */
+  private void createOrOpenTable(ZipFile zip, ZipEntry definition, ZipEntry properties,
+      String tableId) throws IOException, ServicesAvailabilityException {
+    List<Column> columns = CsvBundle.readDefinition(openReader(zip, definition));
+    List<KeyValueStoreEntry> entries = properties == null ?
+        new ArrayList<KeyValueStoreEntry>() :
+        CsvBundle.readProperties(openReader(zip, properties), tableId);
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      dbInterface.createOrOpenTableWithColumnsAndProperties(appName, db, tableId, columns,
+          entries, properties != null);
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  private static RFC4180CsvReader openReader(ZipFile zip, ZipEntry entry) throws IOException {
+    return new RFC4180CsvReader(new BufferedReader(
+        new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8)));
+  }
+
+  private boolean tableExists(String tableId) throws ServicesAvailabilityException {
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      return dbInterface.getAllTableIds(appName, db).contains(tableId);
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.builder.csvparser.RFC4180CsvWriter;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SingleRowQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports a table, or the rows of a view query, to a {@link CsvBundle}.
+ * <p>
+ * The csv text is cut into blocks that are handed over a small bounded queue to a
+ * compressor thread, so deflating the data overlaps with querying the rows and
+ * only a few blocks are ever held in memory. Rows are fetched a page at a time by
+ * {@link QueryCsvExporter}.
+ */
+class CsvBundleWriter {
+
+  private static final String TAG = CsvBundleWriter.class.getSimpleName();
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+  /**
+   * How many blocks may wait for the compressor
+   */
+  private static final int QUEUE_BLOCKS = 4;
+  private static final long OFFER_TIMEOUT_MS = 100;
+  private static final String MANIFEST_TEMP_SUFFIX = ".manifest.tmp";
+
+  /**
+   * Put on the queue when all the entries have been written
+   */
+  private static final byte[] END = new byte[0];
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   */
+  CsvBundleWriter(String appName, UserDbInterface dbInterface) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+  }
+
+  /**
+   * Writes the bundle to the output csv directory
+   *
+   * @param listener     told about the progress, the total is unknown and given as 0
+   * @param db           an open database handle
+   * @param tableId      the table to export
+   * @param orderedDefns the columns of the table
+   * @param query        the rows to export, or null for every row of the table
+   * @param qualifier    the qualifier of the output file name
+   * @param format       the kind of bundle to write
+   * @return whether the bundle was written
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean export(ExportListener listener, DbHandle db, String tableId,
+      OrderedColumns orderedDefns, ResumableQuery query, String qualifier,
+      CsvBundle.Format format) throws ServicesAvailabilityException {
+    if (query == null) {
+      query = new SingleRowQuery(tableId, null, new BindArgs(new Object[0]), null, null, null,
+          null, null, null, null);
+    } else if (!QueryCsvExporter.canExport(query)) {
+      WebLogger.getLogger(appName).e(TAG, "invalid query type");
+      return false;
+    }
+
+    File file = CsvBundle.getOutputFile(appName, tableId, qualifier, format);
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to create " + parent.getAbsolutePath());
+      return false;
+    }
+    File manifestFile = new File(file.getPath() + MANIFEST_TEMP_SUFFIX);
+    String baseName = CsvBundle.getBaseName(tableId, qualifier);
+    QueryCsvExporter rows = new QueryCsvExporter(appName, dbInterface,
+        QueryCsvExporter.DEFAULT_PAGE_SIZE);
+
+    Compressor compressor = null;
+    Thread compressorThread = null;
+    boolean success = false;
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+      compressor = new Compressor(format == CsvBundle.Format.ZIP ?
+          new ZipOutputStream(out) :
+          new GZIPOutputStream(out, BLOCK_SIZE));
+      compressorThread = new Thread(compressor, TAG);
+      compressorThread.start();
+      BlockOutputStream blocks = new BlockOutputStream(compressor);
+      Writer text = new OutputStreamWriter(blocks, StandardCharsets.UTF_8);
+
+      if (format == CsvBundle.Format.ZIP) {
+        RFC4180CsvWriter manifest = new RFC4180CsvWriter(new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(manifestFile), StandardCharsets.UTF_8)));
+        try {
+          blocks.startEntry(baseName + CsvBundle.CSV_EXTENSION);
+          RFC4180CsvWriter data = new RFC4180CsvWriter(text);
+          rows.writeRows(listener, db, orderedDefns, query, data, manifest);
+          data.flush();
+        } finally {
+          manifest.close();
+        }
+
+        text.flush();
+        blocks.startEntry(baseName + CsvBundle.DEFINITION_SUFFIX);
+        RFC4180CsvWriter definition = new RFC4180CsvWriter(text);
+        CsvBundle.writeDefinition(definition, orderedDefns);
+        definition.flush();
+
+        text.flush();
+        blocks.startEntry(baseName + CsvBundle.PROPERTIES_SUFFIX);
+        RFC4180CsvWriter properties = new RFC4180CsvWriter(text);
+        CsvBundle.writeProperties(properties,
+            dbInterface.getTableMetadata(appName, db, tableId, null, null, null, null)
+                .getEntries());
+        properties.flush();
+
+        text.flush();
+        blocks.startEntry(baseName + CsvBundle.MANIFEST_SUFFIX);
+        copy(manifestFile, blocks);
+      } else {
+        RFC4180CsvWriter data = new RFC4180CsvWriter(text);
+        rows.writeRows(listener, db, orderedDefns, query, data, null);
+        data.flush();
+      }
+      text.close();
+      compressorThread.join();
+      if (compressor.failure != null) {
+        throw compressor.failure;
+      }
+      success = true;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to write " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (compressor != null) {
+        // stops the compressor if the rows failed, so the file is closed before it is deleted
+        compressor.cancel();
+        try {
+          compressorThread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (manifestFile.exists() && !manifestFile.delete()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to delete " + manifestFile.getAbsolutePath());
+      }
+      if (!success && file.exists() && !file.delete()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to delete " + file.getAbsolutePath());
+      }
+    }
+    return success;
+  }
+
+  private static void copy(File from, OutputStream to) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(from));
+    try {
+      byte[] buffer = new byte[BLOCK_SIZE];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        to.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Collects the bytes written to it into blocks for the compressor. An entry name
+   * on the queue starts a new zip entry.
+   */
+  private static final class BlockOutputStream extends OutputStream {
+    private final Compressor compressor;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count = 0;
+
+    BlockOutputStream(Compressor compressor) {
+      this.compressor = compressor;
+    }
+
+    void startEntry(String name) throws IOException {
+      flush();
+      compressor.put(name);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == block.length) {
+        flush();
+      }
+      block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == block.length) {
+          flush();
+        }
+        int n = Math.min(length, block.length - count);
+        System.arraycopy(buffer, offset, block, count, n);
+        count += n;
+        offset += n;
+        length -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      byte[] full = count == block.length ? block : Arrays.copyOf(block, count);
+      compressor.put(full);
+      block = new byte[BLOCK_SIZE];
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      compressor.put(END);
+    }
+  }
+
+  /**
+   * Compresses the blocks on its own thread
+   */
+  private static final class Compressor implements Runnable {
+    private final OutputStream out;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+    private volatile boolean cancelled = false;
+    volatile IOException failure = null;
+
+    Compressor(OutputStream out) {
+      this.out = out;
+    }
+
+    void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Waits for room on the queue, giving up if the compressor has stopped
+     */
+    void put(Object item) throws IOException {
+      try {
+        while (!queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          if (failure != null || cancelled) {
+            throw new IOException("Compression stopped", failure);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while compressing", e);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        Object item;
+        while (!cancelled && (item = queue.poll(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            != END) {
+          if (item instanceof String) {
+            ((ZipOutputStream) out).putNextEntry(new ZipEntry((String) item));
+          } else if (item != null) {
+            out.write((byte[]) item);
+          }
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        failure = new IOException("Interrupted while compressing", e);
+      } finally {
+        try {
+          out.close();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.content.Context;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.builder.csvparser.RFC4180CsvReader;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.R;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks every value of a csv file against the types of the table's columns
+ * before anything is written, so a bad file is rejected by one read only pass
+ * instead of failing part way through an import.
+ * <p>
+ * The values are checked in place by small hand written scanners rather than by
+ * parsing them into numbers and dates, so the pass allocates nothing per value.
+ * Only the first {@link #MAX_REPORTED_ERRORS} problems are kept, with their row
+ * and column, the rest are only counted.
+ */
+class CsvValidator {
+
+  private static final String TAG = CsvValidator.class.getSimpleName();
+
+  /**
+   * The most problems the report keeps the details of
+   */
+  static final int MAX_REPORTED_ERRORS = 10;
+  private static final int MAX_VALUE_LENGTH = 40;
+
+  /**
+   * How a value has to look
+   */
+  private enum Check {
+    INTEGER(R.string.import_validation_integer),
+    NUMBER(R.string.import_validation_number),
+    LATITUDE(R.string.import_validation_latitude),
+    LONGITUDE(R.string.import_validation_longitude),
+    BOOLEAN(R.string.import_validation_boolean),
+    DATE(R.string.import_validation_date),
+    DATE_TIME(R.string.import_validation_date_time),
+    TIME(R.string.import_validation_time),
+    ARRAY(R.string.import_validation_array);
+
+    private final int description;
+
+    Check(int description) {
+      this.description = description;
+    }
+  }
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   */
+  CsvValidator(String appName, UserDbInterface dbInterface) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+  }
+
+  /**
+   * Checks the data file of an import request against the table, or against the
+   * definition that comes with it when the table does not exist yet
+   *
+   * @param request the import to check
+   * @return the problems found, or null if there was nothing the file could be checked against
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  Report validate(ImportRequest request) throws ServicesAvailabilityException {
+    String tableId = request.getTableId();
+    String baseName = CsvBundle.getBaseName(tableId, request.getFileQualifier());
+    File folder = new File(ODKFileUtils.getAssetsCsvFolder(appName));
+    try {
+      if (request.getBundleFormat() == CsvBundle.Format.GZIP) {
+        File file = new File(folder, baseName + request.getBundleFormat().getExtension());
+        OrderedColumns columns = getTableColumns(tableId);
+        return columns == null || !file.isFile() ?
+            null :
+            validate(columns,
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+      }
+      if (request.getBundleFormat() == CsvBundle.Format.ZIP) {
+        File file = new File(folder, baseName + request.getBundleFormat().getExtension());
+        if (!file.isFile()) {
+          return null;
+        }
+        ZipFile zip = new ZipFile(file);
+        try {
+          ZipEntry data = zip.getEntry(baseName + CsvBundle.CSV_EXTENSION);
+          ZipEntry definition = zip.getEntry(baseName + CsvBundle.DEFINITION_SUFFIX);
+          OrderedColumns columns = definition == null ?
+              getTableColumns(tableId) :
+              readColumns(tableId, zip.getInputStream(definition));
+          return columns == null || data == null ?
+              null :
+              validate(columns, zip.getInputStream(data));
+        } finally {
+          zip.close();
+        }
+      }
+      File data = new File(folder, baseName + CsvBundle.CSV_EXTENSION);
+      File definition = new File(folder, baseName + CsvBundle.DEFINITION_SUFFIX);
+      OrderedColumns columns = getTableColumns(tableId);
+      if (columns == null && definition.isFile()) {
+        columns = readColumns(tableId, new FileInputStream(definition));
+      }
+      return columns == null || !data.isFile() ?
+          null :
+          validate(columns, new FileInputStream(data));
+    } catch (IOException e) {
+      // the import itself reports files it cannot read
+      WebLogger.getLogger(appName).e(TAG, "Unable to check " + baseName);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    }
+  }
+
+  /**
+   * Checks every value of a stream of csv data. The stream is closed once it has been read.
+   *
+   * @param columns the columns the data is for
+   * @param in      the csv data
+   * @return the problems found
+   * @throws IOException if the data could not be read
+   */
+  Report validate(OrderedColumns columns, InputStream in) throws IOException {
+    Report report = new Report();
+    RFC4180CsvReader reader = openReader(in);
+    try {
+      String[] header = reader.readNext();
+      if (header == null) {
+        return report;
+      }
+      Check[] checks = new Check[header.length];
+      int deltaIndex = -1;
+      for (int i = 0; i < header.length; i++) {
+        if (DeltaCsvExporter.DELTA_COLUMN.equals(header[i])) {
+          deltaIndex = i;
+        } else if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(header[i])) {
+          checks[i] = Check.DATE_TIME;
+        }
+      }
+      for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+        Check check = checkFor(cd);
+        for (int i = 0; check != null && i < header.length; i++) {
+          if (cd.getElementKey().equals(header[i])) {
+            checks[i] = check;
+          }
+        }
+      }
+
+      String[] line;
+      int row = 0;
+      while ((line = reader.readNext()) != null) {
+        row++;
+        if (deltaIndex >= 0 && deltaIndex < line.length && DeltaCsvExporter.DELTA_DELETE
+            .equals(line[deltaIndex])) {
+          // a tombstone only has its id
+          continue;
+        }
+        for (int i = 0; i < checks.length && i < line.length; i++) {
+          String value = line[i];
+          if (checks[i] != null && value != null && !value.isEmpty() && !isValid(checks[i],
+              value)) {
+            report.add(row, header[i], checks[i], value);
+          }
+        }
+      }
+      report.rowsChecked = row;
+    } finally {
+      reader.close();
+    }
+    return report;
+  }
+
+  private OrderedColumns getTableColumns(String tableId) throws ServicesAvailabilityException {
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      if (!dbInterface.getAllTableIds(appName, db).contains(tableId)) {
+        return null;
+      }
+      return dbInterface.getUserDefinedColumns(appName, db, tableId);
+    } finally {
+      if (db != null) {
+        dbInterface.closeDatabase(appName, db);
+      }
+    }
+  }
+
+  private OrderedColumns readColumns(String tableId, InputStream definition)
+      throws IOException {
+    RFC4180CsvReader reader = openReader(definition);
+    try {
+      return new OrderedColumns(appName, tableId, CsvBundle.readDefinition(reader));
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static RFC4180CsvReader openReader(InputStream in) {
+    return new RFC4180CsvReader(
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * @return the check for the values of a column, or null if any text will do
+   */
+  private static Check checkFor(ColumnDefinition cd) {
+    if (!cd.isUnitOfRetention()) {
+      return null;
+    }
+    String elementType = cd.getElementType();
+    if ("date".equals(elementType)) {
+      return Check.DATE;
+    }
+    if ("dateTime".equals(elementType)) {
+      return Check.DATE_TIME;
+    }
+    if ("time".equals(elementType)) {
+      return Check.TIME;
+    }
+    ElementDataType dataType = cd.getType().getDataType();
+    switch (dataType) {
+    case integer:
+      return Check.INTEGER;
+    case number:
+      // the coordinates of a geopoint are number columns named after their part
+      if ("latitude".equals(cd.getElementName())) {
+        return Check.LATITUDE;
+      }
+      if ("longitude".equals(cd.getElementName())) {
+        return Check.LONGITUDE;
+      }
+      return Check.NUMBER;
+    case bool:
+      return Check.BOOLEAN;
+    case array:
+      return Check.ARRAY;
+    default:
+      return null;
+    }
+  }
+
+  private static boolean isValid(Check check, String value) {
+    switch (check) {
+    case INTEGER:
+      return isInteger(value);
+    case NUMBER:
+      return isNumber(value);
+    case LATITUDE:
+      return isNumber(value) && isWithin(value, 90);
+    case LONGITUDE:
+      return isNumber(value) && isWithin(value, 180);
+    case BOOLEAN:
+      return "0".equals(value) || "1".equals(value) || "true".equalsIgnoreCase(value)
+          || "false".equalsIgnoreCase(value);
+    case DATE:
+    case DATE_TIME:
+      return isDateTime(value);
+    case TIME:
+      return isTime(value, 0) == value.length();
+    case ARRAY:
+      return value.charAt(0) == '[' && value.charAt(value.length() - 1) == ']';
+    default:
+      return true;
+    }
+  }
+
+  /**
+   * An optional sign and up to 19 digits that fit in a long
+   */
+  static boolean isInteger(String value) {
+    int i = 0;
+    boolean negative = false;
+    if (value.charAt(0) == '-' || value.charAt(0) == '+') {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    if (i == value.length()) {
+      return false;
+    }
+    // accumulated as a negative number so that Long.MIN_VALUE fits
+    long result = 0;
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    for (; i < value.length(); i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result < limit / 10) {
+        return false;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return false;
+      }
+      result -= digit;
+    }
+    return true;
+  }
+
+  /**
+   * A decimal number with an optional sign, fraction and exponent
+   */
+  static boolean isNumber(String value) {
+    int length = value.length();
+    int i = 0;
+    if (value.charAt(i) == '-' || value.charAt(i) == '+') {
+      i++;
+    }
+    int digits = 0;
+    while (i < length && isDigit(value.charAt(i))) {
+      i++;
+      digits++;
+    }
+    if (i < length && value.charAt(i) == '.') {
+      i++;
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+        digits++;
+      }
+    }
+    if (digits == 0) {
+      return false;
+    }
+    if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+      i++;
+      if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+        i++;
+      }
+      int exponentDigits = 0;
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+        exponentDigits++;
+      }
+      if (exponentDigits == 0) {
+        return false;
+      }
+    }
+    return i == length;
+  }
+
+  /**
+   * Whether a valid number is within -bound and bound, looking only at its integer digits
+   * unless it sits on the bound
+   */
+  private static boolean isWithin(String value, int bound) {
+    int i = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0;
+    if (value.indexOf('e') >= 0 || value.indexOf('E') >= 0) {
+      // rare enough to not be worth scanning by hand
+      return Math.abs(Double.parseDouble(value)) <= bound;
+    }
+    int whole = 0;
+    for (; i < value.length() && isDigit(value.charAt(i)); i++) {
+      whole = whole * 10 + value.charAt(i) - '0';
+      if (whole > bound) {
+        return false;
+      }
+    }
+    if (whole < bound) {
+      return true;
+    }
+    // exactly on the bound, any fraction has to be zero
+    for (i++; i < value.length(); i++) {
+      if (value.charAt(i) != '0') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * yyyy-MM-dd, optionally followed by T and a time as accepted by {@link #isTime}
+   */
+  static boolean isDateTime(String value) {
+    if (value.length() < 10 || value.charAt(4) != '-' || value.charAt(7) != '-') {
+      return false;
+    }
+    int year = digits(value, 0, 4);
+    int month = digits(value, 5, 2);
+    int day = digits(value, 8, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+      return false;
+    }
+    if (value.length() == 10) {
+      return true;
+    }
+    return value.charAt(10) == 'T' && isTime(value, 11) == value.length();
+  }
+
+  /**
+   * HH:mm, optionally followed by :ss and up to nine digits of fraction, starting at an
+   * offset
+   *
+   * @return the index after the time, or -1 if there is no valid time at the offset
+   */
+  private static int isTime(String value, int offset) {
+    int length = value.length();
+    if (length < offset + 5 || value.charAt(offset + 2) != ':') {
+      return -1;
+    }
+    int hour = digits(value, offset, 2);
+    int minute = digits(value, offset + 3, 2);
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+      return -1;
+    }
+    int i = offset + 5;
+    if (i == length) {
+      return i;
+    }
+    if (value.charAt(i) != ':' || length < i + 3) {
+      return -1;
+    }
+    int second = digits(value, i + 1, 2);
+    // leap seconds are allowed
+    if (second < 0 || second > 60) {
+      return -1;
+    }
+    i += 3;
+    if (i < length && value.charAt(i) == '.') {
+      int start = ++i;
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+      }
+      if (i == start || i - start > 9) {
+        return -1;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * @return the value of count digits at the offset, or -1 if they are not all digits
+   */
+  private static int digits(String value, int offset, int count) {
+    int result = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = value.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      result = result * 10 + c - '0';
+    }
+    return result;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * The problems found in a file
+   */
+  static final class Report {
+    private final List<String> elementKeys = new ArrayList<>();
+    private final List<Integer> rows = new ArrayList<>();
+    private final List<Check> checks = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private int errorCount = 0;
+    private int rowsChecked = 0;
+
+    private void add(int row, String elementKey, Check check, String value) {
+      errorCount++;
+      if (rows.size() < MAX_REPORTED_ERRORS) {
+        rows.add(row);
+        elementKeys.add(elementKey);
+        checks.add(check);
+        // keeps a long note or list from filling the dialog
+        values.add(value.length() > MAX_VALUE_LENGTH ?
+            value.substring(0, MAX_VALUE_LENGTH) + "\u2026" :
+            value);
+      }
+    }
+
+    /**
+     * @return whether every value passed its check
+     */
+    boolean isValid() {
+      return errorCount == 0;
+    }
+
+    /**
+     * @return the number of problems, including the ones without details
+     */
+    int getErrorCount() {
+      return errorCount;
+    }
+
+    /**
+     * @return the number of data rows that were read
+     */
+    int getRowsChecked() {
+      return rowsChecked;
+    }
+
+    /**
+     * @param context used to get the strings
+     * @param name    the name of the file, e.g. its table id
+     * @return a line per reported problem, for the failure dialog
+     */
+    String describe(Context context, String name) {
+      StringBuilder message = new StringBuilder(
+          context.getString(R.string.import_validation_failed, name, errorCount, rowsChecked));
+      for (int i = 0; i < rows.size(); i++) {
+        message.append('\n').append(context
+            .getString(R.string.import_validation_error, rows.get(i), elementKeys.get(i),
+                context.getString(checks.get(i).description), values.get(i)));
+      }
+      if (errorCount > rows.size()) {
+        message.append('\n')
+            .append(context.getString(R.string.import_validation_more, errorCount - rows.size()));
+      }
+      return message.toString();
+    }
+  }
+}
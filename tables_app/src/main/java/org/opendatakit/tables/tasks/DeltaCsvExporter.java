@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.builder.csvparser.RFC4180CsvWriter;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exports only the rows of a table that changed since its last incremental export.
+ * <p>
+ * The checkpoint of a table is a snapshot file with the id, savepoint timestamp
+ * and row etag of every row, sorted by id. An export scans those three columns in
+ * id order, a page at a time, and merges them with the snapshot: new or changed
+ * rows are fetched in full and written as upserts, rows that are gone (or are
+ * waiting for sync to delete them) are written as tombstones. Only the narrow scan
+ * touches every row, so the time and the size of the file follow the number of
+ * changes. Memory is bounded by the page size.
+ * <p>
+ * The file has the data file layout with a leading {@link #DELTA_COLUMN}. The first
+ * export of a table has no snapshot to compare with and so contains every row.
+ * The new snapshot only replaces the old one once the file has been written.
+ */
+class DeltaCsvExporter {
+
+  private static final String TAG = DeltaCsvExporter.class.getSimpleName();
+
+  /**
+   * The column that says whether a row is an upsert or a tombstone
+   */
+  static final String DELTA_COLUMN = "_delta";
+  static final String DELTA_UPSERT = "upsert";
+  static final String DELTA_DELETE = "delete";
+
+  private static final int PAGE_SIZE = 1000;
+  /**
+   * Keeps the query for the changed rows under SQLite's bind argument limit
+   */
+  private static final int FETCH_SIZE = 500;
+  private static final String SNAPSHOT_FOLDER = "export_delta";
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final char SEPARATOR = '\t';
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+  private final ProgressThrottle throttle = new ProgressThrottle();
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   */
+  DeltaCsvExporter(String appName, UserDbInterface dbInterface) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+  }
+
+  /**
+   * Writes the changes since the last incremental export to
+   * output/csv/tableId.qualifier.csv and moves the checkpoint forward
+   *
+   * @param listener     told about the progress, the total is unknown and given as 0
+   * @param db           an open database handle
+   * @param tableId      the table to export
+   * @param orderedDefns the columns of the table
+   * @param qualifier    the qualifier of the output file name, a dated one is used if empty
+   * @return whether the changes were written
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean export(ExportListener listener, DbHandle db, String tableId,
+      OrderedColumns orderedDefns, String qualifier) throws ServicesAvailabilityException {
+    if (qualifier == null || qualifier.isEmpty()) {
+      qualifier = "delta_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US)
+          .format(new Date());
+    }
+    File file = new File(ODKFileUtils.getOutputTableCsvFile(appName, tableId, qualifier));
+    File snapshot = getSnapshotFile(tableId);
+    File newSnapshot = new File(snapshot.getPath() + TEMP_SUFFIX);
+    for (File dir : new File[] { file.getParentFile(), snapshot.getParentFile() }) {
+      if (dir != null && !dir.exists() && !dir.mkdirs()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to create " + dir.getAbsolutePath());
+        return false;
+      }
+    }
+
+    BufferedReader previous = null;
+    Writer next = null;
+    RFC4180CsvWriter writer = null;
+    boolean success = false;
+    try {
+      if (snapshot.isFile()) {
+        previous = new BufferedReader(
+            new InputStreamReader(new FileInputStream(snapshot), StandardCharsets.UTF_8));
+      }
+      next = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(newSnapshot), StandardCharsets.UTF_8));
+      writer = new RFC4180CsvWriter(new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+      String[] header = QueryCsvExporter.buildHeader(orderedDefns, null);
+      String[] line = new String[header.length + 1];
+      line[0] = DELTA_COLUMN;
+      System.arraycopy(header, 0, line, 1, header.length);
+      writer.writeNext(line);
+
+      Merge merge = new Merge(previous, writer, line.length);
+      int scanned = 0;
+      String lastId = null;
+      UserTable page;
+      do {
+        page = scanPage(db, tableId, orderedDefns, lastId);
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < page.getNumberOfRows(); i++) {
+          TypedRow row = page.getRowAtIndex(i);
+          String rowId = row.getRawStringByKey(DataTableColumns.ID);
+          String fingerprint = row.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP)
+              + SEPARATOR + row.getRawStringByKey(DataTableColumns.ROW_ETAG);
+          boolean live = !SyncState.deleted.name()
+              .equals(row.getRawStringByKey(DataTableColumns.SYNC_STATE));
+          if (merge.visit(rowId, live ? fingerprint : null)) {
+            changed.add(rowId);
+          }
+          if (live) {
+            next.write(rowId + SEPARATOR + fingerprint + '\n');
+          }
+          lastId = rowId;
+        }
+        writeRows(db, tableId, orderedDefns, header, changed, writer);
+        scanned += page.getNumberOfRows();
+        if (listener != null && throttle.shouldReport()) {
+          listener.updateProgressDetail(scanned, 0);
+        }
+      } while (page.getNumberOfRows() == PAGE_SIZE);
+      merge.finish();
+      success = true;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to write " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } finally {
+      for (Closeable closeable : new Closeable[] { previous, next, writer }) {
+        if (closeable != null) {
+          try {
+            closeable.close();
+          } catch (IOException e) {
+            WebLogger.getLogger(appName).printStackTrace(e);
+            success = false;
+          }
+        }
+      }
+      if (success && !newSnapshot.renameTo(snapshot)) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to update " + snapshot.getAbsolutePath());
+        success = false;
+      }
+      if (!success) {
+        if (newSnapshot.exists() && !newSnapshot.delete()) {
+          WebLogger.getLogger(appName)
+              .e(TAG, "Unable to delete " + newSnapshot.getAbsolutePath());
+        }
+        if (file.exists() && !file.delete()) {
+          WebLogger.getLogger(appName).e(TAG, "Unable to delete " + file.getAbsolutePath());
+        }
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Reads the next page of ids, savepoint timestamps and etags, continuing after the last id
+   * instead of using an offset so each page costs the same
+   */
+  private UserTable scanPage(DbHandle db, String tableId, OrderedColumns orderedDefns,
+      String lastId) throws ServicesAvailabilityException {
+    String sql = "SELECT " + DataTableColumns.ID + ", " + DataTableColumns.SAVEPOINT_TIMESTAMP
+        + ", " + DataTableColumns.ROW_ETAG + ", " + DataTableColumns.SYNC_STATE + " FROM "
+        + tableId + (lastId == null ? "" : " WHERE " + DataTableColumns.ID + " > ?")
+        + " ORDER BY " + DataTableColumns.ID + " ASC";
+    BindArgs bindArgs = new BindArgs(lastId == null ? new Object[0] : new Object[] { lastId });
+    return dbInterface
+        .arbitrarySqlQuery(appName, db, tableId, orderedDefns, sql, bindArgs, PAGE_SIZE, 0);
+  }
+
+  /**
+   * Fetches the changed rows of a page in full and writes them as upserts
+   */
+  private void writeRows(DbHandle db, String tableId, OrderedColumns orderedDefns,
+      String[] header, List<String> rowIds, RFC4180CsvWriter writer)
+      throws ServicesAvailabilityException, IOException {
+    String[] line = new String[header.length + 1];
+    line[0] = DELTA_UPSERT;
+    for (int start = 0; start < rowIds.size(); start += FETCH_SIZE) {
+      List<String> ids = rowIds.subList(start, Math.min(rowIds.size(), start + FETCH_SIZE));
+      StringBuilder where = new StringBuilder(DataTableColumns.ID).append(" IN (");
+      for (int i = 0; i < ids.size(); i++) {
+        where.append(i == 0 ? "?" : ",?");
+      }
+      where.append(")");
+      UserTable table = dbInterface.simpleQuery(appName, db, tableId, orderedDefns,
+          where.toString(), new BindArgs(ids.toArray(new String[ids.size()])), null, null,
+          new String[] { DataTableColumns.ID }, new String[] { "ASC" }, -1, 0);
+      for (int i = 0; i < table.getNumberOfRows(); i++) {
+        TypedRow row = table.getRowAtIndex(i);
+        for (int j = 0; j < header.length; j++) {
+          line[j + 1] = row.getRawStringByKey(header[j]);
+        }
+        writer.writeNext(line);
+      }
+    }
+  }
+
+  private File getSnapshotFile(String tableId) {
+    File folder = new File(new File(Tables.getInstance().getFilesDir(), SNAPSHOT_FOLDER),
+        appName);
+    return new File(folder, tableId + SNAPSHOT_SUFFIX);
+  }
+
+  /**
+   * Walks the previous snapshot alongside the scan, which visits the rows in the same id
+   * order. Rows of the snapshot that the scan skips over have been deleted.
+   */
+  private static final class Merge {
+    private final BufferedReader previous;
+    private final RFC4180CsvWriter writer;
+    private final String[] tombstone;
+    private String previousId = null;
+    private String previousFingerprint = null;
+
+    Merge(BufferedReader previous, RFC4180CsvWriter writer, int width) throws IOException {
+      this.previous = previous;
+      this.writer = writer;
+      this.tombstone = new String[width];
+      this.tombstone[0] = DELTA_DELETE;
+      advance();
+    }
+
+    /**
+     * @param rowId       the id of the scanned row
+     * @param fingerprint the savepoint timestamp and etag of the row, null if it is deleted
+     * @return whether the row has to be exported as an upsert
+     */
+    boolean visit(String rowId, String fingerprint) throws IOException {
+      while (previousId != null && previousId.compareTo(rowId) < 0) {
+        writeTombstone(previousId);
+        advance();
+      }
+      boolean known = previousId != null && previousId.equals(rowId);
+      boolean unchanged = known && previousFingerprint.equals(fingerprint);
+      if (known) {
+        advance();
+      }
+      if (fingerprint == null) {
+        // waiting for sync to delete it, only news if it was exported before
+        if (known) {
+          writeTombstone(rowId);
+        }
+        return false;
+      }
+      return !unchanged;
+    }
+
+    /**
+     * Everything left in the snapshot is past the last row of the table
+     */
+    void finish() throws IOException {
+      while (previousId != null) {
+        writeTombstone(previousId);
+        advance();
+      }
+    }
+
+    private void writeTombstone(String rowId) throws IOException {
+      tombstone[1] = rowId;
+      writer.writeNext(tombstone);
+    }
+
+    private void advance() throws IOException {
+      String line = previous == null ? null : previous.readLine();
+      if (line == null) {
+        previousId = null;
+        previousFingerprint = null;
+        return;
+      }
+      int split = line.indexOf(SEPARATOR);
+      previousId = line.substring(0, split);
+      previousFingerprint = line.substring(split + 1);
+    }
+  }
+}
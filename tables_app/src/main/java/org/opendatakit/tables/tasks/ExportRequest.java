@@ -15,6 +15,8 @@
  */
 package org.opendatakit.tables.tasks;
 
+import org.opendatakit.database.queries.ResumableQuery;
+
 /**
  * this class describes a request to export a table to a csv file
  */
@@ -26,6 +28,14 @@ public class ExportRequest {
   private final String tableId;
   // the prefix for the filename of the exported csv files
   private final String fileQualifier;
+  // the rows to export, or null for the whole table
+  private final ResumableQuery query;
+  // the kind of bundle to write, or null for plain csv files
+  private final CsvBundle.Format bundleFormat;
+  // whether to write only the rows that changed since the last incremental export
+  private final boolean incremental;
+  // whether to write a typed columnar binary file instead of csv
+  private final boolean columnar;
 
   /**
    * All the actual exporting is handled by androidlibrary/builder/CsvUtil
@@ -35,9 +45,80 @@ public class ExportRequest {
    * @param fileQualifier the prefix for the filename of the exported csv files
    */
   public ExportRequest(String appName, String tableId, String fileQualifier) {
+    this(appName, tableId, fileQualifier, null);
+  }
+
+  /**
+   * Exports only the rows of a query, e.g. the current filter and sort of a view.
+   * Only the data file is written, a page of rows at a time.
+   *
+   * @param appName       the app name
+   * @param tableId       the id of the table to export
+   * @param fileQualifier the prefix for the filename of the exported csv file
+   * @param query         the rows to export, or null for the whole table
+   */
+  public ExportRequest(String appName, String tableId, String fileQualifier,
+      ResumableQuery query) {
+    this(appName, tableId, fileQualifier, query, null);
+  }
+
+  /**
+   * Exports a table, or the rows of a query, to a single compressed file
+   *
+   * @param appName       the app name
+   * @param tableId       the id of the table to export
+   * @param fileQualifier the prefix for the filename of the exported file
+   * @param query         the rows to export, or null for the whole table
+   * @param bundleFormat  the kind of bundle to write, or null for plain csv files
+   */
+  public ExportRequest(String appName, String tableId, String fileQualifier,
+      ResumableQuery query, CsvBundle.Format bundleFormat) {
+    this(appName, tableId, fileQualifier, query, bundleFormat, false, false);
+  }
+
+  /**
+   * Exports only the rows that were added, changed or deleted since the last
+   * incremental export of the table. The first one exports every row.
+   *
+   * @param appName       the app name
+   * @param tableId       the id of the table to export
+   * @param fileQualifier the prefix for the filename of the exported csv file
+   * @param incremental   whether to export only the changes
+   */
+  public ExportRequest(String appName, String tableId, String fileQualifier,
+      boolean incremental) {
+    this(appName, tableId, fileQualifier, null, null, incremental, false);
+  }
+
+  /**
+   * Exports a table, or the rows of a query, to a typed columnar binary file for
+   * analysis tools, instead of to csv
+   *
+   * @param appName       the app name
+   * @param tableId       the id of the table to export
+   * @param fileQualifier the prefix for the filename of the exported file
+   * @param query         the rows to export, or null for the whole table
+   * @param columnar      whether to write the columnar file
+   */
+  public ExportRequest(String appName, String tableId, String fileQualifier,
+      ResumableQuery query, boolean columnar) {
+    this(appName, tableId, fileQualifier, query, null, false, columnar);
+  }
+
+  /**
+   * Stores every option, used to rebuild a request that was handed to
+   * {@link ImportExportService}
+   */
+  ExportRequest(String appName, String tableId, String fileQualifier,
+      ResumableQuery query, CsvBundle.Format bundleFormat, boolean incremental,
+      boolean columnar) {
     this.appName = appName;
     this.tableId = tableId;
     this.fileQualifier = fileQualifier;
+    this.query = query;
+    this.bundleFormat = bundleFormat;
+    this.incremental = incremental;
+    this.columnar = columnar;
   }
 
   /**
@@ -66,4 +147,40 @@ public class ExportRequest {
   String getFileQualifier() {
     return fileQualifier;
   }
-}
\ No newline at end of file
+
+  /**
+   * standard getter for the query
+   *
+   * @return the rows to export, or null to export the whole table
+   */
+  ResumableQuery getQuery() {
+    return query;
+  }
+
+  /**
+   * standard getter for the bundle format
+   *
+   * @return the kind of bundle to write, or null for plain csv files
+   */
+  CsvBundle.Format getBundleFormat() {
+    return bundleFormat;
+  }
+
+  /**
+   * standard getter for the incremental flag
+   *
+   * @return whether to export only the changes since the last incremental export
+   */
+  boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * standard getter for the columnar flag
+   *
+   * @return whether to write a typed columnar binary file instead of csv
+   */
+  boolean isColumnar() {
+    return columnar;
+  }
+}
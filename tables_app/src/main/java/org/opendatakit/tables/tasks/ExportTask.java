@@ -62,19 +62,10 @@ public class ExportTask extends AsyncTask<ExportRequest, Integer, Boolean>
    */
   protected Boolean doInBackground(ExportRequest... exportRequests) {
     ExportRequest request = exportRequests[0];
-    CsvUtil cu = new CsvUtil(new CsvUtilSupervisor() {
-      @Override
-      public UserDbInterface getDatabase() {
-        return Tables.getInstance().getDatabase();
-      }
-    }, appName);
     DbHandle db = null;
     try {
-      String tableId = request.getTableId();
       db = Tables.getInstance().getDatabase().openDatabase(appName);
-      OrderedColumns orderedDefinitions = Tables.getInstance().getDatabase()
-              .getUserDefinedColumns(appName, db, tableId); // export goes to output/csv directory...
-      return cu.exportSeparable(this, db, tableId, orderedDefinitions, request.getFileQualifier());
+      return exportTable(appName, this, db, request);
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(appName).e(TAG, "Unable to access database");
       WebLogger.getLogger(appName).printStackTrace(e);
@@ -91,6 +82,52 @@ public class ExportTask extends AsyncTask<ExportRequest, Integer, Boolean>
     }
   }
 
+  /**
+   * Exports one table in the way the request asks for, on a database handle that the caller
+   * opened and will close. Shared with {@link BatchExportJob}.
+   *
+   * @param appName  the app name
+   * @param listener told about the progress
+   * @param db       an open database handle
+   * @param request  what to export
+   * @return whether it was successful or not
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  static boolean exportTable(final String appName, ExportListener listener, DbHandle db,
+      ExportRequest request) throws ServicesAvailabilityException {
+    CsvUtil cu = new CsvUtil(new CsvUtilSupervisor() {
+      @Override
+      public UserDbInterface getDatabase() {
+        return Tables.getInstance().getDatabase();
+      }
+    }, appName);
+    String tableId = request.getTableId();
+    OrderedColumns orderedDefinitions = Tables.getInstance().getDatabase()
+            .getUserDefinedColumns(appName, db, tableId); // export goes to output/csv directory...
+    if (request.isIncremental()) {
+      return new DeltaCsvExporter(appName, Tables.getInstance().getDatabase())
+          .export(listener, db, tableId, orderedDefinitions, request.getFileQualifier());
+    }
+    if (request.isColumnar()) {
+      return new ColumnarExporter(appName, Tables.getInstance().getDatabase())
+          .export(listener, db, tableId, orderedDefinitions, request.getQuery(),
+              request.getFileQualifier());
+    }
+    if (request.getBundleFormat() != null) {
+      return new CsvBundleWriter(appName, Tables.getInstance().getDatabase())
+          .export(listener, db, tableId, orderedDefinitions, request.getQuery(),
+              request.getFileQualifier(), request.getBundleFormat());
+    }
+    if (request.getQuery() != null) {
+      return new QueryCsvExporter(appName, Tables.getInstance().getDatabase(),
+          QueryCsvExporter.DEFAULT_PAGE_SIZE)
+          .export(listener, db, orderedDefinitions, request.getQuery(),
+              request.getFileQualifier());
+    }
+    return cu.exportSeparable(listener, db, tableId, orderedDefinitions,
+        request.getFileQualifier());
+  }
+
   /**
    * does nothing
    *
@@ -122,9 +159,15 @@ public class ExportTask extends AsyncTask<ExportRequest, Integer, Boolean>
    * just passes along the request to ImportExportDialogFragment
    *
    * @param row the string to set in the window, like "Exporting row 10"
+   * @param total the number of rows being exported, 0 if it is not known
    */
   @Override
   public void updateProgressDetail(int row, int total) {
+    if (total <= 0) {
+      ImportExportDialogFragment.activeDialogFragment.updateProgressDialogMessage(context,
+          context.getString(R.string.export_in_progress_row_unknown_total, row));
+      return;
+    }
     ImportExportDialogFragment.activeDialogFragment
             .updateProgressDialogStatusString(context, R.string.export_in_progress_row, row, total);
   }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.content.Context;
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A set of csv files to import in one go, e.g. every table needed to provision a
+ * device.
+ * <p>
+ * The batch is saved to a checkpoint file of its own as soon as it is planned,
+ * and again each time a file has been imported, so several batches of an app can
+ * be waiting at the same time. If the app is killed part way through,
+ * {@link #loadCheckpoint(Context, String, String)} gives back the files that still
+ * need importing. A data file that is appended in chunks also records how many of its
+ * lines have been written, so an interrupted file picks up after its last written
+ * chunk; any other interrupted file is imported again from its start.
+ */
+public class ImportBatch {
+
+  private static final String TAG = ImportBatch.class.getSimpleName();
+
+  private static final String CHECKPOINT_FOLDER = "import_batches";
+  private static final String CHECKPOINT_FILE_SUFFIX = ".json";
+  private static final String KEY_TABLE_ID = "tableId";
+  private static final String KEY_FILE_QUALIFIER = "fileQualifier";
+  private static final String KEY_BUNDLE_FORMAT = "bundleFormat";
+  private static final String KEY_REQUESTS = "requests";
+  private static final String KEY_COMPLETED = "completed";
+  private static final String KEY_COMMITTED_LINES = "committedLines";
+
+  private final String appName;
+  private final String batchId;
+  private final File checkpointFile;
+  private final List<ImportRequest> requests;
+  private final Set<String> completed;
+  // the number of data lines written of each file that was interrupted part way
+  private final Map<String, Integer> committedLines;
+
+  private ImportBatch(String appName, String batchId, File checkpointFile,
+      List<ImportRequest> requests, Set<String> completed, Map<String, Integer> committedLines) {
+    this.appName = appName;
+    this.batchId = batchId;
+    this.checkpointFile = checkpointFile;
+    this.requests = requests;
+    this.completed = completed;
+    this.committedLines = committedLines;
+  }
+
+  /**
+   * Plans a batch from a list of csv files in the assets csv folder. A table's
+   * definition, properties and data files describe a single import, so they are
+   * only planned once.
+   *
+   * @param context   a context used to find the checkpoint file
+   * @param appName   the app name
+   * @param fileNames the names of the files, relative to the assets csv folder
+   * @return the planned batch
+   * @throws IllegalArgumentException if a file name is not of a form that can be imported
+   */
+  public static ImportBatch fromCsvFileNames(Context context, String appName,
+      List<String> fileNames) {
+    Map<String, ImportRequest> unique = new LinkedHashMap<>();
+    for (String fileName : fileNames) {
+      ImportRequest request = ImportRequest.fromCsvFileName(fileName);
+      if (request == null) {
+        throw new IllegalArgumentException("Invalid csv filename: " + fileName);
+      }
+      unique.put(keyOf(request), request);
+    }
+    String batchId = UUID.randomUUID().toString();
+    return new ImportBatch(appName, batchId, getCheckpointFile(context, appName, batchId),
+        new ArrayList<>(unique.values()), new HashSet<String>(),
+        new HashMap<String, Integer>());
+  }
+
+  /**
+   * Plans a batch with every csv file directly inside the assets csv folder.
+   *
+   * @param context a context used to find the checkpoint file
+   * @param appName the app name
+   * @return the planned batch, which is empty if there are no csv files
+   */
+  public static ImportBatch fromAssetsCsvFolder(Context context, String appName) {
+    List<String> fileNames = new ArrayList<>();
+    File[] files = new File(ODKFileUtils.getAssetsCsvFolder(appName)).listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile() && ImportRequest.fromCsvFileName(file.getName()) != null) {
+          fileNames.add(file.getName());
+        }
+      }
+    }
+    return fromCsvFileNames(context, appName, fileNames);
+  }
+
+  /**
+   * Loads an unfinished batch left behind by an import that did not complete.
+   *
+   * @param context a context used to find the checkpoint file
+   * @param appName the app name
+   * @param batchId the id of the batch, see {@link #getBatchId()}
+   * @return the unfinished batch, or null if there is none
+   */
+  public static ImportBatch loadCheckpoint(Context context, String appName, String batchId) {
+    File file = getCheckpointFile(context, appName, batchId);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      Map<String, Object> checkpoint = ODKFileUtils.mapper
+          .readValue(file, new TypeReference<HashMap<String, Object>>() {
+          });
+      @SuppressWarnings("unchecked") List<Map<String, String>> savedRequests =
+          (List<Map<String, String>>) checkpoint.get(KEY_REQUESTS);
+      @SuppressWarnings("unchecked") List<String> savedCompleted =
+          (List<String>) checkpoint.get(KEY_COMPLETED);
+      @SuppressWarnings("unchecked") Map<String, Number> savedLines =
+          (Map<String, Number>) checkpoint.get(KEY_COMMITTED_LINES);
+      Map<String, Integer> committedLines = new HashMap<>();
+      if (savedLines != null) {
+        for (Map.Entry<String, Number> entry : savedLines.entrySet()) {
+          committedLines.put(entry.getKey(), entry.getValue().intValue());
+        }
+      }
+      List<ImportRequest> requests = new ArrayList<>();
+      for (Map<String, String> saved : savedRequests) {
+        String bundleFormat = saved.get(KEY_BUNDLE_FORMAT);
+        requests.add(new ImportRequest(saved.get(KEY_TABLE_ID), saved.get(KEY_FILE_QUALIFIER),
+            bundleFormat == null ? null : CsvBundle.Format.valueOf(bundleFormat)));
+      }
+      return new ImportBatch(appName, batchId, file, requests, new HashSet<>(savedCompleted),
+          committedLines);
+    } catch (IOException | RuntimeException e) {
+      WebLogger.getLogger(appName).e(TAG, "Discarding unreadable import checkpoint");
+      WebLogger.getLogger(appName).printStackTrace(e);
+      if (!file.delete()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to delete " + file.getAbsolutePath());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Loads every unfinished batch of an app, oldest first
+   *
+   * @param context a context used to find the checkpoint files
+   * @param appName the app name
+   * @return the unfinished batches, empty if there are none
+   */
+  public static List<ImportBatch> loadCheckpoints(Context context, String appName) {
+    List<ImportBatch> batches = new ArrayList<>();
+    File[] files = getCheckpointFolder(context, appName).listFiles();
+    if (files == null) {
+      return batches;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        return Long.compare(lhs.lastModified(), rhs.lastModified());
+      }
+    });
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(CHECKPOINT_FILE_SUFFIX)) {
+        continue;
+      }
+      ImportBatch batch = loadCheckpoint(context, appName,
+          name.substring(0, name.length() - CHECKPOINT_FILE_SUFFIX.length()));
+      if (batch != null) {
+        batches.add(batch);
+      }
+    }
+    return batches;
+  }
+
+  /**
+   * @return the app name
+   */
+  public String getAppName() {
+    return appName;
+  }
+
+  /**
+   * @return the id that names the batch's checkpoint
+   */
+  public String getBatchId() {
+    return batchId;
+  }
+
+  /**
+   * @return the number of files in the batch
+   */
+  public int size() {
+    return requests.size();
+  }
+
+  /**
+   * @return the number of files that have been imported
+   */
+  public synchronized int getCompletedCount() {
+    return completed.size();
+  }
+
+  /**
+   * Groups the files that still need importing by table. Different tables can be
+   * imported at the same time, but the files of one table have to be imported one
+   * after the other.
+   *
+   * @return the pending requests, one list per table
+   */
+  public synchronized List<List<ImportRequest>> getPendingRequestsByTable() {
+    Map<String, List<ImportRequest>> byTable = new LinkedHashMap<>();
+    for (ImportRequest request : requests) {
+      if (completed.contains(keyOf(request))) {
+        continue;
+      }
+      List<ImportRequest> tableRequests = byTable.get(request.getTableId());
+      if (tableRequests == null) {
+        tableRequests = new ArrayList<>();
+        byTable.put(request.getTableId(), tableRequests);
+      }
+      tableRequests.add(request);
+    }
+    return new ArrayList<>(byTable.values());
+  }
+
+  /**
+   * Records that a file has been imported and updates the checkpoint
+   *
+   * @param request the request that completed
+   */
+  public synchronized void markCompleted(ImportRequest request) {
+    completed.add(keyOf(request));
+    committedLines.remove(keyOf(request));
+    saveCheckpoint();
+  }
+
+  /**
+   * @param request a request of the batch
+   * @return the number of data lines of its file that an interrupted import already wrote
+   */
+  synchronized int getCommittedLines(ImportRequest request) {
+    Integer lines = committedLines.get(keyOf(request));
+    return lines == null ? 0 : lines;
+  }
+
+  /**
+   * Records that a chunk of a file has been written and updates the checkpoint
+   *
+   * @param request        the request being imported
+   * @param committedLines the number of data lines of its file that are now in the table
+   */
+  synchronized void markLinesCommitted(ImportRequest request, int committedLines) {
+    this.committedLines.put(keyOf(request), committedLines);
+    saveCheckpoint();
+  }
+
+  /**
+   * Writes the batch to its checkpoint file. The file is replaced atomically so a
+   * kill during the write leaves the previous checkpoint intact.
+   */
+  public synchronized void saveCheckpoint() {
+    List<Map<String, String>> savedRequests = new ArrayList<>();
+    for (ImportRequest request : requests) {
+      Map<String, String> saved = new HashMap<>();
+      saved.put(KEY_TABLE_ID, request.getTableId());
+      saved.put(KEY_FILE_QUALIFIER, request.getFileQualifier());
+      if (request.getBundleFormat() != null) {
+        saved.put(KEY_BUNDLE_FORMAT, request.getBundleFormat().name());
+      }
+      savedRequests.add(saved);
+    }
+    Map<String, Object> checkpoint = new HashMap<>();
+    checkpoint.put(KEY_REQUESTS, savedRequests);
+    checkpoint.put(KEY_COMPLETED, new ArrayList<>(completed));
+    checkpoint.put(KEY_COMMITTED_LINES, new HashMap<>(committedLines));
+
+    File temp = new File(checkpointFile.getPath() + ".tmp");
+    try {
+      File folder = checkpointFile.getParentFile();
+      if (!folder.exists() && !folder.mkdirs()) {
+        throw new IOException("Unable to create " + folder.getAbsolutePath());
+      }
+      ODKFileUtils.mapper.writeValue(temp, checkpoint);
+      if (!temp.renameTo(checkpointFile)) {
+        throw new IOException("Unable to rename " + temp.getAbsolutePath());
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to save import checkpoint");
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+
+  /**
+   * Removes the checkpoint once every file has been imported
+   */
+  public synchronized void deleteCheckpoint() {
+    if (checkpointFile.exists() && !checkpointFile.delete()) {
+      WebLogger.getLogger(appName)
+          .e(TAG, "Unable to delete " + checkpointFile.getAbsolutePath());
+    }
+  }
+
+  private static File getCheckpointFolder(Context context, String appName) {
+    return new File(new File(context.getFilesDir(), CHECKPOINT_FOLDER), appName);
+  }
+
+  private static File getCheckpointFile(Context context, String appName, String batchId) {
+    return new File(getCheckpointFolder(context, appName), batchId + CHECKPOINT_FILE_SUFFIX);
+  }
+
+  private static String keyOf(ImportRequest request) {
+    String qualifier = request.getFileQualifier();
+    String key = qualifier == null ? request.getTableId() : request.getTableId() + "." + qualifier;
+    return request.getBundleFormat() == null ?
+        key :
+        key + request.getBundleFormat().getExtension();
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+import org.opendatakit.consts.IntentConsts;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.application.Tables;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs import and export batches in a foreground service, so they carry on when
+ * the activity that started them is rotated or closed, and show their progress in
+ * a notification instead of a dialog.
+ * <p>
+ * Jobs run one at a time, in the order they were started; each import batch has
+ * a checkpoint of its own, so a batch started while another runs waits its turn.
+ * The service asks to have its intents redelivered, so if the process is killed
+ * part way through a job the job is started again when the service is restarted.
+ * An import batch then carries on from the last chunk recorded in its
+ * {@link ImportBatch} checkpoint; an export simply runs again, since its files are
+ * only complete once written.
+ */
+public class ImportExportService extends Service {
+
+  private static final String TAG = ImportExportService.class.getSimpleName();
+
+  private static final String ACTION_IMPORT = "org.opendatakit.tables.action.IMPORT_BATCH";
+  private static final String ACTION_EXPORT = "org.opendatakit.tables.action.EXPORT_BATCH";
+
+  private static final String EXTRA_BATCH_ID = "batchId";
+  private static final String EXTRA_TABLE_IDS = "tableIds";
+  private static final String EXTRA_QUALIFIERS = "qualifiers";
+  private static final String EXTRA_BUNDLE_FORMATS = "bundleFormats";
+  private static final String EXTRA_INCREMENTAL = "incremental";
+  private static final String EXTRA_COLUMNAR = "columnar";
+
+  private static final String CHANNEL_ID = "import_export";
+  private static final int PROGRESS_NOTIFICATION_ID = 1;
+  private static final int RESULT_NOTIFICATION_ID = 2;
+
+  /**
+   * How long a restarted job waits for the database service to be bound
+   */
+  private static final long DATABASE_WAIT_MS = 60000;
+  private static final long DATABASE_POLL_MS = 500;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // the ids of the import batches asked for and not finished yet, only touched on the main
+  // thread; static so the activity can tell which checkpoints are already being imported
+  private static final Set<String> requestedImports = new HashSet<>();
+  // the ids of the import batches queued or running, so a batch is never run twice at once
+  private final Set<String> queuedImports = new HashSet<>();
+  // only touched on the main thread
+  private int pendingJobs = 0;
+  // the newest start id, the service may only stop itself with this one
+  private int lastStartId = 0;
+
+  /**
+   * Imports a batch from its checkpoint, see {@link ImportBatch#saveCheckpoint()}
+   *
+   * @param context a context to start the service with
+   * @param batch   a batch whose checkpoint has been saved
+   * @return false if the batch is already queued or running, it is not sent again
+   */
+  public static boolean startImport(Context context, ImportBatch batch) {
+    if (!requestedImports.add(batch.getBatchId())) {
+      return false;
+    }
+    Intent intent = new Intent(context, ImportExportService.class);
+    intent.setAction(ACTION_IMPORT);
+    intent.putExtra(IntentConsts.INTENT_KEY_APP_NAME, batch.getAppName());
+    intent.putExtra(EXTRA_BATCH_ID, batch.getBatchId());
+    ContextCompat.startForegroundService(context, intent);
+    return true;
+  }
+
+  /**
+   * Whether an import batch has been started and has not finished yet. Must be called on
+   * the main thread.
+   *
+   * @param batchId the id of the batch
+   * @return true if the batch is queued or running
+   */
+  public static boolean isImportRequested(String batchId) {
+    return requestedImports.contains(batchId);
+  }
+
+  /**
+   * Exports the tables of the requests. Requests for the rows of a query are not
+   * supported, those exports are short and run by an {@link ExportTask}.
+   *
+   * @param context  a context to start the service with
+   * @param appName  the app name
+   * @param requests one request per table
+   */
+  public static void startExport(Context context, String appName, ExportRequest... requests) {
+    String[] tableIds = new String[requests.length];
+    String[] qualifiers = new String[requests.length];
+    String[] bundleFormats = new String[requests.length];
+    boolean[] incremental = new boolean[requests.length];
+    boolean[] columnar = new boolean[requests.length];
+    for (int i = 0; i < requests.length; i++) {
+      if (requests[i].getQuery() != null) {
+        throw new IllegalArgumentException("Query exports cannot run in the background");
+      }
+      tableIds[i] = requests[i].getTableId();
+      qualifiers[i] = requests[i].getFileQualifier();
+      bundleFormats[i] = requests[i].getBundleFormat() == null ?
+          null :
+          requests[i].getBundleFormat().name();
+      incremental[i] = requests[i].isIncremental();
+      columnar[i] = requests[i].isColumnar();
+    }
+    Intent intent = new Intent(context, ImportExportService.class);
+    intent.setAction(ACTION_EXPORT);
+    intent.putExtra(IntentConsts.INTENT_KEY_APP_NAME, appName);
+    intent.putExtra(EXTRA_TABLE_IDS, tableIds);
+    intent.putExtra(EXTRA_QUALIFIERS, qualifiers);
+    intent.putExtra(EXTRA_BUNDLE_FORMATS, bundleFormats);
+    intent.putExtra(EXTRA_INCREMENTAL, incremental);
+    intent.putExtra(EXTRA_COLUMNAR, columnar);
+    ContextCompat.startForegroundService(context, intent);
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+          getString(R.string.import_export_channel_name), NotificationManager.IMPORTANCE_LOW);
+      ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+          .createNotificationChannel(channel);
+    }
+  }
+
+  @Override
+  public int onStartCommand(final Intent intent, int flags, final int startId) {
+    startForeground(PROGRESS_NOTIFICATION_ID,
+        newNotification(getString(R.string.import_export_in_progress), null).build());
+    lastStartId = startId;
+    String appName = intent == null ?
+        null :
+        intent.getStringExtra(IntentConsts.INTENT_KEY_APP_NAME);
+    boolean isImport = appName != null && ACTION_IMPORT.equals(intent.getAction());
+    final String batchId = isImport ?
+        String.valueOf(intent.getStringExtra(EXTRA_BATCH_ID)) :
+        null;
+    if (isImport) {
+      // a redelivered intent after a restart was not asked for in this process
+      requestedImports.add(batchId);
+    }
+    if (appName == null || (isImport && !queuedImports.add(batchId))) {
+      // nothing to do, or the batch is already queued; the pending jobs stop the service
+      if (pendingJobs == 0) {
+        finishJob(startId, null);
+      }
+      return START_NOT_STICKY;
+    }
+    pendingJobs++;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final NotificationCompat.Builder result = runJob(intent);
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (batchId != null) {
+              queuedImports.remove(batchId);
+              requestedImports.remove(batchId);
+            }
+            pendingJobs--;
+            finishJob(startId, result);
+          }
+        });
+      }
+    });
+    return START_REDELIVER_INTENT;
+  }
+
+  @Override
+  public void onDestroy() {
+    executor.shutdownNow();
+    // the interrupted batches keep their checkpoints and can be resumed
+    requestedImports.removeAll(queuedImports);
+    super.onDestroy();
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  /**
+   * Runs a job on the executor thread
+   *
+   * @return the notification with the result
+   */
+  private NotificationCompat.Builder runJob(Intent intent) {
+    String appName = intent.getStringExtra(IntentConsts.INTENT_KEY_APP_NAME);
+    boolean isImport = ACTION_IMPORT.equals(intent.getAction());
+    final String title = getString(isImport ? R.string.import_batch_title :
+        R.string.export_batch_title);
+    if (!waitForDatabase()) {
+      WebLogger.getLogger(appName).e(TAG, "Database unavailable, giving up on " + title);
+      return newNotification(title,
+          getString(isImport ? R.string.import_failure : R.string.export_failure));
+    }
+    BatchProgressListener progressListener = new BatchProgressListener() {
+      @Override
+      public void onProgress(int finished, int total, String message) {
+        NotificationManagerCompat.from(ImportExportService.this).notify(PROGRESS_NOTIFICATION_ID,
+            newNotification(title, message).setProgress(total, finished, false).build());
+      }
+    };
+
+    if (isImport) {
+      String batchId = intent.getStringExtra(EXTRA_BATCH_ID);
+      ImportBatch batch = batchId == null ? null :
+          ImportBatch.loadCheckpoint(this, appName, batchId);
+      if (batch == null) {
+        return newNotification(title, getString(R.string.import_batch_empty));
+      }
+      BatchImportJob job = new BatchImportJob(appName, this, batch, progressListener);
+      if (job.run()) {
+        return newNotification(title, getString(R.string.import_success));
+      }
+      if (job.getRejectionDetail() != null) {
+        return newNotification(title,
+            getString(R.string.import_failure) + "\n" + job.getRejectionDetail());
+      }
+      return newNotification(title, getString(job.hadProblemImportingKVSEntries() ?
+          R.string.export_partial_success :
+          R.string.import_failure));
+    }
+
+    BatchExportJob job = new BatchExportJob(appName, this, readExportRequests(intent, appName),
+        progressListener);
+    if (job.run()) {
+      return newNotification(title, getString(R.string.export_success));
+    }
+    String detail = job.getFailureDetail();
+    return newNotification(title,
+        detail == null ? getString(R.string.export_failure) :
+            getString(R.string.export_failure) + "\n" + detail);
+  }
+
+  /**
+   * Shows the result of a job and tells the system the job's intent is done with, so it is
+   * not redelivered. The service stops with the newest start id once no job is pending, so
+   * a request that arrived while a job ran cannot stop it.
+   */
+  private void finishJob(int startId, NotificationCompat.Builder result) {
+    if (result != null) {
+      NotificationManagerCompat.from(this).notify(RESULT_NOTIFICATION_ID, result.build());
+    }
+    if (pendingJobs == 0) {
+      stopForeground(true);
+      stopSelf(lastStartId);
+    } else {
+      // the pending jobs were started later, so this does not stop the service
+      stopSelf(startId);
+    }
+  }
+
+  private ExportRequest[] readExportRequests(Intent intent, String appName) {
+    String[] tableIds = intent.getStringArrayExtra(EXTRA_TABLE_IDS);
+    String[] qualifiers = intent.getStringArrayExtra(EXTRA_QUALIFIERS);
+    String[] bundleFormats = intent.getStringArrayExtra(EXTRA_BUNDLE_FORMATS);
+    boolean[] incremental = intent.getBooleanArrayExtra(EXTRA_INCREMENTAL);
+    boolean[] columnar = intent.getBooleanArrayExtra(EXTRA_COLUMNAR);
+    ExportRequest[] requests = new ExportRequest[tableIds == null ? 0 : tableIds.length];
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = new ExportRequest(appName, tableIds[i], qualifiers[i], null,
+          bundleFormats[i] == null ? null : CsvBundle.Format.valueOf(bundleFormats[i]),
+          incremental[i], columnar[i]);
+    }
+    return requests;
+  }
+
+  /**
+   * A job restarted after the process was killed can get here before the
+   * application has bound to the database service again
+   */
+  private boolean waitForDatabase() {
+    long deadline = System.currentTimeMillis() + DATABASE_WAIT_MS;
+    while (Tables.getInstance().getDatabase() == null) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(DATABASE_POLL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private NotificationCompat.Builder newNotification(String title, String text) {
+    NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
+        .setSmallIcon(R.drawable.odk_tables_icon).setContentTitle(title).setOnlyAlertOnce(true);
+    if (text != null) {
+      builder.setContentText(text)
+          .setStyle(new NotificationCompat.BigTextStyle().bigText(text));
+    }
+    return builder;
+  }
+}
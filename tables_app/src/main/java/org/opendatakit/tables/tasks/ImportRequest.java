@@ -26,28 +26,98 @@ public class ImportRequest {
   private final boolean createTable;
   // the id of the table to import
   private final String tableId;
+  // the number of rows to write per chunk when appending a data file, 0 to write row by row
+  private final int chunkSize;
+  // the kind of bundle the data is in, or null for plain csv files
+  private final CsvBundle.Format bundleFormat;
 
   /**
-   * forwards request to the three argument constructor
+   * forwards request to the four argument constructor, appending data files in chunks of the
+   * default size
    *
    * @param tableId       table id
    * @param fileQualifier filename prefix
    */
   public ImportRequest(String tableId, String fileQualifier) {
-    this(true, tableId, fileQualifier);
+    this(tableId, fileQualifier, ChunkedCsvImporter.DEFAULT_CHUNK_SIZE);
   }
 
   /**
-   * simple constructor that stores its three arguments
+   * forwards request to the four argument constructor
+   *
+   * @param tableId       table id
+   * @param fileQualifier filename prefix
+   * @param chunkSize     the number of rows to write per chunk when appending a data file to an
+   *                      existing table, or 0 to leave the whole import to CsvUtil
+   */
+  public ImportRequest(String tableId, String fileQualifier, int chunkSize) {
+    this(true, tableId, fileQualifier, chunkSize, null);
+  }
+
+  /**
+   * A request to import a bundle written by a compressed export
+   *
+   * @param tableId       table id
+   * @param fileQualifier filename prefix
+   * @param bundleFormat  the kind of bundle, or null for plain csv files
+   */
+  ImportRequest(String tableId, String fileQualifier, CsvBundle.Format bundleFormat) {
+    this(true, tableId, fileQualifier, ChunkedCsvImporter.DEFAULT_CHUNK_SIZE, bundleFormat);
+  }
+
+  /**
+   * simple constructor that stores its five arguments
    *
    * @param createTable   whether to create the table if it doesn't exist
    * @param tableId       the id of the table
    * @param fileQualifier the prefix for the csv file to import
+   * @param chunkSize     the number of rows to write per chunk, 0 to write row by row
+   * @param bundleFormat  the kind of bundle, or null for plain csv files
    */
-  private ImportRequest(boolean createTable, String tableId, String fileQualifier) {
+  private ImportRequest(boolean createTable, String tableId, String fileQualifier,
+      int chunkSize, CsvBundle.Format bundleFormat) {
     this.createTable = createTable;
     this.tableId = tableId;
     this.fileQualifier = fileQualifier;
+    this.chunkSize = chunkSize;
+    this.bundleFormat = bundleFormat;
+  }
+
+  /**
+   * Works out the table id and file qualifier from the name of a csv file in the assets csv
+   * folder. The name must be of the form tableId.csv, tableId.definition.csv,
+   * tableId.properties.csv, tableId.qualifier.csv, tableId.qualifier.definition.csv or
+   * tableId.qualifier.properties.csv, or a bundle named tableId.zip, tableId.qualifier.zip,
+   * tableId.csv.gz or tableId.qualifier.csv.gz
+   *
+   * @param fileName the path of the file relative to the assets csv folder
+   * @return a request to import that file, or null if the name is not of a recognised form
+   */
+  public static ImportRequest fromCsvFileName(String fileName) {
+    CsvBundle.Format format = CsvBundle.formatOf(fileName);
+    if (format != null) {
+      String[] terms = fileName.substring(0, fileName.length() - format.getExtension().length())
+          .split("\\.");
+      if (terms.length == 1) {
+        return new ImportRequest(terms[0], null, format);
+      } else if (terms.length == 2) {
+        return new ImportRequest(terms[0], terms[1], format);
+      }
+      return null;
+    }
+    String[] terms = fileName.split("\\.");
+    if (terms.length == 2 && terms[1].equals("csv")) {
+      return new ImportRequest(terms[0], null);
+    } else if (terms.length == 3 && (terms[1].equals("properties") || terms[1]
+        .equals("definition")) && terms[2].equals("csv")) {
+      return new ImportRequest(terms[0], null);
+    } else if (terms.length == 3 && terms[2].equals("csv")) {
+      return new ImportRequest(terms[0], terms[1]);
+    } else if (terms.length == 4 && (terms[2].equals("properties") || terms[2]
+        .equals("definition")) && terms[3].equals("csv")) {
+      return new ImportRequest(terms[0], terms[1]);
+    }
+    return null;
   }
 
   /**
@@ -76,4 +146,22 @@ public class ImportRequest {
   String getFileQualifier() {
     return fileQualifier;
   }
-}
\ No newline at end of file
+
+  /**
+   * standard getter for the chunk size
+   *
+   * @return the number of rows to write per chunk, 0 to write row by row
+   */
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * standard getter for the bundle format
+   *
+   * @return the kind of bundle the data is in, or null for plain csv files
+   */
+  CsvBundle.Format getBundleFormat() {
+    return bundleFormat;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.os.SystemClock;
+
+/**
+ * Limits progress reports to one per interval. Formatting and posting the dialog
+ * message for every row costs more than importing or exporting some rows, and
+ * nobody can read it that fast anyway.
+ */
+class ProgressThrottle {
+
+  /**
+   * The default minimum time between two reports, in milliseconds
+   */
+  static final long DEFAULT_INTERVAL = 250;
+
+  private final long interval;
+  private long lastReport = Long.MIN_VALUE / 2;
+
+  ProgressThrottle() {
+    this(DEFAULT_INTERVAL);
+  }
+
+  /**
+   * @param interval the minimum time between two reports, in milliseconds
+   */
+  ProgressThrottle(long interval) {
+    this.interval = interval;
+  }
+
+  /**
+   * @return true if enough time has passed since the last report, in which case
+   * this call counts as a report
+   */
+  synchronized boolean shouldReport() {
+    long now = SystemClock.elapsedRealtime();
+    if (now - lastReport < interval) {
+      return false;
+    }
+    lastReport = now;
+    return true;
+  }
+}
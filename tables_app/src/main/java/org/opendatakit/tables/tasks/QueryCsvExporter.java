@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.builder.csvparser.RFC4180CsvWriter;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.ArbitraryQuery;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.queries.SingleRowQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.utils.QueryPageUtil;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exports the rows of a view query, e.g. the filtered and sorted rows of the
+ * spreadsheet, to a csv data file.
+ * <p>
+ * The query is run a page at a time with a limit and offset and each page is
+ * written out before the next one is fetched, so memory use depends on the page
+ * size and not on the size of the table. The file has the same layout as the data
+ * file written by {@link org.opendatakit.builder.CsvUtil#exportSeparable}, so it
+ * can be imported back into the table as an append.
+ */
+class QueryCsvExporter {
+
+  private static final String TAG = QueryCsvExporter.class.getSimpleName();
+
+  /**
+   * The number of rows fetched per page
+   */
+  static final int DEFAULT_PAGE_SIZE = 1000;
+
+  /**
+   * The metadata columns written before the user defined columns
+   */
+  private static final List<String> LEADING_METADATA = Arrays
+      .asList(DataTableColumns.ID, DataTableColumns.FORM_ID, DataTableColumns.LOCALE,
+          DataTableColumns.SAVEPOINT_TYPE, DataTableColumns.SAVEPOINT_TIMESTAMP,
+          DataTableColumns.SAVEPOINT_CREATOR);
+  /**
+   * The metadata columns written after the user defined columns
+   */
+  private static final List<String> TRAILING_METADATA = Arrays
+      .asList(DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+          DataTableColumns.ROW_ETAG, DataTableColumns.GROUP_READ_ONLY,
+          DataTableColumns.GROUP_MODIFY, DataTableColumns.GROUP_PRIVILEGED);
+
+  private final String appName;
+  private final UserDbInterface dbInterface;
+  private final int pageSize;
+  private final ProgressThrottle throttle = new ProgressThrottle();
+
+  /**
+   * @param appName     the app name
+   * @param dbInterface the database interface to use
+   * @param pageSize    the number of rows to fetch per page
+   */
+  QueryCsvExporter(String appName, UserDbInterface dbInterface, int pageSize) {
+    this.appName = appName;
+    this.dbInterface = dbInterface;
+    this.pageSize = Math.max(1, pageSize);
+  }
+
+  /**
+   * @param query a view query
+   * @return whether the rows of the query can be exported
+   */
+  static boolean canExport(ResumableQuery query) {
+    return query instanceof ArbitraryQuery || query instanceof SimpleQuery
+        || query instanceof SingleRowQuery;
+  }
+
+  /**
+   * Writes every row of the query to output/csv/tableId.qualifier.csv
+   *
+   * @param listener     told about the progress, the total is unknown and given as 0
+   * @param db           an open database handle
+   * @param orderedDefns the columns of the table
+   * @param query        the query to export
+   * @param qualifier    the qualifier of the output file name
+   * @return whether the rows were written
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean export(ExportListener listener, DbHandle db, OrderedColumns orderedDefns,
+      ResumableQuery query, String qualifier) throws ServicesAvailabilityException {
+    if (!canExport(query)) {
+      WebLogger.getLogger(appName).e(TAG, "invalid query type");
+      return false;
+    }
+
+    File file = new File(ODKFileUtils.getOutputTableCsvFile(appName, query.getTableId(),
+        qualifier));
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to create " + parent.getAbsolutePath());
+      return false;
+    }
+
+    RFC4180CsvWriter writer = null;
+    boolean success = false;
+    try {
+      writer = new RFC4180CsvWriter(new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+      writeRows(listener, db, orderedDefns, query, writer, null);
+      success = true;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "Unable to write " + file.getAbsolutePath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          success = false;
+        }
+      }
+      if (!success && file.exists() && !file.delete()) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to delete " + file.getAbsolutePath());
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Writes the header and every row of the query to a csv writer, a page at a time.
+   *
+   * @param listener     told about the progress, may be null
+   * @param db           an open database handle
+   * @param orderedDefns the columns of the table
+   * @param query        the query to export
+   * @param writer       where the rows are written
+   * @param manifest     if not null, gets a line for every row attachment that is referenced
+   * @return the number of rows written
+   * @throws ServicesAvailabilityException if the database is down
+   * @throws IOException                   if the rows could not be written
+   */
+  int writeRows(ExportListener listener, DbHandle db, OrderedColumns orderedDefns,
+      ResumableQuery query, RFC4180CsvWriter writer, RFC4180CsvWriter manifest)
+      throws ServicesAvailabilityException, IOException {
+    List<String> attachmentColumns = new ArrayList<>();
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      if (cd.getType().getDataType() == ElementDataType.rowpath) {
+        attachmentColumns.add(cd.getElementKey());
+      }
+    }
+    if (manifest != null) {
+      manifest.writeNext(CsvBundle.MANIFEST_HEADER);
+    }
+
+    String[] header = null;
+    String[] line = null;
+    int offset = 0;
+    UserTable page;
+    do {
+      page = queryPage(db, orderedDefns, query, offset);
+      int rows = page == null ? 0 : page.getNumberOfRows();
+      if (header == null) {
+        header = buildHeader(orderedDefns, rows == 0 ? null : page);
+        line = new String[header.length];
+        writer.writeNext(header);
+      }
+      for (int i = 0; i < rows; i++) {
+        TypedRow row = page.getRowAtIndex(i);
+        for (int j = 0; j < header.length; j++) {
+          line[j] = row.getRawStringByKey(header[j]);
+        }
+        writer.writeNext(line);
+        if (manifest != null && !attachmentColumns.isEmpty()) {
+          writeAttachments(manifest, query.getTableId(), page.getRowId(i), row,
+              attachmentColumns);
+        }
+      }
+      offset += rows;
+      if (listener != null && throttle.shouldReport()) {
+        listener.updateProgressDetail(offset, 0);
+      }
+      // stop on a short page rather than paying for a query that returns nothing
+    } while (page != null && page.getNumberOfRows() == pageSize);
+    return offset;
+  }
+
+  /**
+   * Adds a manifest line for each attachment of a row, with its size so that a copy can be
+   * checked. Attachments that are missing from the device get an empty size.
+   */
+  private void writeAttachments(RFC4180CsvWriter manifest, String tableId, String rowId,
+      TypedRow row, List<String> attachmentColumns) throws IOException {
+    for (String elementKey : attachmentColumns) {
+      String value = row.getRawStringByKey(elementKey);
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      File attachment = new File(ODKFileUtils.getInstanceFolder(appName, tableId, rowId), value);
+      manifest.writeNext(new String[] { rowId, elementKey,
+          ODKFileUtils.asRelativePath(appName, attachment),
+          attachment.isFile() ? Long.toString(attachment.length()) : null });
+    }
+  }
+
+  /**
+   * Fetches one page of the query, see {@link QueryPageUtil#queryPage}
+   */
+  UserTable queryPage(DbHandle db, OrderedColumns orderedDefns, ResumableQuery query,
+      int offset) throws ServicesAvailabilityException {
+    return QueryPageUtil.queryPage(dbInterface, appName, db, orderedDefns, query, pageSize,
+        offset);
+  }
+
+  /**
+   * The metadata columns, with the user defined columns in between. An arbitrary
+   * query may not select every column, so only the ones in its first page are kept.
+   */
+  static String[] buildHeader(OrderedColumns orderedDefns, UserTable firstPage) {
+    List<String> header = QueryPageUtil
+        .getPageColumns(LEADING_METADATA, orderedDefns, TRAILING_METADATA, firstPage);
+    return header.toArray(new String[header.size()]);
+  }
+}
@@ -105,6 +105,13 @@ public final class Constants {
      */
     public static final String CONTAINS_PROPS = "containsProps";
 
+    /**
+     * Prefixes the query keys of the sub list of a DETAIL_WITH_LIST view when the query is
+     * given up front in the intent, e.g. subListTableId, subListSqlWhereClause or
+     * subListFilename, so that the sub list loads alongside the detail view.
+     */
+    public static final String SUB_LIST_PREFIX = "subList";
+
     private IntentKeys() {
     }
   }
@@ -231,6 +238,10 @@ public final class Constants {
        * The preference button for the file picker to pick a map view html file
        */
       public static final String MAP_LIST_FILE = "table_pref_map_list_file";
+      /**
+       * The checkbox that draws the map view with the offline point map instead of Google Maps
+       */
+      public static final String OFFLINE_MAP = "table_pref_offline_map";
       /**
        * The preference button to open the list of column
        */
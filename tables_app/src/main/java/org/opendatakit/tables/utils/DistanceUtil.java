@@ -7,6 +7,8 @@ package org.opendatakit.tables.utils;
 
 public final class DistanceUtil 
 {
+	private static final double MEAN_EARTH_RADIUS = 6371008.8;
+
 	public static double getDistance(double lat1, double lon1, double lat2, double lon2) 
 	{
 		double a = 6378137, b = 6356752.314245, f = 1 / 298.257223563;
@@ -74,6 +76,22 @@ public final class DistanceUtil
 		return s;
 	}
 	
+	/**
+	 * Great-circle distance in metres on a spherical earth. Much cheaper than the
+	 * Vincenty formula above and, unlike it, a true metric, so it is safe to use
+	 * with triangle-inequality bounds when ranking many points by distance.
+	 */
+	public static double getHaversineDistance(double lat1, double lon1, double lat2, double lon2)
+	{
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double sinDLat = Math.sin(dLat / 2);
+		double sinDLon = Math.sin(dLon / 2);
+		double h = sinDLat * sinDLat
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+		return 2 * MEAN_EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
 	public static String getFormatedDistance(double distance) {
 		String result = "";
 		if(distance >= 1000) {
@@ -531,6 +531,46 @@ public final class IntentUtil {
     }
   }
 
+  /**
+   * Pull the sub list query of a DETAIL_WITH_LIST view out of bundle, where each of its keys is
+   * prefixed with {@link IntentKeys#SUB_LIST_PREFIX}. The returned bundle has the same keys the
+   * sub list is updated with from javascript, so the two can be compared.
+   *
+   * @param bundle the bundle to get the sub list query from
+   * @return the sub list query, or null if there is none or bundle is null
+   */
+  public static Bundle retrieveSubListFromBundle(Bundle bundle) {
+    if (bundle == null) {
+      return null;
+    }
+    Bundle subList = new Bundle();
+    for (String key : bundle.keySet()) {
+      if (key.length() <= IntentKeys.SUB_LIST_PREFIX.length() || !key
+          .startsWith(IntentKeys.SUB_LIST_PREFIX)) {
+        continue;
+      }
+      String rest = key.substring(IntentKeys.SUB_LIST_PREFIX.length());
+      String subKey = Character.toLowerCase(rest.charAt(0)) + rest.substring(1);
+      Object value = bundle.get(key);
+      if (value instanceof String) {
+        subList.putString(subKey, (String) value);
+      } else if (value instanceof String[]) {
+        subList.putStringArray(subKey, (String[]) value);
+      }
+    }
+    if (retrieveTableIdFromBundle(subList) == null) {
+      return null;
+    }
+    if (retrieveQueryTypeFromBundle(subList) == null) {
+      addQueryTypeToBundle(subList, subList.containsKey(OdkData.IntentKeys.SQL_COMMAND) ?
+          OdkData.QueryTypes.ARBITRARY_QUERY :
+          OdkData.QueryTypes.SIMPLE_QUERY);
+    }
+    // in the same form setSubListView stores them in, which is there even if there are none
+    addSelectionArgsToBundle(subList, retrieveSelectionArgsFromBundle(subList));
+    return subList;
+  }
+
   /**
    * Specify the query type in the bundle keyed to {@link OdkData.IntentKeys#QUERY_TYPE}.
    * If bundle or query type is null, does nothing.
@@ -18,15 +18,21 @@ package org.opendatakit.tables.utils;
 import android.content.Context;
 import android.widget.Toast;
 import org.opendatakit.activities.BaseActivity;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.data.TableViewType;
 import org.opendatakit.data.utilities.ColumnUtil;
 import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
 
+import java.util.List;
+
 /**
  * @author sudar.sam@gmail.com
  */
@@ -38,6 +44,14 @@ public final class PreferenceUtil {
   @SuppressWarnings("unused")
   private static final String TAG = PreferenceUtil.class.getSimpleName();
 
+  /**
+   * Key value store location of the table level map view settings that Tables
+   * keeps itself
+   */
+  private static final String MAP_KVS_PARTITION = "TablesMap";
+  private static final String MAP_KVS_ASPECT = "default";
+  private static final String KEY_OFFLINE_MAP = "TablesMap.offlineMap";
+
   /**
    * Do not instantiate this class
    */
@@ -113,4 +127,59 @@ public final class PreferenceUtil {
     }
   }
 
+  /**
+   * Whether the map view of the table should use the offline point map instead of
+   * Google Maps.
+   *
+   * @param dbInterface the database interface to use
+   * @param appName     the app name
+   * @param db          a database handle
+   * @param tableId     the id of the table
+   * @return true if the offline map has been chosen for the table
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public static boolean getOfflineMap(UserDbInterface dbInterface, String appName, DbHandle db,
+      String tableId) throws ServicesAvailabilityException {
+    List<KeyValueStoreEntry> entries = dbInterface
+        .getTableMetadata(appName, db, tableId, MAP_KVS_PARTITION, MAP_KVS_ASPECT,
+            KEY_OFFLINE_MAP, null).getEntries();
+    if (entries.size() != 1) {
+      return false;
+    }
+    Boolean offlineMap = KeyValueStoreUtils.getBoolean(entries.get(0));
+    return offlineMap != null && offlineMap;
+  }
+
+  /**
+   * Saves whether the map view of the table should use the offline point map
+   *
+   * @param context    a context used for displaying an error
+   * @param appName    the app name
+   * @param tableId    the id of the table
+   * @param offlineMap true to use the offline point map
+   */
+  public static void setOfflineMap(Context context, String appName, String tableId,
+      boolean offlineMap) {
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      KeyValueStoreEntry entry = KeyValueStoreUtils
+          .buildEntry(tableId, MAP_KVS_PARTITION, MAP_KVS_ASPECT, KEY_OFFLINE_MAP,
+              ElementDataType.bool, Boolean.toString(offlineMap));
+      dbInterface.replaceTableMetadata(appName, db, entry);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      Toast.makeText(context, R.string.error_accessing_database, Toast.LENGTH_LONG).show();
+    } finally {
+      if (db != null) {
+        try {
+          dbInterface.closeDatabase(appName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+      }
+    }
+  }
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.utils;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.ArbitraryQuery;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the rows of a view query a page at a time with a limit and offset, for the
+ * exports and the web view result streams
+ */
+public final class QueryPageUtil {
+
+  /**
+   * Do not instantiate this class
+   */
+  private QueryPageUtil() {
+  }
+
+  /**
+   * Fetches one page of the query. Simple queries get the row id as a last sort
+   * column so that rows with equal sort values cannot move between pages.
+   *
+   * @param dbInterface  the database interface to use
+   * @param appName      the app name
+   * @param db           an open database handle
+   * @param orderedDefns the columns of the table
+   * @param query        an arbitrary or simple query
+   * @param pageSize     the most rows to fetch
+   * @param offset       the number of rows to skip
+   * @return the page
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public static UserTable queryPage(UserDbInterface dbInterface, String appName, DbHandle db,
+      OrderedColumns orderedDefns, ResumableQuery query, int pageSize, int offset)
+      throws ServicesAvailabilityException {
+    if (query instanceof ArbitraryQuery) {
+      ArbitraryQuery arbitraryQuery = (ArbitraryQuery) query;
+      return dbInterface.arbitrarySqlQuery(appName, db, arbitraryQuery.getTableId(),
+          orderedDefns, arbitraryQuery.getSqlCommand(), arbitraryQuery.getSqlBindArgs(), pageSize,
+          offset);
+    }
+    SimpleQuery simpleQuery = (SimpleQuery) query;
+    String[] orderByColNames = simpleQuery.getOrderByColNames();
+    String[] orderByDirections = simpleQuery.getOrderByDirections();
+    String[] groupBy = simpleQuery.getGroupByArgs();
+    if (groupBy == null || groupBy.length == 0) {
+      List<String> names = orderByColNames == null ?
+          new ArrayList<String>() :
+          new ArrayList<>(Arrays.asList(orderByColNames));
+      if (!names.contains(DataTableColumns.ID)) {
+        List<String> directions = orderByDirections == null ?
+            new ArrayList<String>() :
+            new ArrayList<>(Arrays.asList(orderByDirections));
+        while (directions.size() < names.size()) {
+          directions.add("ASC");
+        }
+        names.add(DataTableColumns.ID);
+        directions.add("ASC");
+        orderByColNames = names.toArray(new String[names.size()]);
+        orderByDirections = directions.toArray(new String[directions.size()]);
+      }
+    }
+    return dbInterface.simpleQuery(appName, db, simpleQuery.getTableId(), orderedDefns,
+        simpleQuery.getWhereClause(), simpleQuery.getSqlBindArgs(), groupBy,
+        simpleQuery.getHavingClause(), orderByColNames, orderByDirections, pageSize, offset);
+  }
+
+  /**
+   * Lays out the columns of a page: the leading metadata columns, the user defined
+   * columns, then the trailing metadata columns. An arbitrary query may not select
+   * every column, so only the ones in its first page are kept.
+   *
+   * @param leadingMetadata  the metadata columns to put first
+   * @param orderedDefns     the columns of the table
+   * @param trailingMetadata the metadata columns to put last
+   * @param firstPage        the first page of the query, or null to keep every column
+   * @return the element keys of the columns
+   */
+  public static List<String> getPageColumns(List<String> leadingMetadata,
+      OrderedColumns orderedDefns, List<String> trailingMetadata, UserTable firstPage) {
+    List<String> columns = new ArrayList<>(leadingMetadata);
+    columns.addAll(orderedDefns.getRetentionColumnNames());
+    columns.addAll(trailingMetadata);
+    if (firstPage == null) {
+      return columns;
+    }
+    List<String> present = new ArrayList<>();
+    for (String elementKey : columns) {
+      if (firstPage.getColumnIndexOfElementKey(elementKey) != null) {
+        present.add(elementKey);
+      }
+    }
+    return present;
+  }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map that needs no tiles and no network. Rows are drawn as coloured dots,
+ * projected with Web Mercator onto a plain background, and the viewport can be
+ * panned, pinch zoomed and double tap zoomed.
+ * <p>
+ * The projected coordinates are kept in primitive arrays and the points are drawn
+ * in one batch per colour. When zoomed out, points are decimated by a screen-space
+ * grid: each cell a few pixels wide draws at most one point per frame, so the cost of
+ * a frame is bounded by the screen size rather than the row count.
+ */
+public class ScatterMapView extends View {
+
+  /**
+   * Dot colour for rows that no colour rule matches
+   */
+  public static final int DEFAULT_POINT_COLOR = Color.rgb(0x33, 0xb5, 0xe5);
+  private static final int SELECTED_POINT_COLOR = Color.rgb(0x00, 0xc8, 0x00);
+  private static final int SELECTED_OUTLINE_COLOR = Color.WHITE;
+  private static final int BACKGROUND_COLOR = Color.rgb(0xf2, 0xef, 0xe9);
+
+  private static final float POINT_SIZE_DP = 7f;
+  private static final float SELECTED_POINT_SIZE_DP = 14f;
+  /**
+   * Side of a decimation cell. At most one point is drawn per cell.
+   */
+  private static final float CELL_SIZE_DP = 3f;
+  private static final float TOUCH_RADIUS_DP = 24f;
+  private static final float FIT_PADDING_DP = 32f;
+
+  /**
+   * Pixels per world unit at zoom level 0, as for web map tiles
+   */
+  private static final double TILE_SIZE = 256.0;
+  /**
+   * Zoom level used when there is only a single point to show
+   */
+  private static final int SINGLE_POINT_ZOOM = 12;
+  private static final int MAX_ZOOM = 21;
+  private static final double MAX_SINE_LATITUDE = 0.9999;
+
+  /**
+   * Listens for selections and long presses on the map.
+   */
+  public interface ScatterMapListener {
+
+    /**
+     * @param index the row index of the point that was tapped
+     */
+    void onPointSelected(int index);
+
+    /**
+     * The selection was cleared by tapping the selected point or empty space.
+     */
+    void onNoPointSelected();
+
+    /**
+     * @param latitude  latitude of the long press, in degrees
+     * @param longitude longitude of the long press, in degrees
+     */
+    void onMapLongPress(double latitude, double longitude);
+  }
+
+  private final float mDensity;
+  private final Paint mPointPaint;
+  private final Paint mSelectedPaint;
+  private final ScaleGestureDetector mScaleDetector;
+  private final GestureDetector mGestureDetector;
+
+  private ScatterMapListener mListener = null;
+
+  /**
+   * Projected coordinates in world units, 0..1 on both axes. NaN for rows
+   * without a location.
+   */
+  private double[] mX = new double[0];
+  private double[] mY = new double[0];
+  /**
+   * Row indexes grouped by colour, default coloured rows last so that the rows a
+   * colour rule picked out win the decimation
+   */
+  private int[] mDrawOrder = new int[0];
+  private int[] mGroupColors = new int[0];
+  private int[] mGroupStarts = new int[] { 0 };
+  private int mSelectedIndex = -1;
+
+  /**
+   * Viewport: the world coordinate at the centre of the view and the scale in
+   * pixels per world unit
+   */
+  private double mCenterX = 0.5;
+  private double mCenterY = 0.5;
+  private double mScale = TILE_SIZE;
+  private boolean mFitPending = true;
+
+  /**
+   * Decimation grid. A cell is taken in the current frame when its stamp equals
+   * mFrame, so the grid never needs clearing.
+   */
+  private int[] mCellStamps = new int[0];
+  private int mCellColumns = 0;
+  private int mFrame = 0;
+  private float[] mPointBuffer = new float[0];
+
+  /**
+   * @param context the context to create the view in
+   */
+  public ScatterMapView(Context context) {
+    super(context);
+    mDensity = context.getResources().getDisplayMetrics().density;
+
+    mPointPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    mPointPaint.setStrokeCap(Paint.Cap.ROUND);
+    mPointPaint.setStrokeWidth(POINT_SIZE_DP * mDensity);
+
+    mSelectedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    mSelectedPaint.setStyle(Paint.Style.FILL);
+
+    mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+    mGestureDetector = new GestureDetector(context, new GestureListener());
+  }
+
+  /**
+   * @param listener the listener to notify of taps and long presses
+   */
+  public void setListener(ScatterMapListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Replaces the points on the map. The viewport is fitted to the new points
+   * unless {@link #setViewport(double, double, double)} is called afterwards.
+   *
+   * @param latitudes  latitude of each row in degrees, NaN if the row has none
+   * @param longitudes longitude of each row in degrees, NaN if the row has none
+   * @param colors     colour of each row, or null to draw every row in the default colour
+   */
+  public void setPoints(double[] latitudes, double[] longitudes, int[] colors) {
+    int rows = latitudes.length;
+    mX = new double[rows];
+    mY = new double[rows];
+    for (int i = 0; i < rows; i++) {
+      if (Double.isNaN(latitudes[i]) || Double.isNaN(longitudes[i])) {
+        mX[i] = Double.NaN;
+        mY[i] = Double.NaN;
+      } else {
+        mX[i] = projectX(longitudes[i]);
+        mY[i] = projectY(latitudes[i]);
+      }
+    }
+    buildDrawOrder(colors);
+    if (mSelectedIndex >= rows) {
+      mSelectedIndex = -1;
+    }
+    mFitPending = true;
+    allocateBuffers();
+    if (getWidth() > 0) {
+      fitToPoints();
+    }
+    invalidate();
+  }
+
+  /**
+   * @param index the row to highlight, or -1 to clear the selection. Listeners are
+   *              not notified.
+   */
+  public void setSelectedIndex(int index) {
+    mSelectedIndex = index < mX.length ? index : -1;
+    invalidate();
+  }
+
+  /**
+   * @return the highlighted row, or -1 if none
+   */
+  public int getSelectedIndex() {
+    return mSelectedIndex;
+  }
+
+  /**
+   * Restores a viewport saved from {@link #getCenterX()}, {@link #getCenterY()} and
+   * {@link #getScale()}.
+   *
+   * @param centerX world x at the centre of the view
+   * @param centerY world y at the centre of the view
+   * @param scale   pixels per world unit
+   */
+  public void setViewport(double centerX, double centerY, double scale) {
+    mCenterX = centerX;
+    mCenterY = centerY;
+    mScale = scale;
+    mFitPending = false;
+    clampViewport();
+    invalidate();
+  }
+
+  /**
+   * @return world x at the centre of the view
+   */
+  public double getCenterX() {
+    return mCenterX;
+  }
+
+  /**
+   * @return world y at the centre of the view
+   */
+  public double getCenterY() {
+    return mCenterY;
+  }
+
+  /**
+   * @return pixels per world unit
+   */
+  public double getScale() {
+    return mScale;
+  }
+
+  /**
+   * Moves the viewport so that every point is visible.
+   */
+  public void fitToPoints() {
+    int width = getWidth();
+    int height = getHeight();
+    if (width == 0 || height == 0) {
+      mFitPending = true;
+      return;
+    }
+    mFitPending = false;
+
+    double minX = Double.NaN;
+    double maxX = Double.NaN;
+    double minY = Double.NaN;
+    double maxY = Double.NaN;
+    for (int i = 0; i < mX.length; i++) {
+      if (Double.isNaN(mX[i])) {
+        continue;
+      }
+      if (Double.isNaN(minX)) {
+        minX = maxX = mX[i];
+        minY = maxY = mY[i];
+      } else {
+        minX = Math.min(minX, mX[i]);
+        maxX = Math.max(maxX, mX[i]);
+        minY = Math.min(minY, mY[i]);
+        maxY = Math.max(maxY, mY[i]);
+      }
+    }
+
+    if (Double.isNaN(minX)) {
+      // nothing to show, show the whole world
+      mCenterX = 0.5;
+      mCenterY = 0.5;
+      mScale = Math.min(width, height);
+    } else if (maxX - minX == 0 && maxY - minY == 0) {
+      mCenterX = minX;
+      mCenterY = minY;
+      mScale = TILE_SIZE * (1 << SINGLE_POINT_ZOOM);
+    } else {
+      double padding = 2 * FIT_PADDING_DP * mDensity;
+      double usableWidth = Math.max(1, width - padding);
+      double usableHeight = Math.max(1, height - padding);
+      mCenterX = (minX + maxX) / 2;
+      mCenterY = (minY + maxY) / 2;
+      mScale = Math.min(usableWidth / (maxX - minX), usableHeight / (maxY - minY));
+    }
+    clampViewport();
+    invalidate();
+  }
+
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    allocateBuffers();
+    if (mFitPending) {
+      fitToPoints();
+    } else {
+      clampViewport();
+    }
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    canvas.drawColor(BACKGROUND_COLOR);
+    int width = getWidth();
+    int height = getHeight();
+    if (width == 0 || height == 0 || mCellStamps.length == 0) {
+      return;
+    }
+
+    mFrame++;
+    if (mFrame == Integer.MAX_VALUE) {
+      Arrays.fill(mCellStamps, 0);
+      mFrame = 1;
+    }
+    float cellSize = CELL_SIZE_DP * mDensity;
+    double left = mCenterX - width / 2.0 / mScale;
+    double top = mCenterY - height / 2.0 / mScale;
+
+    for (int group = 0; group < mGroupColors.length; group++) {
+      int n = 0;
+      for (int k = mGroupStarts[group]; k < mGroupStarts[group + 1]; k++) {
+        int i = mDrawOrder[k];
+        float sx = (float) ((mX[i] - left) * mScale);
+        float sy = (float) ((mY[i] - top) * mScale);
+        if (sx < 0 || sy < 0 || sx >= width || sy >= height) {
+          continue;
+        }
+        int cell = (int) (sy / cellSize) * mCellColumns + (int) (sx / cellSize);
+        if (mCellStamps[cell] == mFrame) {
+          continue;
+        }
+        mCellStamps[cell] = mFrame;
+        mPointBuffer[n++] = sx;
+        mPointBuffer[n++] = sy;
+      }
+      if (n > 0) {
+        mPointPaint.setColor(mGroupColors[group]);
+        canvas.drawPoints(mPointBuffer, 0, n, mPointPaint);
+      }
+    }
+
+    if (mSelectedIndex >= 0 && !Double.isNaN(mX[mSelectedIndex])) {
+      float sx = (float) ((mX[mSelectedIndex] - left) * mScale);
+      float sy = (float) ((mY[mSelectedIndex] - top) * mScale);
+      float radius = SELECTED_POINT_SIZE_DP * mDensity / 2;
+      mSelectedPaint.setColor(SELECTED_OUTLINE_COLOR);
+      canvas.drawCircle(sx, sy, radius + mDensity * 2, mSelectedPaint);
+      mSelectedPaint.setColor(SELECTED_POINT_COLOR);
+      canvas.drawCircle(sx, sy, radius, mSelectedPaint);
+    }
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent event) {
+    boolean handled = mScaleDetector.onTouchEvent(event);
+    handled = mGestureDetector.onTouchEvent(event) || handled;
+    return handled || super.onTouchEvent(event);
+  }
+
+  /**
+   * Groups the rows by colour so that each colour is a single draw call
+   */
+  private void buildDrawOrder(int[] colors) {
+    Map<Integer, Integer> groupOfColor = new LinkedHashMap<>();
+    int rows = mX.length;
+    int located = 0;
+    for (int i = 0; i < rows; i++) {
+      if (Double.isNaN(mX[i])) {
+        continue;
+      }
+      located++;
+      int color = colors == null ? DEFAULT_POINT_COLOR : colors[i];
+      if (color != DEFAULT_POINT_COLOR && !groupOfColor.containsKey(color)) {
+        groupOfColor.put(color, groupOfColor.size());
+      }
+    }
+    // the default colour goes last so it loses the decimation to coloured rows
+    groupOfColor.put(DEFAULT_POINT_COLOR, groupOfColor.size());
+
+    int groups = groupOfColor.size();
+    mGroupColors = new int[groups];
+    for (Map.Entry<Integer, Integer> entry : groupOfColor.entrySet()) {
+      mGroupColors[entry.getValue()] = entry.getKey();
+    }
+
+    // counting sort of the located rows by group
+    int[] rowGroups = new int[rows];
+    mGroupStarts = new int[groups + 1];
+    for (int i = 0; i < rows; i++) {
+      if (Double.isNaN(mX[i])) {
+        continue;
+      }
+      rowGroups[i] = groupOfColor.get(colors == null ? DEFAULT_POINT_COLOR : colors[i]);
+      mGroupStarts[rowGroups[i] + 1]++;
+    }
+    for (int g = 0; g < groups; g++) {
+      mGroupStarts[g + 1] += mGroupStarts[g];
+    }
+    int[] next = Arrays.copyOf(mGroupStarts, groups);
+    mDrawOrder = new int[located];
+    for (int i = 0; i < rows; i++) {
+      if (!Double.isNaN(mX[i])) {
+        mDrawOrder[next[rowGroups[i]]++] = i;
+      }
+    }
+  }
+
+  /**
+   * Sizes the decimation grid to the view and the point buffer to the most
+   * points a single colour can draw
+   */
+  private void allocateBuffers() {
+    int width = getWidth();
+    int height = getHeight();
+    if (width == 0 || height == 0) {
+      return;
+    }
+    float cellSize = CELL_SIZE_DP * mDensity;
+    mCellColumns = (int) Math.ceil(width / cellSize);
+    int cells = mCellColumns * (int) Math.ceil(height / cellSize);
+    if (mCellStamps.length != cells) {
+      mCellStamps = new int[cells];
+      mFrame = 0;
+    }
+    int maxPoints = Math.min(cells, mDrawOrder.length);
+    if (mPointBuffer.length < 2 * maxPoints) {
+      mPointBuffer = new float[2 * maxPoints];
+    }
+  }
+
+  private void clampViewport() {
+    double minScale = Math.max(1, Math.min(getWidth(), getHeight()));
+    double maxScale = TILE_SIZE * (1 << MAX_ZOOM);
+    mScale = Math.max(minScale, Math.min(maxScale, mScale));
+    mCenterX = Math.max(0, Math.min(1, mCenterX));
+    mCenterY = Math.max(0, Math.min(1, mCenterY));
+  }
+
+  /**
+   * Zooms while keeping the world point under the focus fixed on screen
+   */
+  private void zoomAround(float focusX, float focusY, double factor) {
+    double offsetX = focusX - getWidth() / 2.0;
+    double offsetY = focusY - getHeight() / 2.0;
+    double worldX = mCenterX + offsetX / mScale;
+    double worldY = mCenterY + offsetY / mScale;
+    mScale *= factor;
+    clampViewport();
+    mCenterX = worldX - offsetX / mScale;
+    mCenterY = worldY - offsetY / mScale;
+    clampViewport();
+    invalidate();
+  }
+
+  /**
+   * @return the located row nearest the screen position within the touch radius, or -1
+   */
+  private int findPointAt(float x, float y) {
+    double left = mCenterX - getWidth() / 2.0 / mScale;
+    double top = mCenterY - getHeight() / 2.0 / mScale;
+    double radius = TOUCH_RADIUS_DP * mDensity;
+    double best = radius * radius;
+    int bestIndex = -1;
+    for (int i : mDrawOrder) {
+      double dx = (mX[i] - left) * mScale - x;
+      double dy = (mY[i] - top) * mScale - y;
+      double d = dx * dx + dy * dy;
+      if (d <= best) {
+        best = d;
+        bestIndex = i;
+      }
+    }
+    return bestIndex;
+  }
+
+  private static double projectX(double longitude) {
+    return (longitude + 180.0) / 360.0;
+  }
+
+  private static double projectY(double latitude) {
+    double sin = Math.sin(Math.toRadians(latitude));
+    sin = Math.max(-MAX_SINE_LATITUDE, Math.min(MAX_SINE_LATITUDE, sin));
+    return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+  }
+
+  private static double unprojectLongitude(double x) {
+    return x * 360.0 - 180.0;
+  }
+
+  private static double unprojectLatitude(double y) {
+    return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+  }
+
+  private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+    @Override
+    public boolean onScale(ScaleGestureDetector detector) {
+      zoomAround(detector.getFocusX(), detector.getFocusY(), detector.getScaleFactor());
+      return true;
+    }
+  }
+
+  private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+    @Override
+    public boolean onDown(MotionEvent e) {
+      return true;
+    }
+
+    @Override
+    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+      mCenterX += distanceX / mScale;
+      mCenterY += distanceY / mScale;
+      clampViewport();
+      invalidate();
+      return true;
+    }
+
+    @Override
+    public boolean onDoubleTap(MotionEvent e) {
+      zoomAround(e.getX(), e.getY(), 2.0);
+      return true;
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent e) {
+      int index = findPointAt(e.getX(), e.getY());
+      if (index >= 0 && index != mSelectedIndex) {
+        mSelectedIndex = index;
+        invalidate();
+        if (mListener != null) {
+          mListener.onPointSelected(index);
+        }
+      } else if (mSelectedIndex >= 0) {
+        mSelectedIndex = -1;
+        invalidate();
+        if (mListener != null) {
+          mListener.onNoPointSelected();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void onLongPress(MotionEvent e) {
+      if (mListener == null || mScaleDetector.isInProgress()) {
+        return;
+      }
+      double x = mCenterX + (e.getX() - getWidth() / 2.0) / mScale;
+      double y = mCenterY + (e.getY() - getHeight() / 2.0) / mScale;
+      mListener.onMapLongPress(unprojectLatitude(y), unprojectLongitude(x));
+    }
+  }
+}
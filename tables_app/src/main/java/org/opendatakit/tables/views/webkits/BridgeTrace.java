@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timings of the requests web views make through odkData, so that a slow custom
+ * view can be told apart from a slow query, slow color rules or a large result.
+ * <p>
+ * Each request is followed through its stages: the query, until extendQueryMetadata
+ * is called; the color rules, in extendQueryMetadata; the serialization, until the
+ * response is handed to the activity; the wait in the response queue, until the view
+ * takes it; and the parse and the callback in the view, as odkData reports them. The
+ * duration of each stage and the size of each response go into a {@link Histogram}
+ * per stage, and the most recent {@link #MAX_TRACES} requests are kept to be written
+ * to a trace file that chrome://tracing or Perfetto can open.
+ * <p>
+ * The histograms and the kept requests are shared by every activity of the process
+ * and are updated without locking.
+ */
+public final class BridgeTrace {
+
+  /**
+   * The number of requests kept for the trace file
+   */
+  static final int MAX_TRACES = 256;
+
+  /**
+   * The stages of a request
+   */
+  public enum Stage {
+    /**
+     * From the request being picked up until extendQueryMetadata, i.e. running the query
+     */
+    QUERY("query"),
+    /**
+     * Applying the color rules in extendQueryMetadata
+     */
+    COLOR_RULES("colorRules"),
+    /**
+     * From extendQueryMetadata until the response is queued, i.e. serializing it
+     */
+    SERIALIZE("serialize"),
+    /**
+     * From the request being picked up until the response is queued
+     */
+    EXECUTOR("executor"),
+    /**
+     * From the response being queued until the view takes it
+     */
+    QUEUE_WAIT("queueWait"),
+    /**
+     * Parsing the response in the view
+     */
+    JS_PARSE("jsParse"),
+    /**
+     * Running the view's callback with the response
+     */
+    JS_CALLBACK("jsCallback");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /**
+   * Counts of values in buckets of powers of two, with the total and the largest
+   * value, updated without locking
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 48;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      long v = Math.max(0, value);
+      buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+      count.incrementAndGet();
+      sum.addAndGet(v);
+      long seen = max.get();
+      while (v > seen && !max.compareAndSet(seen, v)) {
+        seen = max.get();
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public long getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param fraction e.g. 0.5 for the median
+     * @return the upper bound of the bucket the fraction of the values falls in, which is at
+     * most twice the actual value
+     */
+    public long getPercentile(double fraction) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long wanted = (long) Math.ceil(fraction * n);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= wanted) {
+          return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /**
+   * One request, as it goes through its stages. Times are System.nanoTime().
+   */
+  public static final class Trace {
+    final long wallTime = System.currentTimeMillis();
+    final long started;
+    long metadataStarted = 0;
+    long metadataFinished = 0;
+    long queued = 0;
+    long taken = 0;
+    String fragmentID = null;
+    String url = null;
+    int bytes = 0;
+    volatile long jsParseMicros = -1;
+    volatile long jsCallbackMicros = -1;
+
+    Trace(long started) {
+      this.started = started;
+    }
+  }
+
+  private static final Map<Stage, Histogram> STAGES = new HashMap<>();
+  private static final Histogram RESPONSE_BYTES = new Histogram();
+
+  static {
+    for (Stage stage : Stage.values()) {
+      STAGES.put(stage, new Histogram());
+    }
+  }
+
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+  private static final AtomicReferenceArray<Trace> RECENT = new AtomicReferenceArray<>(MAX_TRACES);
+  private static final AtomicInteger NEXT = new AtomicInteger();
+  // the response each view took last, by fragment id, until the view reports parsing it
+  private static final ConcurrentHashMap<String, Trace> LAST_TAKEN = new ConcurrentHashMap<>();
+
+  private BridgeTrace() {
+  }
+
+  /**
+   * @param stage a stage
+   * @return its durations, in microseconds
+   */
+  public static Histogram getHistogram(Stage stage) {
+    return STAGES.get(stage);
+  }
+
+  /**
+   * @return the sizes of the responses, in characters
+   */
+  public static Histogram getResponseSizes() {
+    return RESPONSE_BYTES;
+  }
+
+  /**
+   * Called on the executor thread when it picks up a request
+   */
+  static void executorStarted() {
+    CURRENT.set(new Trace(System.nanoTime()));
+  }
+
+  /**
+   * Called on the executor thread when extendQueryMetadata is called
+   */
+  static void metadataStarted() {
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.metadataStarted = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called on the executor thread when extendQueryMetadata returns
+   */
+  static void metadataFinished() {
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.metadataFinished = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called on the executor thread when it is done with the request, whether or not it
+   * gave a response
+   */
+  static void executorFinished() {
+    CURRENT.remove();
+  }
+
+  /**
+   * Called when a response is queued for a view, on the executor thread if the executor
+   * queues it, otherwise the stages before this one are unknown
+   *
+   * @param fragmentID the fragment of the view
+   * @param url        the page of the view, may be null
+   * @param length     the length of the response
+   * @return the request, to hand to {@link #responseTaken(Trace)}
+   */
+  public static Trace responseQueued(String fragmentID, String url, int length) {
+    long now = System.nanoTime();
+    Trace trace = CURRENT.get();
+    CURRENT.remove();
+    if (trace == null) {
+      trace = new Trace(now);
+    }
+    trace.queued = now;
+    trace.fragmentID = fragmentID;
+    trace.url = url;
+    trace.bytes = length;
+    return trace;
+  }
+
+  /**
+   * Called when the view takes a response; records the stages of the request
+   *
+   * @param trace the request, from {@link #responseQueued(String, String, int)}
+   */
+  public static void responseTaken(Trace trace) {
+    trace.taken = System.nanoTime();
+    if (trace.metadataFinished != 0) {
+      record(Stage.QUERY, trace.metadataStarted - trace.started);
+      record(Stage.COLOR_RULES, trace.metadataFinished - trace.metadataStarted);
+      record(Stage.SERIALIZE, trace.queued - trace.metadataFinished);
+    }
+    if (trace.queued != trace.started) {
+      record(Stage.EXECUTOR, trace.queued - trace.started);
+    }
+    record(Stage.QUEUE_WAIT, trace.taken - trace.queued);
+    RESPONSE_BYTES.record(trace.bytes);
+    RECENT.set((NEXT.getAndIncrement() & Integer.MAX_VALUE) % MAX_TRACES, trace);
+    LAST_TAKEN.put(String.valueOf(trace.fragmentID), trace);
+  }
+
+  /**
+   * Called by a view once it has parsed the response it last took and run its callback.
+   * A view takes and parses its responses one at a time, so the response is the one the
+   * view's fragment took last.
+   *
+   * @param fragmentID     the fragment of the view
+   * @param length         the length of the response
+   * @param parseMillis    the time to parse it
+   * @param callbackMillis the time to run the callback
+   */
+  static void responseParsed(String fragmentID, int length, double parseMillis,
+      double callbackMillis) {
+    long parse = Math.round(parseMillis * 1000);
+    long callback = Math.round(callbackMillis * 1000);
+    STAGES.get(Stage.JS_PARSE).record(parse);
+    STAGES.get(Stage.JS_CALLBACK).record(callback);
+    Trace trace = LAST_TAKEN.remove(String.valueOf(fragmentID));
+    if (trace != null && trace.bytes == length) {
+      trace.jsParseMicros = parse;
+      trace.jsCallbackMicros = callback;
+    }
+  }
+
+  private static void record(Stage stage, long nanos) {
+    STAGES.get(stage).record(nanos / 1000);
+  }
+
+  /**
+   * Forgets every timing
+   */
+  public static void reset() {
+    for (Histogram histogram : STAGES.values()) {
+      histogram.reset();
+    }
+    RESPONSE_BYTES.reset();
+    for (int i = 0; i < MAX_TRACES; i++) {
+      RECENT.set(i, null);
+    }
+    LAST_TAKEN.clear();
+  }
+
+  /**
+   * @return a table of the count, median, 90th and 99th percentile and largest value of
+   * each stage, for the debug screen
+   */
+  public static String summary() {
+    StringBuilder b = new StringBuilder();
+    b.append(String.format(Locale.US, "%-11s %6s %8s %8s %8s %8s%n", "ms", "count", "p50",
+        "p90", "p99", "max"));
+    for (Stage stage : Stage.values()) {
+      Histogram h = STAGES.get(stage);
+      b.append(String.format(Locale.US, "%-11s %6d %8.1f %8.1f %8.1f %8.1f%n", stage.getLabel(),
+          h.getCount(), h.getPercentile(0.5) / 1000.0, h.getPercentile(0.9) / 1000.0,
+          h.getPercentile(0.99) / 1000.0, h.getMax() / 1000.0));
+    }
+    Histogram h = RESPONSE_BYTES;
+    b.append(String.format(Locale.US, "%-11s %6d %8d %8d %8d %8d%n", "KB", h.getCount(),
+        h.getPercentile(0.5) / 1024, h.getPercentile(0.9) / 1024, h.getPercentile(0.99) / 1024,
+        h.getMax() / 1024));
+    return b.toString();
+  }
+
+  /**
+   * Writes the kept requests, one row of events per fragment, and the histograms to a
+   * trace file in the app's output folder
+   *
+   * @param appName the app name
+   * @return the file
+   * @throws IOException if it could not be written
+   */
+  public static File export(String appName) throws IOException {
+    List<Map<String, Object>> events = new ArrayList<>();
+    for (int i = 0; i < MAX_TRACES; i++) {
+      Trace trace = RECENT.get(i);
+      if (trace == null) {
+        continue;
+      }
+      Map<String, Object> args = new HashMap<>();
+      args.put("url", trace.url);
+      args.put("bytes", trace.bytes);
+      args.put("wallTime", trace.wallTime);
+      String tid = trace.fragmentID == null ? "main" : trace.fragmentID;
+      if (trace.metadataFinished != 0) {
+        events.add(event(Stage.QUERY, tid, trace.started, trace.metadataStarted, args));
+        events.add(event(Stage.COLOR_RULES, tid, trace.metadataStarted,
+            trace.metadataFinished, args));
+        events.add(event(Stage.SERIALIZE, tid, trace.metadataFinished, trace.queued, args));
+      } else if (trace.queued != trace.started) {
+        events.add(event(Stage.EXECUTOR, tid, trace.started, trace.queued, args));
+      }
+      events.add(event(Stage.QUEUE_WAIT, tid, trace.queued, trace.taken, args));
+      long parse = trace.jsParseMicros;
+      long callback = trace.jsCallbackMicros;
+      if (parse >= 0) {
+        long parsed = trace.taken + parse * 1000;
+        events.add(event(Stage.JS_PARSE, tid, trace.taken, parsed, args));
+        events.add(event(Stage.JS_CALLBACK, tid, parsed, parsed + callback * 1000, args));
+      }
+    }
+
+    Map<String, Object> histograms = new HashMap<>();
+    for (Stage stage : Stage.values()) {
+      histograms.put(stage.getLabel(), describe(STAGES.get(stage)));
+    }
+    histograms.put("responseBytes", describe(RESPONSE_BYTES));
+
+    Map<String, Object> json = new HashMap<>();
+    json.put("traceEvents", events);
+    json.put("displayTimeUnit", "ms");
+    json.put("histograms", histograms);
+
+    File folder = new File(ODKFileUtils.getOutputFolder(appName), "bridgeTraces");
+    if (!folder.exists() && !folder.mkdirs()) {
+      throw new IOException("unable to make " + folder.getPath());
+    }
+    File file = new File(folder, "trace_" + System.currentTimeMillis() + ".json");
+    ODKFileUtils.mapper.writeValue(file, json);
+    return file;
+  }
+
+  private static Map<String, Object> event(Stage stage, String tid, long from, long to,
+      Map<String, Object> args) {
+    Map<String, Object> event = new HashMap<>();
+    event.put("name", stage.getLabel());
+    event.put("ph", "X");
+    event.put("pid", 1);
+    event.put("tid", tid);
+    event.put("ts", from / 1000);
+    event.put("dur", Math.max(0, to - from) / 1000);
+    event.put("args", args);
+    return event;
+  }
+
+  private static Map<String, Object> describe(Histogram h) {
+    Map<String, Object> values = new HashMap<>();
+    values.put("count", h.getCount());
+    values.put("mean", h.getMean());
+    values.put("p50", h.getPercentile(0.5));
+    values.put("p90", h.getPercentile(0.9));
+    values.put("p99", h.getPercentile(0.99));
+    values.put("max", h.getMax());
+    return values;
+  }
+}
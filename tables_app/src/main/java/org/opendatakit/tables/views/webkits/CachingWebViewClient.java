@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.net.http.SslError;
+import android.os.Build;
+import android.os.Message;
+import android.view.KeyEvent;
+import android.webkit.ClientCertRequest;
+import android.webkit.HttpAuthHandler;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.SslErrorHandler;
+import android.webkit.WebResourceError;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps the {@link WebViewClient} that {@link org.opendatakit.views.ODKWebView}
+ * installs, answering GET requests for the config and system files of an app from
+ * the {@link WebAssetCache}. Everything else, including the requests the cache
+ * does not keep, goes to the wrapped client.
+ */
+class CachingWebViewClient extends WebViewClient {
+
+  private final WebViewClient delegate;
+
+  CachingWebViewClient(WebViewClient delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+    if ("GET".equalsIgnoreCase(request.getMethod())) {
+      File file = WebAssetCache.fileFor(request.getUrl());
+      if (file != null) {
+        try {
+          WebAssetCache.Entry entry = WebAssetCache.getInstance().get(file);
+          if (entry != null) {
+            return respond(entry, request.getRequestHeaders());
+          }
+        } catch (IOException e) {
+          // let the server answer, it reports missing and unreadable files properly
+        }
+      }
+    }
+    return delegate.shouldInterceptRequest(view, request);
+  }
+
+  private static WebResourceResponse respond(WebAssetCache.Entry entry,
+      Map<String, String> requestHeaders) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("ETag", entry.eTag);
+    // the web view checks back with us every time, which is free
+    headers.put("Cache-Control", "no-cache");
+    String ifNoneMatch = null;
+    if (requestHeaders != null) {
+      for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+        if ("If-None-Match".equalsIgnoreCase(header.getKey())) {
+          ifNoneMatch = header.getValue();
+        }
+      }
+    }
+    if (entry.eTag.equals(ifNoneMatch)) {
+      return new WebResourceResponse(entry.mimeType, "UTF-8", 304, "Not Modified", headers,
+          new ByteArrayInputStream(new byte[0]));
+    }
+    return new WebResourceResponse(entry.mimeType, "UTF-8", 200, "OK", headers, entry.open());
+  }
+
+  // everything below is passed on to the wrapped client, onPageStarted and onPageFinished also
+  // tell the view
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+    return delegate.shouldInterceptRequest(view, url);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public boolean shouldOverrideUrlLoading(WebView view, String url) {
+    return delegate.shouldOverrideUrlLoading(view, url);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.N)
+  public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+    return delegate.shouldOverrideUrlLoading(view, request);
+  }
+
+  @Override
+  public void onPageStarted(WebView view, String url, Bitmap favicon) {
+    delegate.onPageStarted(view, url, favicon);
+    if (view instanceof OdkTablesWebView) {
+      ((OdkTablesWebView) view).pageStarted(url);
+    }
+  }
+
+  @Override
+  public void onPageFinished(WebView view, String url) {
+    delegate.onPageFinished(view, url);
+    if (view instanceof OdkTablesWebView) {
+      ((OdkTablesWebView) view).pageFinished(url);
+    }
+  }
+
+  @Override
+  public void onLoadResource(WebView view, String url) {
+    delegate.onLoadResource(view, url);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.M)
+  public void onPageCommitVisible(WebView view, String url) {
+    delegate.onPageCommitVisible(view, url);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void onReceivedError(WebView view, int errorCode, String description,
+      String failingUrl) {
+    delegate.onReceivedError(view, errorCode, description, failingUrl);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.M)
+  public void onReceivedError(WebView view, WebResourceRequest request,
+      WebResourceError error) {
+    delegate.onReceivedError(view, request, error);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.M)
+  public void onReceivedHttpError(WebView view, WebResourceRequest request,
+      WebResourceResponse errorResponse) {
+    delegate.onReceivedHttpError(view, request, errorResponse);
+  }
+
+  @Override
+  public void onFormResubmission(WebView view, Message dontResend, Message resend) {
+    delegate.onFormResubmission(view, dontResend, resend);
+  }
+
+  @Override
+  public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+    delegate.doUpdateVisitedHistory(view, url, isReload);
+  }
+
+  @Override
+  public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
+    delegate.onReceivedSslError(view, handler, error);
+  }
+
+  @Override
+  public void onReceivedClientCertRequest(WebView view, ClientCertRequest request) {
+    delegate.onReceivedClientCertRequest(view, request);
+  }
+
+  @Override
+  public void onReceivedHttpAuthRequest(WebView view, HttpAuthHandler handler, String host,
+      String realm) {
+    delegate.onReceivedHttpAuthRequest(view, handler, host, realm);
+  }
+
+  @Override
+  public boolean shouldOverrideKeyEvent(WebView view, KeyEvent event) {
+    return delegate.shouldOverrideKeyEvent(view, event);
+  }
+
+  @Override
+  public void onUnhandledKeyEvent(WebView view, KeyEvent event) {
+    delegate.onUnhandledKeyEvent(view, event);
+  }
+
+  @Override
+  public void onScaleChanged(WebView view, float oldScale, float newScale) {
+    delegate.onScaleChanged(view, oldScale, newScale);
+  }
+
+  @Override
+  public void onReceivedLoginRequest(WebView view, String realm, String account, String args) {
+    delegate.onReceivedLoginRequest(view, realm, account, args);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.O)
+  public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+    return delegate.onRenderProcessGone(view, detail);
+  }
+}
@@ -18,7 +18,12 @@ package org.opendatakit.tables.views.webkits;
 
 import android.content.Context;
 import android.os.Bundle;
+import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.activities.IOdkTablesActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.data.ViewFragmentType;
 import org.opendatakit.tables.utils.Constants;
@@ -26,6 +31,8 @@ import org.opendatakit.tables.utils.IntentUtil;
 import org.opendatakit.views.ODKWebView;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
 
 /**
  * TODO what does this class do?
@@ -39,6 +46,8 @@ class OdkTables {
   private static final String TAG = OdkTables.class.getSimpleName();
   private Context mActivity;
   private WeakReference<ODKWebView> mWebView;
+  private ResultPageStreams mResultStreams = null;
+  private final PreparedQueryRegistry mPreparedQueries = new PreparedQueryRegistry();
 
   /**
    * Constructs
@@ -141,6 +150,50 @@ class OdkTables {
   }
 
 
+  /**
+   * Prepare an arbitrary query so that it can be run again by its handle
+   *
+   * @param tableId    the table id
+   * @param sqlCommand arbitrary sql command, with SQLite parameters for its values
+   * @return the handle of the query
+   */
+  String helperPrepareQuery(String tableId, String sqlCommand) {
+    if (tableId == null || sqlCommand == null) {
+      throw new IllegalArgumentException("A prepared query needs a table id and a sql command");
+    }
+    return mPreparedQueries.prepare(tableId, sqlCommand);
+  }
+
+  /**
+   * Forget a prepared query
+   *
+   * @param handle the handle returned by {@link #helperPrepareQuery(String, String)}
+   */
+  void helperReleaseQuery(String handle) {
+    mPreparedQueries.release(handle);
+  }
+
+  /**
+   * Set the list view contents for a detail with list view with a prepared query
+   *
+   * @param handle               the handle returned by {@link #helperPrepareQuery(String, String)}
+   * @param sqlSelectionArgsJSON -- JSON.stringify of an Object[] array that can contain integer,
+   *                             numeric, boolean and string types.
+   * @param relativePath         the path relative to the app folder
+   * @return false if the handle is unknown, e.g. because the query was released
+   * @throws IllegalArgumentException if the number of values is wrong
+   */
+  boolean helperSetSubListViewPrepared(String handle, String sqlSelectionArgsJSON,
+      String relativePath) {
+    PreparedQueryRegistry.Statement statement = mPreparedQueries.get(handle);
+    if (statement == null) {
+      return false;
+    }
+    helperUpdateView(statement.tableId, statement.sqlCommand, statement.bind(sqlSelectionArgsJSON),
+        ViewFragmentType.SUB_LIST, relativePath);
+    return true;
+  }
+
   /**
    * Send a bundle to update a view without opening a new activity, using an abtirary query.
    *
@@ -153,11 +206,26 @@ class OdkTables {
    */
   private void helperUpdateView(String tableId, String sqlCommand, String sqlSelectionArgsJSON,
       ViewFragmentType viewType, String relativePath) {
+    helperUpdateView(tableId, sqlCommand, new BindArgs(sqlSelectionArgsJSON), viewType,
+        relativePath);
+  }
+
+  /**
+   * Send a bundle to update a view without opening a new activity, using an abtirary query.
+   *
+   * @param tableId      the table id
+   * @param sqlCommand   the arbitrary sql query to run
+   * @param bindArgs     the values to bind to the query
+   * @param viewType     Must be ViewFragmentType.SUB_LIST right now
+   * @param relativePath the path relative to the app folder
+   * @throws IllegalArgumentException if viewType is not a sub view
+   */
+  private void helperUpdateView(String tableId, String sqlCommand, BindArgs bindArgs,
+      ViewFragmentType viewType, String relativePath) {
     if (viewType != ViewFragmentType.SUB_LIST) {
       throw new IllegalArgumentException("Cannot use this method to update a view that doesn't "
           + "support updates. Currently only DetailWithListView's Sub List supports this action");
     }
-    BindArgs bindArgs = new BindArgs(sqlSelectionArgsJSON);
     final Bundle bundle = new Bundle();
 
     IntentUtil.addArbitraryQueryToBundle(bundle, sqlCommand, bindArgs);
@@ -180,4 +248,121 @@ class OdkTables {
     }
   }
 
+  /**
+   * Start reading the rows of the web view's query a page at a time
+   *
+   * @param pageSize      the number of rows per page, or 0 for the default
+   * @param prefetchPages the number of pages to read ahead of the view, or 0 for the default
+   * @return the id of the stream
+   * @throws IllegalArgumentException if the view has no query that can be read in pages
+   */
+  String helperOpenViewStream(int pageSize, int prefetchPages) {
+    ODKWebView webView = mWebView.get();
+    if (webView == null || !(mActivity instanceof IOdkTablesActivity)) {
+      throw new IllegalArgumentException("Cannot read the rows of a view without an activity");
+    }
+    IOdkTablesActivity activity = (IOdkTablesActivity) mActivity;
+    return getResultStreams(activity)
+        .open(activity.getViewQuery(webView.getContainerFragmentID()), pageSize, prefetchPages);
+  }
+
+  /**
+   * Take the next page of a stream
+   *
+   * @param streamId the id returned by {@link #helperOpenViewStream(int, int)}
+   * @return the page as JSON, or null if there is no page ready
+   */
+  String helperTakeResultPage(String streamId) {
+    ResultPageStreams streams;
+    synchronized (this) {
+      streams = mResultStreams;
+    }
+    return streams == null ? null : streams.take(streamId);
+  }
+
+  /**
+   * Stop reading a stream
+   *
+   * @param streamId the id returned by {@link #helperOpenViewStream(int, int)}
+   */
+  void helperCloseResultStream(String streamId) {
+    ResultPageStreams streams;
+    synchronized (this) {
+      streams = mResultStreams;
+    }
+    if (streams != null) {
+      streams.close(streamId);
+    }
+  }
+
+  /**
+   * Stop reading every stream, e.g. because the web view has gone on to another page
+   */
+  void closeResultStreams() {
+    ResultPageStreams streams;
+    synchronized (this) {
+      streams = mResultStreams;
+    }
+    if (streams != null) {
+      streams.closeAll();
+    }
+  }
+
+  /**
+   * Record how long the web view took to parse the response it last took and to run its
+   * callback
+   *
+   * @param length         the length of the response
+   * @param parseMillis    the time to parse it
+   * @param callbackMillis the time to run the callback
+   */
+  void helperTraceResponseParsed(int length, double parseMillis, double callbackMillis) {
+    ODKWebView webView = mWebView.get();
+    if (webView != null) {
+      BridgeTrace.responseParsed(webView.getContainerFragmentID(), length, parseMillis,
+          callbackMillis);
+    }
+  }
+
+  private synchronized ResultPageStreams getResultStreams(final IOdkTablesActivity activity) {
+    if (mResultStreams == null) {
+      mResultStreams = new ResultPageStreams(activity, activity.getAppName(),
+          new ResultPageStreams.Source() {
+            @Override
+            public UserDbInterface getDatabase() {
+              return activity.getDatabase();
+            }
+
+            @Override
+            public void extendPageMetadata(UserDbInterface dbInterface, DbHandle db,
+                UserTable page, List<String> elementKeys, Map<String, Object> metadata)
+                throws ServicesAvailabilityException {
+              TableDataExecutorProcessor
+                  .putColorMetadata(dbInterface, db, page, elementKeys, metadata);
+            }
+          }, new ResultPageStreams.Listener() {
+            @Override
+            public void pageAvailable(final String streamId) {
+              final ODKWebView webView = mWebView.get();
+              if (webView == null) {
+                closeResultStreams();
+                return;
+              }
+              webView.post(new Runnable() {
+                @Override
+                public void run() {
+                  if (isInactive()) {
+                    closeResultStreams();
+                    return;
+                  }
+                  webView.evaluateJavascript(
+                      "odkTables.resultPageAvailable(\"" + streamId + "\");", null);
+                }
+              });
+            }
+          });
+    }
+    return mResultStreams;
+  }
+
 }
@@ -88,4 +88,106 @@ class OdkTablesIf {
         .helperSetSubListView(tableId, relativePath, sqlCommand, sqlSelectionArgsJSON);
     return true;
   }
+
+  /**
+   * Prepare an arbitrary query so that later calls need only send its handle and values.
+   * Preparing the same query again returns the same handle.
+   *
+   * @param tableId    the tableId of the table the query reads
+   * @param sqlCommand the sql command to execute, with SQLite parameters for its values
+   * @return the handle of the query, or null if the web view is inactive
+   */
+  @android.webkit.JavascriptInterface
+  public String prepareQuery(String tableId, String sqlCommand) {
+    if (isInactive())
+      return null;
+    return weakControl.get().helperPrepareQuery(tableId, sqlCommand);
+  }
+
+  /**
+   * Forget a prepared query
+   *
+   * @param handle the handle returned by prepareQuery
+   */
+  @android.webkit.JavascriptInterface
+  public void releaseQuery(String handle) {
+    if (isInactive())
+      return;
+    weakControl.get().helperReleaseQuery(handle);
+  }
+
+  /**
+   * Set list view portion of a DetailWithList view to the rows of a prepared query.
+   *
+   * @param handle               the handle returned by prepareQuery
+   * @param sqlSelectionArgsJSON -- JSON.stringify of an Object[] array that can contain integer,
+   *                             numeric, boolean and string types, one for each parameter
+   *                             number of the query.
+   * @param relativePath         the name of the file specifying the list view, relative to the app
+   *                             folder.
+   * @return true if the open succeeded, false if the handle is unknown
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setSubListViewPrepared(String handle, String sqlSelectionArgsJSON,
+      String relativePath) {
+    if (isInactive())
+      return false;
+    return weakControl.get()
+        .helperSetSubListViewPrepared(handle, sqlSelectionArgsJSON, relativePath);
+  }
+
+  /**
+   * Start reading the rows of this view's query a page at a time. The view is told
+   * with odkTables.resultPageAvailable(streamId) when a page is ready to take.
+   *
+   * @param pageSize      the number of rows per page, or 0 for the default
+   * @param prefetchPages the number of pages to read ahead of the view, or 0 for the default
+   * @return the id of the stream, or null if the web view is inactive
+   */
+  @android.webkit.JavascriptInterface
+  public String openViewStream(int pageSize, int prefetchPages) {
+    if (isInactive())
+      return null;
+    return weakControl.get().helperOpenViewStream(pageSize, prefetchPages);
+  }
+
+  /**
+   * Take the next page of a stream, letting it read another one
+   *
+   * @param streamId the id returned by openViewStream
+   * @return the page as JSON, or null if no page is ready
+   */
+  @android.webkit.JavascriptInterface
+  public String takeResultPage(String streamId) {
+    if (isInactive())
+      return null;
+    return weakControl.get().helperTakeResultPage(streamId);
+  }
+
+  /**
+   * Stop reading a stream and drop its pages
+   *
+   * @param streamId the id returned by openViewStream
+   */
+  @android.webkit.JavascriptInterface
+  public void closeResultStream(String streamId) {
+    if (isInactive())
+      return;
+    weakControl.get().helperCloseResultStream(streamId);
+  }
+
+  /**
+   * Report how long odkData took to parse the response it last took and to run its
+   * callback, for the web view timings
+   *
+   * @param length         the length of the response
+   * @param parseMillis    the time to parse it
+   * @param callbackMillis the time to run the callback
+   */
+  @android.webkit.JavascriptInterface
+  public void traceResponseParsed(int length, double parseMillis, double callbackMillis) {
+    if (isInactive())
+      return;
+    weakControl.get().helperTraceResponseParsed(length, parseMillis, callbackMillis);
+  }
 }
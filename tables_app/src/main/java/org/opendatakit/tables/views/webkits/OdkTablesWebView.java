@@ -2,7 +2,9 @@ package org.opendatakit.tables.views.webkits;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.webkit.WebViewClient;
 import org.opendatakit.tables.activities.IOdkTablesActivity;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.views.ODKWebView;
@@ -14,6 +16,19 @@ public class OdkTablesWebView extends ODKWebView {
    // Used for logging
    private static final String TAG = OdkTablesWebView.class.getSimpleName();
 
+   /**
+    * Told when a page has finished loading
+    */
+   public interface PageListener {
+      /**
+       * @param view the web view
+       * @param url  the url of the page
+       */
+      void onPageFinished(OdkTablesWebView view, String url);
+   }
+
+   private PageListener pageListener = null;
+
    /**
     * IGNORE THE WARNINGS
     * This has to be a class property, or it will get garbage collected while the javascript is
@@ -44,6 +59,74 @@ public class OdkTablesWebView extends ODKWebView {
       tables = new OdkTables(context, this);
       addJavascriptInterface(tables.getJavascriptInterfaceWithWeakReference(),
           Constants.JavaScriptHandles.ODK_TABLES_IF);
+      // in case the super constructor left the default client in place
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+          && !(getWebViewClient() instanceof CachingWebViewClient)) {
+         setWebViewClient(getWebViewClient());
+      }
+   }
+
+   /**
+    * Serves the config and system files of the app from the {@link WebAssetCache}
+    * before handing requests to the client ODKWebView installs. Called from the
+    * super constructor, so it must not use any field of this class.
+    *
+    * @param client the client to wrap
+    */
+   @Override public void setWebViewClient(WebViewClient client) {
+      super.setWebViewClient(client == null || client instanceof CachingWebViewClient ?
+          client :
+          new CachingWebViewClient(client));
+   }
+
+   /**
+    * @param listener told when a page has finished loading, or null to stop telling
+    */
+   public void setPageListener(PageListener listener) {
+      pageListener = listener;
+   }
+
+   /**
+    * Called by the {@link CachingWebViewClient}, stops the result streams of the page
+    * being left
+    */
+   void pageStarted(String url) {
+      tables.closeResultStreams();
+   }
+
+   /**
+    * Called by the {@link CachingWebViewClient}
+    */
+   void pageFinished(String url) {
+      if (pageListener != null) {
+         pageListener.onPageFinished(this, url);
+      }
+   }
+
+   /**
+    * Starts loading a page before the view is shown, e.g. while the activity is still
+    * initializing. A later {@link #reloadPage()} of the same url does not load it again.
+    *
+    * @param url the url of the page
+    */
+   public void preloadPage(String url) {
+      log.i(TAG, "preloadPage: " + url);
+      loadPageOnUiThread(url, getContainerFragmentID());
+   }
+
+   @Override public void destroy() {
+      tables.closeResultStreams();
+      super.destroy();
+   }
+
+   /**
+    * Stops the result streams of every web view of an activity, including pooled views
+    * that are not destroyed with it. Call from the activity's onDestroy.
+    *
+    * @param activity the activity
+    */
+   public static void closeResultStreams(IOdkTablesActivity activity) {
+      ResultPageStreams.closeAllOf(activity);
    }
 
    @Override public boolean hasPageFramework() {
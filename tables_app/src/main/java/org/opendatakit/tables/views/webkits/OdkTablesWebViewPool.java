@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Color;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.View;
+import android.view.ViewGroup;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.webkitserver.utilities.UrlUtils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps a few {@link OdkTablesWebView}s ready for the list, detail and map list
+ * fragments of an activity, so that switching between views does not pay for
+ * building a new WebView every time.
+ * <p>
+ * The pool belongs to the activity rather than the application: a web view binds
+ * its javascript interfaces to the activity it was made with, so it cannot be
+ * handed to another one. Spare views are made while the main thread is idle, and
+ * each one loads a blank page that prefetches the common ODK scripts, so that the
+ * WebView's renderer is running and the scripts are in its cache before the
+ * first real page asks for them. A returned view is emptied and paused before it
+ * is lent again. The number of spare views depends on the device's memory class.
+ */
+public class OdkTablesWebViewPool {
+
+  /**
+   * Implemented by activities that lend pooled web views to their fragments
+   */
+  public interface Provider {
+    /**
+     * @return the activity's pool, or null if it has been destroyed
+     */
+    OdkTablesWebViewPool getWebViewPool();
+  }
+
+  // Used for logging
+  private static final String TAG = OdkTablesWebViewPool.class.getSimpleName();
+
+  /**
+   * The megabytes of memory class for each spare view
+   */
+  private static final int MEMORY_CLASS_PER_VIEW = 64;
+  /**
+   * No screen shows more than two web views, so a third spare covers a switch
+   * between two screens that both have two
+   */
+  private static final int MAX_SPARE_VIEWS = 3;
+  /**
+   * The scripts of the ODK framework that nearly every page loads, relative to the
+   * app folder
+   */
+  private static final String[] COMMON_SCRIPTS = { "system/js/odkCommon.js",
+      "system/js/odkData.js", "system/tables/js/odkTables.js" };
+
+  private final Activity activity;
+  private final String appName;
+  private final int capacity;
+  private final Deque<OdkTablesWebView> spares = new ArrayDeque<>();
+  private boolean warming = false;
+  private boolean destroyed = false;
+
+  /**
+   * @param activity the activity the web views are made with, must implement
+   *                 {@link org.opendatakit.tables.activities.IOdkTablesActivity}
+   * @param appName  the app name
+   */
+  public OdkTablesWebViewPool(Activity activity, String appName) {
+    this.activity = activity;
+    this.appName = appName;
+    ActivityManager activityManager = (ActivityManager) activity
+        .getSystemService(Context.ACTIVITY_SERVICE);
+    int memoryClass = activityManager == null ? 0 : activityManager.getMemoryClass();
+    this.capacity = Math.max(1, Math.min(MAX_SPARE_VIEWS, memoryClass / MEMORY_CLASS_PER_VIEW));
+  }
+
+  /**
+   * Fills the pool one view at a time whenever the main thread is idle. Must be
+   * called on the main thread.
+   */
+  public void prewarm() {
+    if (warming || destroyed || spares.size() >= capacity) {
+      return;
+    }
+    warming = true;
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override
+      public boolean queueIdle() {
+        if (destroyed || spares.size() >= capacity) {
+          warming = false;
+          return false;
+        }
+        OdkTablesWebView view = newWebView();
+        spares.push(view);
+        WebLogger.getLogger(appName).d(TAG, "[prewarm] " + spares.size() + " of " + capacity);
+        warming = spares.size() < capacity;
+        return warming;
+      }
+    });
+  }
+
+  /**
+   * Lends a web view, made now if there is no spare one. The view has the id
+   * {@link R.id#webkit}, is hidden and has no parent.
+   *
+   * @return a web view that has no page loaded
+   */
+  public OdkTablesWebView borrow() {
+    OdkTablesWebView view = spares.poll();
+    if (view == null) {
+      WebLogger.getLogger(appName).d(TAG, "[borrow] no spare web view, making one");
+      view = newWebView();
+    } else {
+      // the blank page is loaded by now, forget it so back navigation starts empty
+      view.clearHistory();
+      view.onResume();
+    }
+    // the page may be the same as the one this view last showed
+    view.setForceLoadDuringReload();
+    prewarm();
+    return view;
+  }
+
+  /**
+   * Takes back a web view from a fragment whose view is being destroyed. The page is
+   * unloaded so that its scripts stop running. A view beyond the pool's capacity is
+   * destroyed.
+   *
+   * @param view the view to take back
+   */
+  public void release(OdkTablesWebView view) {
+    if (view.getParent() instanceof ViewGroup) {
+      ((ViewGroup) view.getParent()).removeView(view);
+    }
+    if (destroyed || spares.size() >= capacity) {
+      view.destroy();
+      return;
+    }
+    view.stopLoading();
+    view.setContainerFragmentID(null);
+    reset(view);
+    view.loadUrl("about:blank");
+    view.onPause();
+    spares.push(view);
+  }
+
+  /**
+   * Destroys the spare views, e.g. when the system is low on memory. They are made
+   * again the next time a view is borrowed.
+   */
+  public void trim() {
+    OdkTablesWebView view;
+    while ((view = spares.poll()) != null) {
+      view.destroy();
+    }
+  }
+
+  /**
+   * Destroys the spare views and stops the pool taking views back. Call from the
+   * activity's onDestroy.
+   */
+  public void destroy() {
+    destroyed = true;
+    trim();
+  }
+
+  private OdkTablesWebView newWebView() {
+    OdkTablesWebView view = new OdkTablesWebView(activity, null);
+    reset(view);
+    view.loadDataWithBaseURL(UrlUtils.getAsWebViewUri(appName, "system/index.html"),
+        warmUpPage(), "text/html", "UTF-8", null);
+    return view;
+  }
+
+  /**
+   * Puts back the attributes the fragments' layout would give a new web view
+   */
+  private static void reset(OdkTablesWebView view) {
+    view.setId(R.id.webkit);
+    view.setBackgroundColor(Color.BLACK);
+    view.setVisibility(View.GONE);
+    view.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+        ViewGroup.LayoutParams.MATCH_PARENT));
+  }
+
+  private String warmUpPage() {
+    StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head>");
+    for (String script : COMMON_SCRIPTS) {
+      page.append("<link rel=\"prefetch\" href=\"")
+          .append(UrlUtils.getAsWebViewUri(appName, script)).append("\">");
+    }
+    return page.append("</head><body></body></html>").toString();
+  }
+}
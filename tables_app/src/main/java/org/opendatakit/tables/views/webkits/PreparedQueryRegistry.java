@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import org.opendatakit.database.queries.BindArgs;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The statements a web view has prepared with odkTables.prepareQuery, so that it can
+ * run them again by handle and bind values rather than sending the sql each time.
+ * <p>
+ * Preparing the same statement twice gives the same handle. Each statement keeps the
+ * number of its parameters, so that binding the wrong number of values fails in the
+ * view rather than in the database, and the values it was last bound with, already
+ * parsed, as a view tends to run a statement with the same values again. The
+ * registry holds at most {@link #MAX_STATEMENTS}; the least recently used statement
+ * is dropped to make room and its handle is no longer valid.
+ */
+class PreparedQueryRegistry {
+
+  /**
+   * The most statements a web view can have prepared at once
+   */
+  static final int MAX_STATEMENTS = 64;
+
+  /**
+   * A prepared statement
+   */
+  static final class Statement {
+    final String tableId;
+    final String sqlCommand;
+    final int parameterCount;
+    private String lastArgsJSON = null;
+    private BindArgs lastArgs = null;
+
+    private Statement(String tableId, String sqlCommand) {
+      this.tableId = tableId;
+      this.sqlCommand = sqlCommand;
+      this.parameterCount = countParameters(sqlCommand);
+    }
+
+    /**
+     * @param sqlSelectionArgsJSON JSON.stringify of an Object[] array of the values, or null
+     *                             if there are none
+     * @return the values, parsed
+     * @throws IllegalArgumentException if there is not one value for each parameter
+     */
+    synchronized BindArgs bind(String sqlSelectionArgsJSON) {
+      if (lastArgs != null && (sqlSelectionArgsJSON == null ?
+          lastArgsJSON == null :
+          sqlSelectionArgsJSON.equals(lastArgsJSON))) {
+        return lastArgs;
+      }
+      BindArgs args = new BindArgs(sqlSelectionArgsJSON);
+      Object[] values = args.bindArgs;
+      int count = values == null ? 0 : values.length;
+      if (count != parameterCount) {
+        throw new IllegalArgumentException(
+            "Statement has " + parameterCount + " parameters but " + count + " values were given");
+      }
+      lastArgsJSON = sqlSelectionArgsJSON;
+      lastArgs = args;
+      return args;
+    }
+  }
+
+  private final Map<String, Statement> statements = new LinkedHashMap<String, Statement>(16,
+      0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+      if (size() > MAX_STATEMENTS) {
+        handles.remove(key(eldest.getValue().tableId, eldest.getValue().sqlCommand));
+        return true;
+      }
+      return false;
+    }
+  };
+  private final Map<String, String> handles = new HashMap<>();
+  private int nextHandle = 1;
+
+  /**
+   * @param tableId    the table the statement reads
+   * @param sqlCommand the statement, with SQLite parameters for its values
+   * @return the statement's handle
+   */
+  synchronized String prepare(String tableId, String sqlCommand) {
+    String key = key(tableId, sqlCommand);
+    String handle = handles.get(key);
+    if (handle != null && statements.get(handle) != null) {
+      return handle;
+    }
+    handle = Integer.toString(nextHandle++);
+    handles.put(key, handle);
+    statements.put(handle, new Statement(tableId, sqlCommand));
+    return handle;
+  }
+
+  /**
+   * @param handle a handle returned by {@link #prepare(String, String)}
+   * @return the statement, or null if the handle is unknown or has been released
+   */
+  synchronized Statement get(String handle) {
+    return handle == null ? null : statements.get(handle);
+  }
+
+  /**
+   * Forgets a statement
+   *
+   * @param handle a handle returned by {@link #prepare(String, String)}
+   */
+  synchronized void release(String handle) {
+    Statement statement = handle == null ? null : statements.remove(handle);
+    if (statement != null) {
+      handles.remove(key(statement.tableId, statement.sqlCommand));
+    }
+  }
+
+  private static String key(String tableId, String sqlCommand) {
+    return tableId + '\u0000' + sqlCommand;
+  }
+
+  /**
+   * Counts the parameters of a statement the way SQLite numbers them, ignoring any in a
+   * string literal, a quoted name or a comment. A "?" takes the number after the
+   * largest so far and "?NNN" takes NNN. A ":name", "@name" or "$name" takes the number
+   * after the largest the first time it appears and the same number after that. The
+   * count is the largest number, as one value is bound for each number up to it.
+   */
+  static int countParameters(String sql) {
+    int count = 0;
+    Map<String, Integer> named = new HashMap<>();
+    int i = 0;
+    int length = sql.length();
+    while (i < length) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"' || c == '`') {
+        // quotes are escaped by doubling them, which this reads as two quoted strings
+        int end = sql.indexOf(c, i + 1);
+        i = end < 0 ? length : end + 1;
+      } else if (c == '[') {
+        int end = sql.indexOf(']', i + 1);
+        i = end < 0 ? length : end + 1;
+      } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+        int end = sql.indexOf('\n', i + 2);
+        i = end < 0 ? length : end + 1;
+      } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        i = end < 0 ? length : end + 2;
+      } else if (c == '?') {
+        int end = i + 1;
+        while (end < length && Character.isDigit(sql.charAt(end))) {
+          end++;
+        }
+        if (end == i + 1) {
+          count++;
+        } else {
+          count = Math.max(count, Integer.parseInt(sql.substring(i + 1, end)));
+        }
+        i = end;
+      } else if ((c == ':' || c == '@' || c == '$') && i + 1 < length
+          && isNameChar(sql.charAt(i + 1))) {
+        int end = i + 1;
+        while (end < length && isNameChar(sql.charAt(end))) {
+          end++;
+        }
+        // the same name is the same parameter, the prefix is part of the name
+        String name = sql.substring(i, end);
+        if (!named.containsKey(name)) {
+          named.put(name, ++count);
+        }
+        i = end;
+      } else if (isNameChar(c)) {
+        // skip the rest of a word, so that e.g. a "$" in a name is not read as a parameter
+        while (i < length && (isNameChar(sql.charAt(i)) || sql.charAt(i) == '$')) {
+          i++;
+        }
+      } else {
+        i++;
+      }
+    }
+    return count;
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c > 0x7f;
+  }
+}
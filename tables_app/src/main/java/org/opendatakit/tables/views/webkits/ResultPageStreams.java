@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.ArbitraryQuery;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.utils.QueryPageUtil;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rows of a web view's query, handed to the view a page at a time, so that a
+ * large list view can show its first rows as soon as the first page has been read
+ * rather than after the whole table has been read, colored and serialized.
+ * <p>
+ * Each stream reads its pages in the background with a limit and offset, and tells
+ * the view when a page is ready; the view then takes it. At most a few pages are
+ * read ahead of what the view has taken, so a view that stops asking stops the
+ * reading. The pages of every stream are read on one small shared pool, and a
+ * stream gives its thread back whenever it is that far ahead, so a paused stream
+ * does not hold up the others. A stream ends after its last page, when the view
+ * closes it, when the view goes on to another page, or when the activity that owns
+ * it is destroyed, see {@link #closeAllOf(Object)}.
+ * <p>
+ * A page is a JSON object with the page's index and offset, whether it is the last
+ * one, its rows in "data" as arrays of raw database values, and "metadata" with the
+ * elementKeyMap and the color rule results of the page's rows, as odkData gives them
+ * for a whole query. A page with an "error" ends the stream.
+ */
+class ResultPageStreams {
+
+  // Used for logging
+  private static final String TAG = ResultPageStreams.class.getSimpleName();
+
+  /**
+   * The number of rows per page when the view does not say
+   */
+  static final int DEFAULT_PAGE_SIZE = 100;
+  /**
+   * The most rows per page
+   */
+  static final int MAX_PAGE_SIZE = 2000;
+  /**
+   * The number of pages read ahead when the view does not say
+   */
+  static final int DEFAULT_PREFETCH_PAGES = 2;
+  /**
+   * The most pages read ahead
+   */
+  static final int MAX_PREFETCH_PAGES = 8;
+  /**
+   * The most pages read at the same time, across every stream
+   */
+  private static final int MAX_READERS = 2;
+  private static final long READER_KEEP_ALIVE_SECONDS = 30;
+
+  /**
+   * The metadata columns of a page, after the user defined columns
+   */
+  private static final List<String> PAGE_METADATA = Arrays
+      .asList(DataTableColumns.ID, DataTableColumns.ROW_ETAG, DataTableColumns.SYNC_STATE,
+          DataTableColumns.CONFLICT_TYPE, DataTableColumns.DEFAULT_ACCESS,
+          DataTableColumns.ROW_OWNER, DataTableColumns.GROUP_READ_ONLY,
+          DataTableColumns.GROUP_MODIFY, DataTableColumns.GROUP_PRIVILEGED,
+          DataTableColumns.FORM_ID, DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_TYPE,
+          DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_CREATOR);
+
+  private static final ThreadPoolExecutor READERS = new ThreadPoolExecutor(MAX_READERS,
+      MAX_READERS, READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>());
+
+  static {
+    READERS.allowCoreThreadTimeOut(true);
+  }
+
+  // the streams of each activity, so they can all be stopped when it is destroyed
+  private static final Map<Object, List<ResultPageStreams>> OWNED = new WeakHashMap<>();
+
+  /**
+   * Told on a background thread when a stream has a page ready
+   */
+  interface Listener {
+    /**
+     * @param streamId the stream
+     */
+    void pageAvailable(String streamId);
+  }
+
+  /**
+   * The database and the elements of the page JSON that depend on the activity
+   */
+  interface Source {
+    /**
+     * @return the database interface to use
+     */
+    UserDbInterface getDatabase();
+
+    /**
+     * @param dbInterface the database interface
+     * @param db          an open database handle
+     * @param page        a page of rows
+     * @param elementKeys the columns of the page
+     * @param metadata    where to put the color rule results of the page
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    void extendPageMetadata(UserDbInterface dbInterface, DbHandle db, UserTable page,
+        List<String> elementKeys, Map<String, Object> metadata)
+        throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Reads pages until it is prefetchPages ahead of the view, then gives its thread
+   * back; taking a page schedules it again
+   */
+  private final class Stream implements Runnable {
+    private final String id;
+    private final ResumableQuery query;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+    private boolean cancelled = false;
+    private boolean done = false;
+    private boolean scheduled = false;
+    // only used by the reader, one run at a time
+    private OrderedColumns orderedDefns = null;
+    private List<String> elementKeys = null;
+    private int index = 0;
+    private int offset = 0;
+
+    Stream(String id, ResumableQuery query, int pageSize, int prefetchPages) {
+      this.id = id;
+      this.query = query;
+      this.pageSize = pageSize;
+      this.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * Puts the stream on the pool if it has room for another page and is not there yet
+     */
+    synchronized void schedule() {
+      if (scheduled || cancelled || done || ready.size() >= prefetchPages) {
+        return;
+      }
+      scheduled = true;
+      READERS.execute(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        synchronized (this) {
+          if (cancelled || done || ready.size() >= prefetchPages) {
+            scheduled = false;
+            if (cancelled || done) {
+              WebLogger.getLogger(appName).d(TAG, "[run] stream " + id + " stopped after "
+                  + offset + " rows");
+            }
+            return;
+          }
+        }
+        boolean last;
+        String json;
+        UserDbInterface dbInterface = source.getDatabase();
+        DbHandle db = null;
+        try {
+          if (dbInterface == null) {
+            throw new IllegalStateException("database is not available");
+          }
+          db = dbInterface.openDatabase(appName);
+          if (orderedDefns == null) {
+            orderedDefns = dbInterface.getUserDefinedColumns(appName, db, query.getTableId());
+          }
+          UserTable page = QueryPageUtil
+              .queryPage(dbInterface, appName, db, orderedDefns, query, pageSize, offset);
+          int rows = page == null ? 0 : page.getNumberOfRows();
+          if (elementKeys == null && rows > 0) {
+            elementKeys = QueryPageUtil.getPageColumns(Collections.<String>emptyList(),
+                orderedDefns, PAGE_METADATA, page);
+          }
+          last = rows < pageSize;
+          json = pageJSON(dbInterface, db, page, elementKeys, index, offset, last);
+          offset += rows;
+          index++;
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          last = true;
+          json = errorJSON(e);
+        } finally {
+          if (db != null) {
+            try {
+              dbInterface.closeDatabase(appName, db);
+            } catch (ServicesAvailabilityException e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+            }
+          }
+        }
+        synchronized (this) {
+          if (cancelled) {
+            continue;
+          }
+          ready.addLast(json);
+          done = last;
+        }
+        listener.pageAvailable(id);
+      }
+    }
+
+    String take() {
+      String json;
+      synchronized (this) {
+        json = ready.pollFirst();
+      }
+      if (json != null) {
+        schedule();
+      }
+      return json;
+    }
+
+    synchronized boolean isFinished() {
+      return done && ready.isEmpty();
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      ready.clear();
+    }
+  }
+
+  private final String appName;
+  private final Source source;
+  private final Listener listener;
+  private final Map<String, Stream> streams = new HashMap<>();
+  private int nextId = 1;
+
+  /**
+   * @param owner    the activity the streams belong to, see {@link #closeAllOf(Object)}
+   * @param appName  the app name
+   * @param source   the database and the color rules
+   * @param listener told when a page is ready
+   */
+  ResultPageStreams(Object owner, String appName, Source source, Listener listener) {
+    this.appName = appName;
+    this.source = source;
+    this.listener = listener;
+    synchronized (OWNED) {
+      List<ResultPageStreams> owned = OWNED.get(owner);
+      if (owned == null) {
+        owned = new ArrayList<>();
+        OWNED.put(owner, owned);
+      }
+      owned.add(this);
+    }
+  }
+
+  /**
+   * Stops every stream of an activity's web views
+   *
+   * @param owner the activity, as given to the constructor
+   */
+  static void closeAllOf(Object owner) {
+    List<ResultPageStreams> owned;
+    synchronized (OWNED) {
+      owned = OWNED.remove(owner);
+    }
+    if (owned != null) {
+      for (ResultPageStreams streams : owned) {
+        streams.closeAll();
+      }
+    }
+  }
+
+  /**
+   * Starts reading the rows of a query
+   *
+   * @param query         the query, a simple or arbitrary query
+   * @param pageSize      the number of rows per page, or 0 for {@link #DEFAULT_PAGE_SIZE}
+   * @param prefetchPages the number of pages to read ahead, or 0 for
+   *                      {@link #DEFAULT_PREFETCH_PAGES}
+   * @return the stream's id
+   * @throws IllegalArgumentException if the query cannot be read a page at a time
+   */
+  synchronized String open(ResumableQuery query, int pageSize, int prefetchPages) {
+    if (!(query instanceof ArbitraryQuery) && !(query instanceof SimpleQuery)) {
+      throw new IllegalArgumentException("The view has no query that can be read in pages");
+    }
+    String id = Integer.toString(nextId++);
+    Stream stream = new Stream(id, query,
+        pageSize <= 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE),
+        prefetchPages <= 0 ?
+            DEFAULT_PREFETCH_PAGES :
+            Math.min(prefetchPages, MAX_PREFETCH_PAGES));
+    streams.put(id, stream);
+    stream.schedule();
+    return id;
+  }
+
+  /**
+   * Takes the next page of a stream, letting the stream read another one
+   *
+   * @param id the stream's id
+   * @return the page JSON, or null if no page is ready or the stream is unknown
+   */
+  String take(String id) {
+    Stream stream;
+    synchronized (this) {
+      stream = streams.get(id);
+    }
+    if (stream == null) {
+      return null;
+    }
+    String json = stream.take();
+    if (stream.isFinished()) {
+      synchronized (this) {
+        streams.remove(id);
+      }
+    }
+    return json;
+  }
+
+  /**
+   * Stops a stream and drops its pages
+   *
+   * @param id the stream's id
+   */
+  void close(String id) {
+    Stream stream;
+    synchronized (this) {
+      stream = streams.remove(id);
+    }
+    if (stream != null) {
+      stream.cancel();
+    }
+  }
+
+  /**
+   * Stops every stream, e.g. when the view goes on to another page
+   */
+  void closeAll() {
+    List<Stream> open;
+    synchronized (this) {
+      open = new ArrayList<>(streams.values());
+      streams.clear();
+    }
+    for (Stream stream : open) {
+      stream.cancel();
+    }
+  }
+
+  private String pageJSON(UserDbInterface dbInterface, DbHandle db, UserTable page,
+      List<String> elementKeys, int index, int offset, boolean last) throws Exception {
+    List<String> keys = elementKeys == null ? new ArrayList<String>() : elementKeys;
+    int rows = page == null ? 0 : page.getNumberOfRows();
+    List<Object[]> data = new ArrayList<>(rows);
+    for (int i = 0; i < rows; i++) {
+      TypedRow row = page.getRowAtIndex(i);
+      Object[] values = new Object[keys.size()];
+      for (int j = 0; j < values.length; j++) {
+        values[j] = row.getRawStringByKey(keys.get(j));
+      }
+      data.add(values);
+    }
+    Map<String, Integer> elementKeyMap = new LinkedHashMap<>();
+    for (int j = 0; j < keys.size(); j++) {
+      elementKeyMap.put(keys.get(j), j);
+    }
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("elementKeyMap", elementKeyMap);
+    if (page != null) {
+      // lets odkData apply the table's cached metadata to the page
+      metadata.put("tableId", page.getTableId());
+    }
+    if (rows > 0) {
+      source.extendPageMetadata(dbInterface, db, page, keys, metadata);
+    }
+    Map<String, Object> json = new HashMap<>();
+    json.put("index", index);
+    json.put("offset", offset);
+    json.put("last", last);
+    json.put("data", data);
+    json.put("metadata", metadata);
+    return ODKFileUtils.mapper.writeValueAsString(json);
+  }
+
+  private static String errorJSON(Exception e) {
+    Map<String, Object> json = new HashMap<>();
+    json.put("last", true);
+    json.put("error", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+    try {
+      return ODKFileUtils.mapper.writeValueAsString(json);
+    } catch (Exception ignored) {
+      return "{\"last\":true,\"error\":\"unable to read the page\"}";
+    }
+  }
+}
@@ -46,6 +46,7 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
   private static final String STATUS_COLORS = "statusColors";
   private static final String COLUMN_COLORS = "columnColors";
   private static final String MAP_INDEX = "mapIndex";
+  private static final String DISTANCE_ORDER = "distanceOrder";
   private IOdkTablesActivity mActivity;
 
   /**
@@ -104,25 +105,79 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
     }
   }
 
-  @Override
-  protected void extendQueryMetadata(UserDbInterface dbInterface, DbHandle db,
-      List<KeyValueStoreEntry> entries, UserTable userTable, Map<String, Object> metadata) {
-    // TODO: construct color rule data here...
+  /**
+   * Puts the rows the table, status and column color rules apply to in the metadata,
+   * for the whole result of a query or for a page of it. The lists are put in first and
+   * filled in as the rules are applied, so if the database goes down part way the
+   * metadata keeps the colors found until then.
+   *
+   * @param dbInterface the database interface to use
+   * @param db          an open database handle
+   * @param userTable   the rows
+   * @param elementKeys the columns to apply the column color rules of
+   * @param metadata    where to put the colors
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  static void putColorMetadata(UserDbInterface dbInterface, DbHandle db, UserTable userTable,
+      Collection<String> elementKeys, Map<String, Object> metadata)
+      throws ServicesAvailabilityException {
     String[] adminCols = ADMIN_COLUMNS.toArray(new String[ADMIN_COLUMNS.size()]);
 
     Collection<RowColorObject> rowColors = new ArrayList<>();
     Collection<RowColorObject> statusColors = new ArrayList<>();
     Map<String, ArrayList<RowColorObject>> colColors = new HashMap<>();
+    metadata.put(ROW_COLORS, rowColors);
+    metadata.put(STATUS_COLORS, statusColors);
+    metadata.put(COLUMN_COLORS, colColors);
 
+    // Need to get the tables color rules and determine which rows are affected
+    constructRowColorObjects(dbInterface, db, userTable, adminCols, rowColors,
+        ColorRuleType.TABLE, null);
+
+    // Need to get the status color rules and determine which rows are affected
+    constructRowColorObjects(dbInterface, db, userTable, adminCols, statusColors,
+        ColorRuleType.STATUS, null);
+
+    for (String elementKey : elementKeys) {
+      ArrayList<RowColorObject> colColorGuide = new ArrayList<>();
+      constructRowColorObjects(dbInterface, db, userTable, adminCols, colColorGuide,
+          ColorRuleType.COLUMN, elementKey);
+      if (!colColorGuide.isEmpty()) {
+        colColors.put(elementKey, colColorGuide);
+      }
+    }
+  }
+
+  /**
+   * Processes a request, noting when it starts and ends in the {@link BridgeTrace}
+   */
+  @Override
+  public void run() {
+    BridgeTrace.executorStarted();
     try {
-      // Need to get the tables color rules and determine which rows are affected
-      constructRowColorObjects(dbInterface, db, userTable, adminCols, rowColors,
-          ColorRuleType.TABLE, null);
+      super.run();
+    } finally {
+      BridgeTrace.executorFinished();
+    }
+  }
 
-      // Need to get the status color rules and determine which rows are affected
-      constructRowColorObjects(dbInterface, db, userTable, adminCols, statusColors,
-          ColorRuleType.STATUS, null);
+  @Override
+  protected void extendQueryMetadata(UserDbInterface dbInterface, DbHandle db,
+      List<KeyValueStoreEntry> entries, UserTable userTable, Map<String, Object> metadata) {
+    BridgeTrace.metadataStarted();
+    try {
+      putQueryMetadata(dbInterface, db, userTable, metadata);
+    } finally {
+      BridgeTrace.metadataFinished();
+    }
+  }
 
+  /**
+   * The work of {@link #extendQueryMetadata}, which times it
+   */
+  private void putQueryMetadata(UserDbInterface dbInterface, DbHandle db,
+      UserTable userTable, Map<String, Object> metadata) {
+    try {
       // Need to get column color rules working
       Object ekm = metadata.get("elementKeyMap");
       if (ekm == null || !(ekm instanceof Map)) {
@@ -131,15 +186,7 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
       // from the calling code path, the Map is always a Map<String,Integer>.
       @SuppressWarnings("unchecked")
       Map<String, Integer> elementKeyMap = (Map<String, Integer>) ekm;
-      for (String elementKey : elementKeyMap.keySet()) {
-        ArrayList<RowColorObject> colColorGuide = new ArrayList<>();
-        constructRowColorObjects(dbInterface, db, userTable, adminCols, colColorGuide,
-            ColorRuleType.COLUMN, elementKey);
-        if (!colColorGuide.isEmpty()) {
-          colColors.put(elementKey, colColorGuide);
-        }
-      }
-
+      putColorMetadata(dbInterface, db, userTable, elementKeyMap.keySet(), metadata);
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(mActivity.getAppName()).printStackTrace(e);
       if (mActivity instanceof Context) {
@@ -148,15 +195,15 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
       }
     }
 
-    metadata.put(ROW_COLORS, rowColors);
-    metadata.put(STATUS_COLORS, statusColors);
-    metadata.put(COLUMN_COLORS, colColors);
-
     if (mActivity != null) {
       Integer indexOfSelectedItem = mActivity.getIndexOfSelectedItem();
       if (indexOfSelectedItem != null) {
         metadata.put(MAP_INDEX, indexOfSelectedItem);
       }
+      int[] distanceRankedIndexes = mActivity.getDistanceRankedIndexes();
+      if (distanceRankedIndexes != null) {
+        metadata.put(DISTANCE_ORDER, distanceRankedIndexes);
+      }
     }
   }
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.LruCache;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.webkitserver.utilities.UrlUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the html, javascript, css and templates of the custom views in memory,
+ * so that moving between list, detail and home screen views does not read the
+ * same files from storage again and again.
+ * <p>
+ * Only the files under an app's config and system folders are cached, the files
+ * that a sync or app designer push replace but that the views never write. An
+ * entry is trusted for {@link #REVALIDATE_MS} after it was last checked; after that
+ * the file's size and modification time are compared to the entry's, which costs
+ * a stat rather than a read. Each entry has an ETag made from the same two values.
+ * Larger entries are kept gzipped when that saves enough to be worth inflating
+ * them again on every hit.
+ * <p>
+ * The files are already on local storage, so there is no second copy on disk; the
+ * cache only saves the reads.
+ */
+public final class WebAssetCache {
+
+  /**
+   * How long an entry is served without checking its file
+   */
+  static final long REVALIDATE_MS = 2000;
+  /**
+   * The largest share of the heap the cache uses, and its limit in bytes
+   */
+  private static final int HEAP_FRACTION = 16;
+  private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+  /**
+   * Entries are compressed above this size if that saves at least a quarter
+   */
+  private static final int COMPRESS_ABOVE_BYTES = 16 * 1024;
+
+  private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+  static {
+    MIME_TYPES.put("html", "text/html");
+    MIME_TYPES.put("htm", "text/html");
+    MIME_TYPES.put("js", "application/javascript");
+    MIME_TYPES.put("css", "text/css");
+    MIME_TYPES.put("json", "application/json");
+    MIME_TYPES.put("svg", "image/svg+xml");
+    MIME_TYPES.put("hbs", "text/x-handlebars-template");
+    MIME_TYPES.put("handlebars", "text/x-handlebars-template");
+  }
+
+  private static WebAssetCache instance = null;
+
+  /**
+   * @return the cache shared by every web view of the application
+   */
+  public static synchronized WebAssetCache getInstance() {
+    if (instance == null) {
+      instance = new WebAssetCache();
+    }
+    return instance;
+  }
+
+  /**
+   * A cached file
+   */
+  static final class Entry {
+    final String mimeType;
+    final String eTag;
+    final long length;
+    final long lastModified;
+    final boolean compressed;
+    private final byte[] bytes;
+    // when the file was last compared to the entry
+    private volatile long checkedAt;
+
+    private Entry(String mimeType, long length, long lastModified, byte[] bytes,
+        boolean compressed) {
+      this.mimeType = mimeType;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.bytes = bytes;
+      this.compressed = compressed;
+      this.eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+      this.checkedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the file's contents
+     */
+    InputStream open() throws IOException {
+      InputStream in = new ByteArrayInputStream(bytes);
+      return compressed ? new GZIPInputStream(in) : in;
+    }
+  }
+
+  private final int maxEntryBytes;
+  private final LruCache<String, Entry> entries;
+
+  private WebAssetCache() {
+    int maxBytes = (int) Math
+        .min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+    // one file should not push out everything else
+    maxEntryBytes = maxBytes / 8;
+    entries = new LruCache<String, Entry>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Entry value) {
+        return value.bytes.length;
+      }
+    };
+  }
+
+  /**
+   * Finds the file a web view url points at, if it is one the cache keeps
+   *
+   * @param url a url the web view asked for
+   * @return the file, or null if the url is not for a cacheable file of an app
+   */
+  static File fileFor(Uri url) {
+    Uri content = UrlUtils.getWebViewContentUri();
+    if (url == null || !equals(url.getScheme(), content.getScheme()) || !equals(
+        url.getAuthority(), content.getAuthority())) {
+      return null;
+    }
+    List<String> prefix = content.getPathSegments();
+    List<String> segments = url.getPathSegments();
+    // the app name and at least the config or system folder and a file name
+    if (segments.size() < prefix.size() + 3 || !segments.subList(0, prefix.size())
+        .equals(prefix)) {
+      return null;
+    }
+    String folder = segments.get(prefix.size() + 1);
+    if (!"config".equals(folder) && !"system".equals(folder)) {
+      return null;
+    }
+    StringBuilder path = new StringBuilder(
+        ODKFileUtils.getAppFolder(segments.get(prefix.size())));
+    for (String segment : segments.subList(prefix.size() + 1, segments.size())) {
+      if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+        return null;
+      }
+      path.append(File.separator).append(segment);
+    }
+    File file = new File(path.toString());
+    return mimeTypeOf(file) == null ? null : file;
+  }
+
+  static String mimeTypeOf(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? null : MIME_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US));
+  }
+
+  /**
+   * Gets a file from the cache, reading it if it is not cached or has changed
+   *
+   * @param file a file returned by {@link #fileFor(Uri)}
+   * @return the entry, or null if the file does not exist or is too large to cache
+   * @throws IOException if the file could not be read
+   */
+  Entry get(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    Entry entry = entries.get(key);
+    long now = SystemClock.elapsedRealtime();
+    if (entry != null) {
+      if (now - entry.checkedAt < REVALIDATE_MS) {
+        return entry;
+      }
+      if (file.length() == entry.length && file.lastModified() == entry.lastModified) {
+        entry.checkedAt = now;
+        return entry;
+      }
+      entries.remove(key);
+    }
+    if (!file.isFile() || file.length() > maxEntryBytes) {
+      return null;
+    }
+    entry = read(file);
+    entries.put(key, entry);
+    return entry;
+  }
+
+  /**
+   * Drops every entry, e.g. when the system is low on memory
+   */
+  public void clear() {
+    entries.evictAll();
+  }
+
+  private static Entry read(File file) throws IOException {
+    long lastModified = file.lastModified();
+    byte[] bytes;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      bytes = out.toByteArray();
+    } finally {
+      in.close();
+    }
+    if (bytes.length > COMPRESS_ABOVE_BYTES) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(bytes);
+      gzip.close();
+      if (compressed.size() <= bytes.length * 3 / 4) {
+        return new Entry(mimeTypeOf(file), bytes.length, lastModified,
+            compressed.toByteArray(), true);
+      }
+    }
+    return new Entry(mimeTypeOf(file), bytes.length, lastModified, bytes, false);
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equalsIgnoreCase(b);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.ImageView;
+import org.opendatakit.logging.WebLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A picture of what a web view last showed, kept in the cache folder so that the
+ * page can be shown straight away the next time the app starts, while the web view
+ * is still loading it. The picture is only a stand-in: it is shown over the web
+ * view and taken away once the live page has drawn.
+ * <p>
+ * There is one picture per app, page and orientation; saving one deletes the
+ * others of the app. Pictures are written and read off the main thread.
+ */
+public final class WebViewSnapshot {
+
+  // Used for logging
+  private static final String TAG = WebViewSnapshot.class.getSimpleName();
+  private static final String FOLDER = "webViewSnapshots";
+  private static final int JPEG_QUALITY = 80;
+
+  private WebViewSnapshot() {
+  }
+
+  /**
+   * @param context     a context to get the cache folder from
+   * @param appName     the app name
+   * @param url         the url of the page
+   * @param orientation the orientation of the screen, from the configuration
+   * @return where the picture of the page is kept
+   */
+  public static File fileFor(Context context, String appName, String url, int orientation) {
+    String name = Integer.toHexString((url + "#" + orientation).hashCode());
+    return new File(new File(context.getCacheDir(), FOLDER), appName + "-" + name + ".jpg");
+  }
+
+  /**
+   * Draws the web view and writes the picture to file in the background, replacing
+   * the app's other pictures. Does nothing if the web view is not on screen. Must be
+   * called on the main thread.
+   *
+   * @param view    the web view, showing the page the file is for
+   * @param appName the app name
+   * @param file    a file from {@link #fileFor(Context, String, String, int)}
+   */
+  public static void save(View view, final String appName, final File file) {
+    if (view.getVisibility() != View.VISIBLE || view.getWidth() == 0 || view.getHeight() == 0) {
+      return;
+    }
+    final Bitmap bitmap;
+    try {
+      bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.RGB_565);
+    } catch (OutOfMemoryError e) {
+      WebLogger.getLogger(appName).w(TAG, "[save] no memory for a snapshot");
+      return;
+    }
+    view.draw(new Canvas(bitmap));
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        File folder = file.getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+          bitmap.recycle();
+          return;
+        }
+        File[] old = folder.listFiles();
+        if (old != null) {
+          for (File f : old) {
+            if (f.getName().startsWith(appName + "-") && !f.equals(file)) {
+              // noinspection ResultOfMethodCallIgnored -- the next save tries again
+              f.delete();
+            }
+          }
+        }
+        File temp = new File(folder, file.getName() + ".tmp");
+        try {
+          OutputStream out = new FileOutputStream(temp);
+          try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+          } finally {
+            out.close();
+          }
+          if (!temp.renameTo(file)) {
+            throw new IOException("unable to rename " + temp.getName());
+          }
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          // noinspection ResultOfMethodCallIgnored
+          temp.delete();
+        } finally {
+          bitmap.recycle();
+        }
+      }
+    }, TAG).start();
+  }
+
+  /**
+   * Reads the picture in the background and puts it in the image view, which is made
+   * visible, unless {@link #clear(ImageView)} is called first
+   *
+   * @param file  a file from {@link #fileFor(Context, String, String, int)}
+   * @param image where to show the picture
+   */
+  public static void show(final File file, final ImageView image) {
+    if (!file.isFile()) {
+      return;
+    }
+    final Handler handler = new Handler(Looper.getMainLooper());
+    final Object request = new Object();
+    image.setTag(request);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+          return;
+        }
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            // the live page may have drawn while the picture was being read
+            if (image.getTag() == request) {
+              image.setImageBitmap(bitmap);
+              image.setVisibility(View.VISIBLE);
+            }
+          }
+        });
+      }
+    }, TAG).start();
+  }
+
+  /**
+   * Takes the picture away, or stops it from being shown if it is still being read
+   *
+   * @param image the image view given to {@link #show(File, ImageView)}
+   */
+  public static void clear(ImageView image) {
+    image.setTag(null);
+    image.setVisibility(View.GONE);
+    image.setImageDrawable(null);
+  }
+}
@@ -0,0 +1,340 @@
+package org.opendatakit.tables.tasks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.builder.csvparser.RFC4180CsvWriter;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SingleRowQuery;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.listener.ImportListener;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Measures how fast csv files are imported, validated and exported, on the JVM
+ * with {@link InMemoryUserDb} standing in for the database service, so that a
+ * change to the parsing, chunking or writing code can be timed without a device.
+ * It runs under Robolectric for the few android classes the code touches, such as
+ * ContentValues.
+ * The time spent in the real database is not included, which is what makes a
+ * slower parser or writer easy to see.
+ * <p>
+ * Each operation is run on a narrow and a wide {@link SyntheticTable} for every
+ * row count, and its rows per second and peak heap are written to a json report.
+ * Given a previous report as a baseline, the test fails if any operation has got
+ * slower by more than the tolerance.
+ * <p>
+ * Configured with system properties, passed on by gradle, e.g.
+ * {@code ./gradlew testDemoDebugUnitTest --tests '*CsvThroughputPerfTest'
+ * -DcsvBenchmark.maxRows=1000000 -DcsvBenchmark.baseline=baseline.json}
+ * <ul>
+ * <li>csvBenchmark.rows - the row counts, default 1000,10000,100000,1000000</li>
+ * <li>csvBenchmark.maxRows - row counts above this are skipped, default 10000 to keep
+ * the normal test run short</li>
+ * <li>csvBenchmark.report - where the report is written, default
+ * build/reports/csv-benchmark.json</li>
+ * <li>csvBenchmark.baseline - a previous report to compare against</li>
+ * <li>csvBenchmark.tolerance - how much slower than the baseline is allowed, default
+ * 0.25</li>
+ * </ul>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CsvThroughputPerfTest {
+
+  private static final String DEFAULT_ROWS = "1000,10000,100000,1000000";
+  private static final int DEFAULT_MAX_ROWS = 10000;
+  private static final String DEFAULT_REPORT = "build/reports/csv-benchmark.json";
+  private static final double DEFAULT_TOLERANCE = 0.25;
+  // how often the heap is sampled while an operation runs
+  private static final long HEAP_SAMPLE_MS = 5;
+  // runs of the smallest table before measuring, so the JIT has compiled the hot paths
+  private static final int WARM_UP_RUNS = 3;
+
+  private static final List<Map<String, Object>> results = new ArrayList<>();
+  private static File workDir;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    workDir = File.createTempFile("csvBenchmark", "");
+    assertTrue(workDir.delete() && workDir.mkdirs());
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    File[] files = workDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    assertTrue(workDir.delete());
+    writeReport();
+  }
+
+  @Test
+  public void narrowTables() throws Exception {
+    runShape(SyntheticTable.Shape.NARROW);
+  }
+
+  @Test
+  public void wideTables() throws Exception {
+    runShape(SyntheticTable.Shape.WIDE);
+  }
+
+  private void runShape(SyntheticTable.Shape shape) throws Exception {
+    for (int i = 0; i < WARM_UP_RUNS; i++) {
+      runAll(shape, 1000, false);
+    }
+    int maxRows = Integer.getInteger("csvBenchmark.maxRows", DEFAULT_MAX_ROWS);
+    for (String rows : System.getProperty("csvBenchmark.rows", DEFAULT_ROWS).split(",")) {
+      int rowCount = Integer.parseInt(rows.trim());
+      if (rowCount <= maxRows) {
+        runAll(shape, rowCount, true);
+      }
+    }
+  }
+
+  /**
+   * Exports a generated table to csv and to the columnar format, then validates the
+   * csv and imports it into an empty copy of the table
+   */
+  private void runAll(SyntheticTable.Shape shape, int rowCount, boolean record)
+      throws Exception {
+    final InMemoryUserDb database = new InMemoryUserDb();
+    final SyntheticTable source = new SyntheticTable("bench_" + shape, shape, rowCount);
+    final SyntheticTable target = source.emptyCopy("bench_" + shape + "_import");
+    database.addTable(source);
+    database.addTable(target);
+    final File csv = new File(workDir, source.tableId + ".csv");
+    final File columnar = new File(workDir, source.tableId + ColumnarExporter.EXTENSION);
+    final ResumableQuery query = new SingleRowQuery(source.tableId, null,
+        new BindArgs(new Object[0]), null, null, null, null, null, null, null);
+
+    Result result = measure(new Operation() {
+      @Override
+      public long run() throws Exception {
+        QueryCsvExporter exporter = new QueryCsvExporter(SyntheticTable.APP_NAME,
+            database.getInterface(), QueryCsvExporter.DEFAULT_PAGE_SIZE);
+        RFC4180CsvWriter writer = new RFC4180CsvWriter(new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8)));
+        try {
+          return exporter.writeRows(null, new DbHandle("benchmark"), source.columns, query,
+              writer, null);
+        } finally {
+          writer.close();
+        }
+      }
+    });
+    assertEquals(rowCount, result.rows);
+    record(record, "exportCsv", source, result, csv.length());
+
+    result = measure(new Operation() {
+      @Override
+      public long run() throws Exception {
+        ColumnarExporter exporter = new ColumnarExporter(SyntheticTable.APP_NAME,
+            database.getInterface());
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(columnar)));
+        try {
+          return exporter.write(null, new DbHandle("benchmark"), source.columns, query, out);
+        } finally {
+          out.close();
+        }
+      }
+    });
+    assertEquals(rowCount, result.rows);
+    record(record, "exportColumnar", source, result, columnar.length());
+
+    result = measure(new Operation() {
+      @Override
+      public long run() throws Exception {
+        CsvValidator.Report report = new CsvValidator(SyntheticTable.APP_NAME,
+            database.getInterface()).validate(source.columns, new FileInputStream(csv));
+        assertTrue("generated values were rejected", report.isValid());
+        return report.getRowsChecked();
+      }
+    });
+    assertEquals(rowCount, result.rows);
+    record(record, "validateCsv", source, result, csv.length());
+
+    result = measure(new Operation() {
+      @Override
+      public long run() throws Exception {
+        long before = database.getRowsWritten();
+        ChunkedCsvImporter importer = new ChunkedCsvImporter(SyntheticTable.APP_NAME,
+            database.getInterface(), ChunkedCsvImporter.DEFAULT_CHUNK_SIZE);
+        final boolean[] complete = new boolean[1];
+        boolean success = importer.importData(new ImportListener() {
+          @Override
+          public void updateProgressDetail(int row, int total) {
+          }
+
+          @Override
+          public void importComplete(boolean outcome) {
+            complete[0] = outcome;
+          }
+        }, target.tableId, new FileInputStream(csv), csv.length(), csv.getName());
+        assertTrue("import failed", success && complete[0]);
+        return database.getRowsWritten() - before;
+      }
+    });
+    assertEquals(rowCount, result.rows);
+    record(record, "importCsv", source, result, csv.length());
+  }
+
+  private interface Operation {
+    /**
+     * @return the number of rows handled
+     */
+    long run() throws Exception;
+  }
+
+  private static class Result {
+    long rows;
+    long nanos;
+    long peakHeapBytes;
+  }
+
+  /**
+   * Runs an operation with a thread sampling the heap, starting from a collected heap
+   * so that the peak is the operation's own
+   */
+  private static Result measure(Operation operation) throws Exception {
+    final Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    final long baseline = runtime.totalMemory() - runtime.freeMemory();
+    final long[] peak = { 0 };
+    final boolean[] done = { false };
+    Thread sampler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          long used = runtime.totalMemory() - runtime.freeMemory();
+          synchronized (peak) {
+            peak[0] = Math.max(peak[0], used);
+            if (done[0]) {
+              return;
+            }
+            try {
+              peak.wait(HEAP_SAMPLE_MS);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      }
+    }, "heapSampler");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    Result result = new Result();
+    long start = System.nanoTime();
+    try {
+      result.rows = operation.run();
+    } finally {
+      result.nanos = System.nanoTime() - start;
+      synchronized (peak) {
+        done[0] = true;
+        peak.notifyAll();
+      }
+      sampler.join();
+    }
+    result.peakHeapBytes = Math.max(0, peak[0] - baseline);
+    return result;
+  }
+
+  private static void record(boolean record, String operation, SyntheticTable table,
+      Result result, long fileBytes) {
+    if (!record) {
+      return;
+    }
+    double seconds = result.nanos / 1e9;
+    Map<String, Object> entry = new LinkedHashMap<>();
+    entry.put("operation", operation);
+    entry.put("shape", table.shape.name().toLowerCase(Locale.US));
+    entry.put("rows", result.rows);
+    entry.put("columns", table.getRetentionColumnCount());
+    entry.put("seconds", seconds);
+    entry.put("rowsPerSecond", seconds == 0 ? 0 : result.rows / seconds);
+    entry.put("peakHeapBytes", result.peakHeapBytes);
+    entry.put("fileBytes", fileBytes);
+    synchronized (results) {
+      results.add(entry);
+    }
+  }
+
+  /**
+   * Writes the results, then compares them to the baseline if there is one
+   */
+  private static void writeReport() throws IOException {
+    ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("javaVersion", System.getProperty("java.version"));
+    report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+    report.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+    report.put("results", results);
+    File reportFile = new File(System.getProperty("csvBenchmark.report", DEFAULT_REPORT));
+    File parent = reportFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+    mapper.writeValue(reportFile, report);
+
+    String baselinePath = System.getProperty("csvBenchmark.baseline");
+    if (baselinePath == null) {
+      return;
+    }
+    double tolerance = Double
+        .parseDouble(System.getProperty("csvBenchmark.tolerance", "" + DEFAULT_TOLERANCE));
+    Map<String, Double> expected = new LinkedHashMap<>();
+    for (JsonNode entry : mapper.readTree(new File(baselinePath)).path("results")) {
+      expected.put(keyOf(entry.path("operation").asText(), entry.path("shape").asText(),
+          entry.path("rows").asLong()), entry.path("rowsPerSecond").asDouble());
+    }
+    StringBuilder regressions = new StringBuilder();
+    for (Map<String, Object> entry : results) {
+      Double before = expected.get(
+          keyOf((String) entry.get("operation"), (String) entry.get("shape"),
+              (Long) entry.get("rows")));
+      double now = (Double) entry.get("rowsPerSecond");
+      if (before != null && now < before * (1 - tolerance)) {
+        regressions.append(String.format(Locale.US, "\n%s %s %d rows: %.0f rows/s, was %.0f",
+            entry.get("operation"), entry.get("shape"), entry.get("rows"), now, before));
+      }
+    }
+    if (regressions.length() > 0) {
+      fail("Slower than the baseline by more than " + Math.round(tolerance * 100) + "%:"
+          + regressions);
+    }
+  }
+
+  private static String keyOf(String operation, String shape, long rows) {
+    return operation + "/" + shape + "/" + rows;
+  }
+}
@@ -0,0 +1,137 @@
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the database service on the JVM, with just enough of
+ * {@link UserDbInterface} for the csv importers and exporters: opening and closing,
+ * the columns of a table, paging through its rows, looking rows up by id and
+ * writing rows. Anything else throws, so a benchmark that starts to depend on
+ * more of the interface fails loudly instead of measuring nothing.
+ * <p>
+ * Rows are generated by their {@link SyntheticTable} rather than stored, and
+ * written rows are only recorded by index, so the stand-in costs next to nothing
+ * in time and memory compared to the code being measured.
+ */
+class InMemoryUserDb implements InvocationHandler {
+
+  private final Map<String, SyntheticTable> tables = new LinkedHashMap<>();
+  private final AtomicLong rowsWritten = new AtomicLong();
+  private final UserDbInterface proxy = (UserDbInterface) Proxy
+      .newProxyInstance(UserDbInterface.class.getClassLoader(),
+          new Class<?>[] { UserDbInterface.class }, this);
+
+  UserDbInterface getInterface() {
+    return proxy;
+  }
+
+  synchronized void addTable(SyntheticTable table) {
+    tables.put(table.tableId, table);
+  }
+
+  /**
+   * @return the number of rows inserted, updated or deleted since the stand-in was made
+   */
+  long getRowsWritten() {
+    return rowsWritten.get();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+    case "openDatabase":
+      return new DbHandle("benchmark");
+    case "closeDatabase":
+      return null;
+    case "getAllTableIds":
+      synchronized (this) {
+        return new ArrayList<>(tables.keySet());
+      }
+    case "getUserDefinedColumns":
+      return table((String) args[2]).columns;
+    case "simpleQuery":
+      return simpleQuery(table((String) args[2]), (OrderedColumns) args[3], (String) args[4],
+          (BindArgs) args[5], (Integer) args[10], (Integer) args[11]);
+    case "insertRowWithId":
+    case "updateRowWithId":
+      write(table((String) args[2]), (String) args[5], true);
+      return null;
+    case "deleteRowWithId":
+      write(table((String) args[2]), (String) args[4], false);
+      return null;
+    default:
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private synchronized SyntheticTable table(String tableId) {
+    SyntheticTable table = tables.get(tableId);
+    if (table == null) {
+      throw new IllegalArgumentException("No such table " + tableId);
+    }
+    return table;
+  }
+
+  /**
+   * Either a page of every row in id order, or the rows with the ids in an
+   * "_id IN (?, ...)" clause
+   */
+  private UserTable simpleQuery(SyntheticTable table, OrderedColumns columns, String where,
+      BindArgs bindArgs, Integer limit, Integer offset) {
+    BaseTable base = new BaseTable(null, table.elementKeys, table.elementKeyToIndex,
+        table.elementKeyToIndex.get(DataTableColumns.ID));
+    if (where != null && where.startsWith(DataTableColumns.ID + " IN")) {
+      for (Object rowId : bindArgs.bindArgs) {
+        int index = SyntheticTable.rowIndex((String) rowId);
+        if (index >= 0 && isPresent(table, index)) {
+          base.addRow(new Row(table.row(index), base));
+        }
+      }
+    } else if (where == null) {
+      int start = offset == null ? 0 : offset;
+      int end = limit == null || limit < 0 ?
+          table.rowCount :
+          (int) Math.min(table.rowCount, (long) start + limit);
+      for (int i = start; i < end; i++) {
+        base.addRow(new Row(table.row(i), base));
+      }
+    } else {
+      throw new UnsupportedOperationException(where);
+    }
+    return new UserTable(base, columns, new String[0]);
+  }
+
+  private boolean isPresent(SyntheticTable table, int index) {
+    if (index < table.rowCount) {
+      return true;
+    }
+    synchronized (table.written) {
+      return table.written.get(index);
+    }
+  }
+
+  private void write(SyntheticTable table, String rowId, boolean present) {
+    int index = SyntheticTable.rowIndex(rowId);
+    if (index >= 0) {
+      synchronized (table.written) {
+        table.written.set(index, present);
+      }
+    }
+    rowsWritten.incrementAndGet();
+  }
+}
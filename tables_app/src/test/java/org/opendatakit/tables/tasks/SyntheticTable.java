@@ -0,0 +1,228 @@
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A table whose rows are made up on demand from their index, so that a million
+ * rows can be exported without holding them in memory. Row i always has the id
+ * {@link #rowId(int)} and the same values.
+ * <p>
+ * The narrow shape has one column of each common type. The wide shape repeats a
+ * column of every element type, including geopoints and arrays with their child
+ * columns, rowpaths and configpaths, to make up a form sized table.
+ */
+class SyntheticTable {
+
+  static final String APP_NAME = "benchmark";
+
+  enum Shape {
+    NARROW, WIDE
+  }
+
+  /**
+   * The number of times the wide shape repeats its columns
+   */
+  private static final int WIDE_REPEATS = 4;
+
+  final String tableId;
+  final Shape shape;
+  final OrderedColumns columns;
+  /**
+   * The columns of a row, the metadata columns around the user defined ones
+   */
+  final String[] elementKeys;
+  final HashMap<String, Integer> elementKeyToIndex = new HashMap<>();
+  /**
+   * The number of generated rows, for a table that is exported
+   */
+  final int rowCount;
+  /**
+   * The rows that have been written to the table, by index, for a table that is imported into
+   */
+  final BitSet written = new BitSet();
+
+  private final ElementDataType[] dataTypes;
+  private final String[] elementTypes;
+
+  SyntheticTable(String tableId, Shape shape, int rowCount) {
+    this.tableId = tableId;
+    this.shape = shape;
+    this.rowCount = rowCount;
+    this.columns = new OrderedColumns(APP_NAME, tableId, buildColumns(shape));
+    this.elementKeys = QueryCsvExporter.buildHeader(columns, null);
+    dataTypes = new ElementDataType[elementKeys.length];
+    elementTypes = new String[elementKeys.length];
+    for (int i = 0; i < elementKeys.length; i++) {
+      elementKeyToIndex.put(elementKeys[i], i);
+    }
+    for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+      Integer index = elementKeyToIndex.get(cd.getElementKey());
+      if (index != null) {
+        dataTypes[index] = cd.getType().getDataType();
+        elementTypes[index] = cd.getElementType();
+      }
+    }
+  }
+
+  /**
+   * @return an empty table with the same columns, to import into
+   */
+  SyntheticTable emptyCopy(String copyTableId) {
+    return new SyntheticTable(copyTableId, shape, 0);
+  }
+
+  /**
+   * @return the number of user defined columns that hold values
+   */
+  int getRetentionColumnCount() {
+    return columns.getRetentionColumnNames().size();
+  }
+
+  static String rowId(int index) {
+    return String.format(Locale.US, "uuid:%010d", index);
+  }
+
+  /**
+   * @return the index of a row id made by {@link #rowId(int)}, or -1 for any other id
+   */
+  static int rowIndex(String rowId) {
+    if (rowId == null || !rowId.startsWith("uuid:")) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(rowId.substring(5));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the values of a row, in the order of {@link #elementKeys}
+   */
+  String[] row(int index) {
+    Random random = new Random(index);
+    String[] values = new String[elementKeys.length];
+    for (int i = 0; i < elementKeys.length; i++) {
+      values[i] = valueFor(i, index, random);
+    }
+    return values;
+  }
+
+  private String valueFor(int column, int index, Random random) {
+    String elementKey = elementKeys[column];
+    if (DataTableColumns.ID.equals(elementKey)) {
+      return rowId(index);
+    }
+    if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(elementKey)) {
+      return String.format(Locale.US, "2021-03-%02dT10:15:%02d.%09d", 1 + index % 28,
+          index % 60, index);
+    }
+    if (DataTableColumns.SAVEPOINT_TYPE.equals(elementKey)) {
+      return "COMPLETE";
+    }
+    if (DataTableColumns.SAVEPOINT_CREATOR.equals(elementKey) || DataTableColumns.ROW_OWNER
+        .equals(elementKey)) {
+      return "anonymous";
+    }
+    if (DataTableColumns.DEFAULT_ACCESS.equals(elementKey)) {
+      return "FULL";
+    }
+    if (DataTableColumns.LOCALE.equals(elementKey)) {
+      return "default";
+    }
+    if (dataTypes[column] == null) {
+      // the other metadata columns are left empty
+      return null;
+    }
+    if (random.nextInt(20) == 0) {
+      // a few empty values, as a real table has
+      return null;
+    }
+    if ("date".equals(elementTypes[column])) {
+      return String.format(Locale.US, "20%02d-%02d-%02d", random.nextInt(30),
+          1 + random.nextInt(12), 1 + random.nextInt(28));
+    }
+    if ("dateTime".equals(elementTypes[column])) {
+      return String.format(Locale.US, "20%02d-%02d-%02dT%02d:%02d:%02d.%09d",
+          random.nextInt(30), 1 + random.nextInt(12), 1 + random.nextInt(28),
+          random.nextInt(24), random.nextInt(60), random.nextInt(60),
+          random.nextInt(1000000000));
+    }
+    if ("time".equals(elementTypes[column])) {
+      return String.format(Locale.US, "%02d:%02d:%02d.%09d", random.nextInt(24),
+          random.nextInt(60), random.nextInt(60), random.nextInt(1000000000));
+    }
+    switch (dataTypes[column]) {
+    case integer:
+      return Integer.toString(random.nextInt());
+    case number:
+      if (elementKey.endsWith("_latitude")) {
+        return Double.toString(random.nextDouble() * 180 - 90);
+      }
+      if (elementKey.endsWith("_longitude")) {
+        return Double.toString(random.nextDouble() * 360 - 180);
+      }
+      return Double.toString(random.nextGaussian() * 1000);
+    case bool:
+      return random.nextBoolean() ? "1" : "0";
+    case array:
+      return "[\"" + Integer.toHexString(random.nextInt()) + "\",\"" + Integer
+          .toHexString(random.nextInt()) + "\"]";
+    case rowpath:
+      return "photo_" + index + ".jpg";
+    case configpath:
+      return "config/assets/img/icon_" + random.nextInt(50) + ".png";
+    default:
+      // text, with a comma and a quote now and then so that the csv has to quote it
+      if (random.nextInt(8) == 0) {
+        return "Plot " + index + ", north \"edge\"";
+      }
+      return "Value " + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+    }
+  }
+
+  private static List<Column> buildColumns(Shape shape) {
+    List<Column> columns = new ArrayList<>();
+    if (shape == Shape.NARROW) {
+      columns.add(new Column("n_count", "n_count", "integer", "[]"));
+      columns.add(new Column("n_weight", "n_weight", "number", "[]"));
+      columns.add(new Column("n_name", "n_name", "string", "[]"));
+      columns.add(new Column("n_visited", "n_visited", "date", "[]"));
+      return columns;
+    }
+    for (int i = 0; i < WIDE_REPEATS; i++) {
+      String p = "w" + i + "_";
+      columns.add(new Column(p + "count", p + "count", "integer", "[]"));
+      columns.add(new Column(p + "weight", p + "weight", "number", "[]"));
+      columns.add(new Column(p + "present", p + "present", "boolean", "[]"));
+      columns.add(new Column(p + "name", p + "name", "string", "[]"));
+      columns.add(new Column(p + "notes", p + "notes", "string", "[]"));
+      columns.add(new Column(p + "visited", p + "visited", "date", "[]"));
+      columns.add(new Column(p + "started", p + "started", "dateTime", "[]"));
+      columns.add(new Column(p + "at", p + "at", "time", "[]"));
+      columns.add(new Column(p + "photo", p + "photo", "rowpath", "[]"));
+      columns.add(new Column(p + "icon", p + "icon", "configpath", "[]"));
+      columns.add(new Column(p + "tags", p + "tags", "array", "[\"" + p + "tags_items\"]"));
+      columns.add(new Column(p + "tags_items", "items", "string", "[]"));
+      columns.add(new Column(p + "location", p + "location", "geopoint",
+          "[\"" + p + "location_latitude\",\"" + p + "location_longitude\",\"" + p
+              + "location_altitude\",\"" + p + "location_accuracy\"]"));
+      columns.add(new Column(p + "location_latitude", "latitude", "number", "[]"));
+      columns.add(new Column(p + "location_longitude", "longitude", "number", "[]"));
+      columns.add(new Column(p + "location_altitude", "altitude", "number", "[]"));
+      columns.add(new Column(p + "location_accuracy", "accuracy", "number", "[]"));
+    }
+    return columns;
+  }
+}